@@ -0,0 +1,136 @@
+package de.ph1b.audiobook.model;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+
+/**
+ * Compares inserting chapters through {@link ContentValues} with a reused compiled statement, as
+ * {@link DataBaseHelper} does. Runs on an in-memory database so the storage does not dominate.
+ * Each way is timed several times and the fastest round is reported.
+ */
+public class DataBaseBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = DataBaseBenchmarkTest.class.getSimpleName();
+    private static final int BOOKS = 50;
+    private static final int CHAPTERS_PER_BOOK = 200;
+    private static final int ROUNDS = 4;
+
+    private SQLiteDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create(null);
+        db.execSQL(DataBaseHelper.CREATE_TABLE_BOOK);
+        db.execSQL(DataBaseHelper.CREATE_TABLE_CHAPTERS);
+        db.execSQL(DataBaseHelper.CREATE_INDEX_CHAPTERS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testChapterInsertThroughput() {
+        // the first round only warms up, the order alternates so neither always runs first
+        long contentValuesNanos = Long.MAX_VALUE;
+        long statementNanos = Long.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            boolean contentValuesFirst = round % 2 == 0;
+            for (int i = 0; i < 2; i++) {
+                db.delete(DataBaseHelper.TABLE_CHAPTERS, null, null);
+                boolean contentValues = (i == 0) == contentValuesFirst;
+                long nanos = contentValues ? insertWithContentValues() : insertWithStatement();
+                assertChaptersInserted();
+                if (round > 0) {
+                    if (contentValues) {
+                        contentValuesNanos = Math.min(contentValuesNanos, nanos);
+                    } else {
+                        statementNanos = Math.min(statementNanos, nanos);
+                    }
+                }
+            }
+        }
+
+        int rows = BOOKS * CHAPTERS_PER_BOOK;
+        Log.i(TAG, "ContentValues: " + rows * 1000000000L / contentValuesNanos + " rows/s");
+        Log.i(TAG, "SQLiteStatement: " + rows * 1000000000L / statementNanos + " rows/s");
+    }
+
+    /**
+     * Reads all chapters back and checks that each has the values it was inserted with.
+     */
+    private void assertChaptersInserted() {
+        Cursor cursor = db.query(DataBaseHelper.TABLE_CHAPTERS, new String[]{DataBaseHelper.CHAPTER_DURATION,
+                        DataBaseHelper.CHAPTER_NAME, DataBaseHelper.CHAPTER_PATH, DataBaseHelper.BOOK_ID},
+                null, null, null, null, DataBaseHelper.BOOK_ID + ", " + DataBaseHelper.CHAPTER_DURATION);
+        try {
+            assertEquals(BOOKS * CHAPTERS_PER_BOOK, cursor.getCount());
+            for (int b = 0; b < BOOKS; b++) {
+                for (int c = 0; c < CHAPTERS_PER_BOOK; c++) {
+                    assertTrue(cursor.moveToNext());
+                    assertEquals(c * 1000, cursor.getInt(0));
+                    assertEquals("Chapter " + c, cursor.getString(1));
+                    assertEquals("/storage/book" + b + "/" + c + ".mp3", cursor.getString(2));
+                    assertEquals(b, cursor.getLong(3));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long insertWithContentValues() {
+        long start = System.nanoTime();
+        for (int b = 0; b < BOOKS; b++) {
+            db.beginTransaction();
+            try {
+                for (int c = 0; c < CHAPTERS_PER_BOOK; c++) {
+                    ContentValues cv = new ContentValues();
+                    cv.put(DataBaseHelper.CHAPTER_DURATION, c * 1000);
+                    cv.put(DataBaseHelper.CHAPTER_NAME, "Chapter " + c);
+                    cv.put(DataBaseHelper.CHAPTER_PATH, "/storage/book" + b + "/" + c + ".mp3");
+                    cv.put(DataBaseHelper.BOOK_ID, b);
+                    db.insert(DataBaseHelper.TABLE_CHAPTERS, null, cv);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long insertWithStatement() {
+        long start = System.nanoTime();
+        SQLiteStatement statement = db.compileStatement(DataBaseHelper.INSERT_CHAPTER);
+        try {
+            for (int b = 0; b < BOOKS; b++) {
+                db.beginTransaction();
+                try {
+                    for (int c = 0; c < CHAPTERS_PER_BOOK; c++) {
+                        statement.bindLong(1, c * 1000);
+                        statement.bindString(2, "Chapter " + c);
+                        statement.bindString(3, "/storage/book" + b + "/" + c + ".mp3");
+                        statement.bindLong(4, b);
+                        statement.executeInsert();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        } finally {
+            statement.close();
+        }
+        return System.nanoTime() - start;
+    }
+}
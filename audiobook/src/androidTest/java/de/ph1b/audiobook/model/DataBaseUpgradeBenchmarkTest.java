@@ -0,0 +1,130 @@
+package de.ph1b.audiobook.model;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Migrates a library of 5,000 books from the oldest version that still carries books to the
+ * latest one, step by step as {@link DataBaseHelper} does. Versions before 24 are dropped by
+ * {@link DataBaseUpgradeHelper}, so the fixture is the schema created by its upgrade23, together
+ * with the per-book config files it reads from the book folders.
+ */
+public class DataBaseUpgradeBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = DataBaseUpgradeBenchmarkTest.class.getSimpleName();
+    private static final int BOOKS = 5000;
+    private static final int CHAPTERS_PER_BOOK = 10;
+
+    private File fixtureDir;
+    private SQLiteDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        fixtureDir = new File(getContext().getCacheDir(), "upgradeFixture");
+        db = SQLiteDatabase.create(null);
+        createFixture();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        deleteRecursively(fixtureDir);
+        super.tearDown();
+    }
+
+    private void createFixture() throws IOException {
+        db.execSQL("CREATE TABLE TABLE_BOOK ( " +
+                "BOOK_ID INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "BOOK_TYPE TEXT NOT NULL, " +
+                "BOOK_ROOT TEXT NOT NULL)");
+        db.execSQL("CREATE TABLE TABLE_CHAPTERS ( " +
+                "CHAPTER_ID INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "CHAPTER_PATH TEXT NOT NULL, " +
+                "CHAPTER_DURATION INTEGER NOT NULL, " +
+                "CHAPTER_NAME TEXT NOT NULL, " +
+                "BOOK_ID INTEGER NOT NULL, " +
+                "FOREIGN KEY(BOOK_ID) REFERENCES TABLE_BOOK(BOOK_ID))");
+        db.setVersion(24);
+
+        SQLiteStatement insertBook = db.compileStatement(
+                "INSERT INTO TABLE_BOOK (BOOK_TYPE, BOOK_ROOT) VALUES (?, ?)");
+        SQLiteStatement insertChapter = db.compileStatement(
+                "INSERT INTO TABLE_CHAPTERS (CHAPTER_PATH, CHAPTER_DURATION, CHAPTER_NAME, BOOK_ID) VALUES (?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int b = 0; b < BOOKS; b++) {
+                File root = new File(fixtureDir, "book" + b);
+                if (!root.mkdirs()) {
+                    throw new IOException("Could not create " + root);
+                }
+                Files.write("{\"time\":1000,\"relPath\":\"1.mp3\",\"speed\":\"1.0\",\"name\":\"Book " + b +
+                                "\",\"useCoverReplacement\":false,\"bookmarks\":[{\"time\":5,\"title\":\"Mark\",\"relPath\":\"2.mp3\"}]}",
+                        new File(root, "." + root.getName() + "-map.json"), Charsets.UTF_8);
+
+                insertBook.bindString(1, "COLLECTION_FOLDER");
+                insertBook.bindString(2, root.getAbsolutePath());
+                long bookId = insertBook.executeInsert();
+                for (int c = 0; c < CHAPTERS_PER_BOOK; c++) {
+                    insertChapter.bindString(1, c + ".mp3");
+                    insertChapter.bindLong(2, 60000);
+                    insertChapter.bindString(3, String.valueOf(c));
+                    insertChapter.bindLong(4, bookId);
+                    insertChapter.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insertBook.close();
+            insertChapter.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @LargeTest
+    public void testMigrate5000Books() throws Exception {
+        final int[] lastPercent = {-1};
+        long start = System.nanoTime();
+        new DataBaseUpgradeHelper(db, getContext()).migrate(DataBaseHelper.DATABASE_VERSION,
+                new DataBaseHelper.OnMigrationListener() {
+                    @Override
+                    public void onMigrationProgress(int percent) {
+                        assertTrue(percent >= lastPercent[0] && percent <= 100);
+                        lastPercent[0] = percent;
+                    }
+
+                    @Override
+                    public void onMigrationFinished() {
+                    }
+                });
+        long millis = (System.nanoTime() - start) / 1000000;
+        Log.i(TAG, "Migrated " + BOOKS + " books in " + millis + " ms");
+
+        assertEquals(DataBaseHelper.DATABASE_VERSION, db.getVersion());
+        assertEquals(BOOKS, DatabaseUtils.queryNumEntries(db, DataBaseHelper.TABLE_BOOK));
+        assertEquals(BOOKS * CHAPTERS_PER_BOOK, DatabaseUtils.queryNumEntries(db, DataBaseHelper.TABLE_CHAPTERS));
+        assertEquals(BOOKS, DatabaseUtils.queryNumEntries(db, DataBaseHelper.TABLE_BOOKMARKS));
+    }
+}
@@ -14,6 +14,7 @@ import de.ph1b.audiobook.R;
 import de.ph1b.audiobook.fragment.BookPlayFragment;
 import de.ph1b.audiobook.fragment.BookShelfFragment;
 import de.ph1b.audiobook.mediaplayer.MediaPlayerController;
+import de.ph1b.audiobook.model.DataBaseHelper;
 import de.ph1b.audiobook.utils.L;
 import de.ph1b.audiobook.utils.PrefsManager;
 
@@ -32,6 +33,13 @@ public class BookActivity extends BaseActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        // the fragments read the books, which would block until the migration is done
+        if (DataBaseHelper.getInstance(this).isMigrating()) {
+            startActivity(new Intent(this, MigrationActivity.class));
+            finish();
+            return;
+        }
+
         View view = new FrameLayout(this);
         view.setId(R.id.content);
         setContentView(view);
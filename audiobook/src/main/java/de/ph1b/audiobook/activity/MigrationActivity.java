@@ -0,0 +1,70 @@
+package de.ph1b.audiobook.activity;
+
+import android.os.Bundle;
+import android.support.v7.app.ActionBar;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.Toolbar;
+import android.widget.ProgressBar;
+
+import de.ph1b.audiobook.R;
+import de.ph1b.audiobook.model.DataBaseHelper;
+
+/**
+ * Shown while an older database is migrated, so the migration does not block the screen that
+ * needs the books. Continues to {@link BookActivity} when it is done.
+ */
+public class MigrationActivity extends AppCompatActivity implements DataBaseHelper.OnMigrationListener {
+
+    private DataBaseHelper db;
+    private ProgressBar progressBar;
+    private boolean finished = false;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_migration);
+
+        Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
+        setSupportActionBar(toolbar);
+        ActionBar actionBar = getSupportActionBar();
+        if (actionBar != null) {
+            getSupportActionBar().setTitle(R.string.migration_action_bar_title);
+            getSupportActionBar().setDisplayHomeAsUpEnabled(false);
+        }
+
+        progressBar = (ProgressBar) findViewById(R.id.progress);
+        db = DataBaseHelper.getInstance(this);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        db.setOnMigrationListener(this);
+        if (!db.isMigrating()) {
+            onMigrationFinished();
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+
+        db.setOnMigrationListener(null);
+    }
+
+    @Override
+    public void onMigrationProgress(int percent) {
+        progressBar.setProgress(percent);
+    }
+
+    @Override
+    public void onMigrationFinished() {
+        // may be called by the check in onResume and by the migration itself
+        if (!finished) {
+            finished = true;
+            startActivity(BookActivity.bookScreenIntent(this));
+            finish();
+        }
+    }
+}
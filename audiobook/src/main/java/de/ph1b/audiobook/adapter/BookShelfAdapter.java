@@ -15,11 +15,15 @@ import android.widget.TextView;
 import com.squareup.picasso.Picasso;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import de.ph1b.audiobook.R;
 import de.ph1b.audiobook.model.Book;
+import de.ph1b.audiobook.model.BookSetChange;
 import de.ph1b.audiobook.uitools.CoverReplacement;
 import de.ph1b.audiobook.utils.PrefsManager;
 
@@ -28,6 +32,11 @@ public class BookShelfAdapter extends RecyclerView.Adapter<BookShelfAdapter.View
     private final Context c;
     private final PrefsManager prefs;
     private final OnItemClickListener onItemClickListener;
+    /**
+     * The books in {@link #sortedList} by their id, so a change of one book does not need to search
+     * the list.
+     */
+    private final Map<Long, Book> booksById = new HashMap<>();
     private final SortedList<Book> sortedList = new SortedList<>(Book.class, new SortedList.Callback<Book>() {
 
         @Override
@@ -81,50 +90,71 @@ public class BookShelfAdapter extends RecyclerView.Adapter<BookShelfAdapter.View
     public void addAll(List<Book> books) {
         this.sortedList.beginBatchedUpdates();
         for (Book b : books) {
-            this.sortedList.add(b);
+            put(b);
         }
         this.sortedList.endBatchedUpdates();
     }
 
-
+    /**
+     * Replaces all books.
+     */
     public void newDataSet(List<Book> books) {
         sortedList.beginBatchedUpdates();
 
+        Set<Long> removed = new HashSet<>(booksById.keySet());
         for (Book b : books) {
-            boolean bookExists = false;
-            for (int i = 0; i < sortedList.size(); i++) {
-                if (sortedList.get(i).getId() == b.getId()) {
-                    sortedList.updateItemAt(i, b);
-                    bookExists = true;
-                    break;
-                }
-            }
-            if (!bookExists) {
-                sortedList.add(b);
-            }
+            removed.remove(b.getId());
+            put(b);
+        }
+        for (long id : removed) {
+            sortedList.remove(booksById.remove(id));
         }
 
-        List<Book> booksToDelete = new ArrayList<>();
-        for (int i = 0; i < sortedList.size(); i++) {
-            Book existing = sortedList.get(i);
-            boolean deleteBook = true;
-            for (Book b : books) {
-                if (existing.getId() == b.getId()) {
-                    deleteBook = false;
-                    break;
-                }
-            }
-            if (deleteBook) {
-                booksToDelete.add(existing);
+        sortedList.endBatchedUpdates();
+    }
+
+    /**
+     * Applies a change of the books. Only the changed books are touched.
+     */
+    public void apply(@NonNull BookSetChange change) {
+        sortedList.beginBatchedUpdates();
+
+        for (long id : change.getRemoved()) {
+            Book old = booksById.remove(id);
+            if (old != null) {
+                sortedList.remove(old);
             }
         }
-        for (Book b : booksToDelete) {
-            sortedList.remove(b);
+        for (Book b : change.getAdded()) {
+            put(b);
+        }
+        for (Book b : change.getUpdated()) {
+            put(b);
         }
 
         sortedList.endBatchedUpdates();
     }
 
+    /**
+     * Adds a book or replaces the book with the same id.
+     */
+    private void put(@NonNull Book book) {
+        Book old = booksById.put(book.getId(), book);
+        if (old == null) {
+            sortedList.add(book);
+        } else {
+            sortedList.updateItemAt(sortedList.indexOf(old), book);
+        }
+    }
+
+    /**
+     * @return the position of the book with the id, or -1 if there is none.
+     */
+    public int getPosition(long bookId) {
+        Book book = booksById.get(bookId);
+        return book == null ? SortedList.INVALID_POSITION : sortedList.indexOf(book);
+    }
+
     @Override
     public long getItemId(int position) {
         return sortedList.get(position).getId();
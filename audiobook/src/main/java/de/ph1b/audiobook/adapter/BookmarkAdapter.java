@@ -23,18 +23,25 @@ import de.ph1b.audiobook.model.Chapter;
 public class BookmarkAdapter extends RecyclerView.Adapter<BookmarkAdapter.ViewHolder> {
 
     @NonNull
-    private final Book book;
+    private Book book;
     @NonNull
     private final OnOptionsMenuClickedListener listener;
 
     public BookmarkAdapter(@NonNull Book book, @NonNull OnOptionsMenuClickedListener listener) {
         this.book = book;
         this.listener = listener;
+        setHasStableIds(true);
     }
 
-    public void removeItem(int position) {
-        book.getBookmarks().remove(position);
-        notifyItemRemoved(position);
+    /**
+     * Shows the bookmarks of a newer version of the book. As the bookmarks have stable ids, only
+     * the changed rows are animated.
+     *
+     * @param book the book with the changed bookmarks
+     */
+    public void setBook(@NonNull Book book) {
+        this.book = book;
+        notifyDataSetChanged();
     }
 
     @NonNull
@@ -55,16 +62,11 @@ public class BookmarkAdapter extends RecyclerView.Adapter<BookmarkAdapter.ViewHo
         holder.title.setText(bookmark.getTitle());
 
         int size = book.getChapters().size();
-        Chapter currentChapter = null;
-        for (Chapter c : book.getChapters()) {
-            if (c.getPath().equals(bookmark.getMediaPath())) {
-                currentChapter = c;
-            }
-        }
-        if (currentChapter == null) {
+        int index = book.indexOfChapter(bookmark.getMediaPath());
+        if (index == -1) {
             throw new IllegalArgumentException("Current chapter not found with bookmark=" + bookmark);
         }
-        int index = book.getChapters().indexOf(currentChapter);
+        Chapter currentChapter = book.getChapters().get(index);
 
         holder.summary.setText("(" + (index + 1) + "/" + size + ") ");
         holder.time.setText(formatTime(bookmark.getTime()) + " / " + formatTime(currentChapter.getDuration()));
@@ -72,7 +74,7 @@ public class BookmarkAdapter extends RecyclerView.Adapter<BookmarkAdapter.ViewHo
 
     @Override
     public long getItemId(int position) {
-        return position;
+        return getItem(position).getId();
     }
 
     @Override
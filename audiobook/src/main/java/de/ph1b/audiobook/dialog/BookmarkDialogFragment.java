@@ -24,14 +24,11 @@ import android.widget.Toast;
 
 import com.afollestad.materialdialogs.MaterialDialog;
 
-import java.util.Collections;
-
 import de.ph1b.audiobook.R;
 import de.ph1b.audiobook.adapter.BookmarkAdapter;
 import de.ph1b.audiobook.model.Book;
 import de.ph1b.audiobook.model.Bookmark;
 import de.ph1b.audiobook.model.DataBaseHelper;
-import de.ph1b.audiobook.model.NaturalBookmarkComparator;
 import de.ph1b.audiobook.service.ServiceController;
 import de.ph1b.audiobook.uitools.DividerItemDecoration;
 import de.ph1b.audiobook.utils.L;
@@ -63,11 +60,8 @@ public class BookmarkDialogFragment extends DialogFragment {
 
         Book book = db.getBook(bookId);
         if (book != null) {
-            Bookmark bookmark = new Bookmark(book.getCurrentChapter().getPath(), title, book.getTime());
-
-            book.getBookmarks().add(bookmark);
-            Collections.sort(book.getBookmarks(), new NaturalBookmarkComparator(book.getChapters()));
-            db.updateBook(book);
+            Bookmark bookmark = new Bookmark(book.getCurrentMediaPath(), title, book.getTime());
+            db.addBookmark(bookId, bookmark);
             L.v(TAG, "Added bookmark=" + bookmark);
         } else {
             L.e(TAG, "Book does not exist");
@@ -118,9 +112,11 @@ public class BookmarkDialogFragment extends DialogFragment {
                                         .input(getString(R.string.bookmark_edit_hint), editBookmark.getTitle(), false, new MaterialDialog.InputCallback() {
                                             @Override
                                             public void onInput(MaterialDialog materialDialog, CharSequence charSequence) {
-                                                editBookmark.setTitle(charSequence.toString());
-                                                db.updateBook(book);
-                                                adapter.notifyItemChanged(position);
+                                                Book updated = db.updateBookmark(bookId,
+                                                        editBookmark.withTitle(charSequence.toString()));
+                                                if (updated != null) {
+                                                    adapter.setBook(updated);
+                                                }
                                             }
                                         })
                                         .positiveText(R.string.dialog_confirm)
@@ -136,8 +132,11 @@ public class BookmarkDialogFragment extends DialogFragment {
                                         .callback(new MaterialDialog.ButtonCallback() {
                                             @Override
                                             public void onPositive(MaterialDialog dialog) {
-                                                adapter.removeItem(position);
-                                                db.updateBook(book);
+                                                Book updated = db.deleteBookmark(bookId,
+                                                        deleteBookmark.getId());
+                                                if (updated != null) {
+                                                    adapter.setBook(updated);
+                                                }
                                             }
                                         })
                                         .show();
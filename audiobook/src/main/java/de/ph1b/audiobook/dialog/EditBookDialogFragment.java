@@ -28,7 +28,6 @@ import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import de.ph1b.audiobook.R;
 import de.ph1b.audiobook.model.Book;
@@ -38,6 +37,7 @@ import de.ph1b.audiobook.uitools.CoverReplacement;
 import de.ph1b.audiobook.uitools.DraggableBoxImageView;
 import de.ph1b.audiobook.uitools.ImageHelper;
 import de.ph1b.audiobook.utils.Communication;
+import de.ph1b.audiobook.utils.ExecutorRegistry;
 import de.ph1b.audiobook.utils.L;
 
 public class EditBookDialogFragment extends DialogFragment implements View.OnClickListener {
@@ -45,7 +45,8 @@ public class EditBookDialogFragment extends DialogFragment implements View.OnCli
     private static final String BOOK_COVER = "BOOK_COVER";
     private static final int REPLACEMENT_DIMEN = 500;
     private static final String COVER_POSITION = "COVER_POSITION";
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ExecutorService executor = ExecutorRegistry.getInstance()
+            .newSerial(TAG, ExecutorRegistry.Priority.BACKGROUND);
     private CoverDownloader coverDownloader;
     private DraggableBoxImageView coverImageView;
     private ProgressBar coverReplacement;
@@ -225,9 +226,8 @@ public class EditBookDialogFragment extends DialogFragment implements View.OnCli
                 synchronized (db) {
                     Book dbBook = db.getBook(book.getId());
                     if (dbBook != null) {
-                        dbBook.setUseCoverReplacement(useCoverReplacement);
-                        dbBook.setName(bookName);
-                        db.updateBook(dbBook);
+                        db.updateBook(dbBook.withUseCoverReplacement(useCoverReplacement)
+                                .withName(bookName));
                     }
                 }
                 Communication.getInstance().sendCoverChanged(book.getId());
@@ -92,8 +92,7 @@ public class PlaybackSpeedDialogFragment extends DialogFragment {
                         new ServiceController(getActivity()).setPlaybackSpeed(speed);
                         Book currentBook = db.getBook(book.getId());
                         if (currentBook != null) {
-                            currentBook.setPlaybackSpeed(speed);
-                            db.updateBook(currentBook);
+                            db.updateBook(currentBook.withPlaybackSpeed(speed));
                         }
                     }
                 })
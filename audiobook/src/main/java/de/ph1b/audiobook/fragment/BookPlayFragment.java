@@ -52,10 +52,14 @@ import de.ph1b.audiobook.utils.L;
 import de.ph1b.audiobook.utils.PrefsManager;
 
 
-public class BookPlayFragment extends Fragment implements View.OnClickListener, Communication.OnSleepStateChangedListener, Communication.OnBookContentChangedListener, Communication.OnPlayStateChangedListener {
+public class BookPlayFragment extends Fragment implements View.OnClickListener, Communication.OnSleepStateChangedListener, Communication.OnBookContentChangedListener, Communication.OnPlayStateChangedListener, Communication.OnPositionTickListener {
 
     public static final String TAG = BookPlayFragment.class.getSimpleName();
     private static final String BOOK_ID = "bookId";
+    /**
+     * The position is shown at most this often, so seeking does not flood the ui.
+     */
+    private static final long POSITION_INTERVAL_MS = 250;
     private final PlayPauseDrawable playPauseDrawable = new PlayPauseDrawable();
     private final Communication communication = Communication.getInstance();
     @Nullable
@@ -213,7 +217,7 @@ public class BookPlayFragment extends Fragment implements View.OnClickListener,
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int newPosition, long id) {
                 if (parent.getTag() != null && ((int) parent.getTag()) != newPosition) {
-                    L.i(TAG, "spinner, onItemSelected, firing:" + newPosition);
+                    L.i(TAG, "spinner, onItemSelected, firing:{}", newPosition);
                     controller.changeTime(0, book.getChapters().get(
                             newPosition).getPath());
                     parent.setTag(newPosition);
@@ -380,8 +384,9 @@ public class BookPlayFragment extends Fragment implements View.OnClickListener,
 
         getActivity().invalidateOptionsMenu();
 
-        communication.addOnBookContentChangedListener(this);
+        communication.addOnBookContentChangedListener(this, POSITION_INTERVAL_MS);
         communication.addOnPlayStateChangedListener(this);
+        communication.addOnPositionTickListener(this, POSITION_INTERVAL_MS);
         communication.addOnSleepStateChangedListener(this);
     }
 
@@ -391,6 +396,7 @@ public class BookPlayFragment extends Fragment implements View.OnClickListener,
 
         communication.removeOnBookContentChangedListener(this);
         communication.removeOnPlayStateChangedListener(this);
+        communication.removeOnPositionTickListener(this);
         communication.removeOnSleepStateChangedListener(this);
     }
 
@@ -422,13 +428,12 @@ public class BookPlayFragment extends Fragment implements View.OnClickListener,
         getActivity().runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                L.d(TAG, "onBookContentChangedReciever called with bookId=" + book.getId());
+                L.d(TAG, "onBookContentChangedReciever called with bookId={}", book.getId());
                 if (book.getId() == bookId) {
 
-                    List<Chapter> chapters = book.getChapters();
                     Chapter chapter = book.getCurrentChapter();
 
-                    int position = chapters.indexOf(chapter);
+                    int position = book.getCurrentChapterIndex();
                     /**
                      * Setting position as a tag, so we can make sure onItemSelected is only fired when
                      * the user changes the position himself.
@@ -450,6 +455,28 @@ public class BookPlayFragment extends Fragment implements View.OnClickListener,
         });
     }
 
+    @Override
+    public void onPositionTick(final long bookId, final int chapterIndex, final int time) {
+        if (bookId != this.bookId) {
+            return;
+        }
+        getActivity().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (bookSpinner.getTag() == null || (int) bookSpinner.getTag() != chapterIndex) {
+                    // the chapter has changed, which needs its duration
+                    Book book = db.getBook(bookId);
+                    if (book != null) {
+                        onBookContentChanged(book);
+                    }
+                } else if (!seekBar.isPressed()) {
+                    seekBar.setProgress(time);
+                    playedTimeView.setText(formatTime(time, seekBar.getMax()));
+                }
+            }
+        });
+    }
+
     @Override
     public void onPlayStateChanged() {
         getActivity().runOnUiThread(new Runnable() {
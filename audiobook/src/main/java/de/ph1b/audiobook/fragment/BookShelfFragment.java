@@ -31,8 +31,6 @@ import android.widget.ProgressBar;
 import com.afollestad.materialdialogs.MaterialDialog;
 import com.getbase.floatingactionbutton.FloatingActionButton;
 
-import java.util.List;
-
 import de.ph1b.audiobook.R;
 import de.ph1b.audiobook.activity.FolderOverviewActivity;
 import de.ph1b.audiobook.activity.SettingsActivity;
@@ -42,6 +40,7 @@ import de.ph1b.audiobook.dialog.EditBookDialogFragment;
 import de.ph1b.audiobook.mediaplayer.MediaPlayerController;
 import de.ph1b.audiobook.model.Book;
 import de.ph1b.audiobook.model.BookAdder;
+import de.ph1b.audiobook.model.BookSetChange;
 import de.ph1b.audiobook.model.DataBaseHelper;
 import de.ph1b.audiobook.service.ServiceController;
 import de.ph1b.audiobook.uitools.PlayPauseDrawable;
@@ -54,6 +53,10 @@ public class BookShelfFragment extends Fragment implements View.OnClickListener,
 
     public static final String TAG = BookShelfFragment.class.getSimpleName();
     private static final String RECYCLER_VIEW_STATE = "recyclerViewState";
+    /**
+     * The scanner changes the books in bursts, which are shown at most this often.
+     */
+    private static final long BOOKS_INTERVAL_MS = 500;
     private final PlayPauseDrawable playPauseDrawable = new PlayPauseDrawable();
     private final Communication communication = Communication.getInstance();
     private BookShelfAdapter adapter;
@@ -201,11 +204,12 @@ public class BookShelfFragment extends Fragment implements View.OnClickListener,
 
         // update items and set ui
         setPlayState(false);
-        onBookSetChanged(db.getActiveBooks());
+        adapter.newDataSet(db.getActiveBooks());
+        checkVisibilities();
 
         // register receivers
-        communication.addOnBookSetChangedListener(this);
-        communication.addOnCoverChangedListener(this);
+        communication.addOnBookSetChangedListener(this, BOOKS_INTERVAL_MS);
+        communication.addOnCoverChangedListener(this, BOOKS_INTERVAL_MS);
         communication.addOnCurrentBookIdChangedListener(this);
         communication.addOnPlayStateChangedListener(this);
         communication.addOnScannerStateChangedListener(this);
@@ -231,7 +235,7 @@ public class BookShelfFragment extends Fragment implements View.OnClickListener,
 
     private void checkVisibilities() {
         final boolean hideRecycler = adapter.getItemCount() == 0 && BookAdder.scannerActive;
-        L.v(TAG, "checkVisibilities hidesRecycler=" + hideRecycler);
+        L.v(TAG, "checkVisibilities hidesRecycler={}", hideRecycler);
         if (hideRecycler) {
             recyclerReplacementView.setVisibility(View.VISIBLE);
             recyclerView.setVisibility(View.GONE);
@@ -317,7 +321,7 @@ public class BookShelfFragment extends Fragment implements View.OnClickListener,
                 BookShelfAdapter.ViewHolder viewHolder = (BookShelfAdapter.ViewHolder) recyclerView
                         .findViewHolderForItemId(currentBook.getId());
                 if (viewHolder != null) {
-                    L.d(TAG, "Starting transition for book=" + currentBook.getName());
+                    L.d(TAG, "Starting transition for book={}", currentBook.getName());
                     ViewCompat.setTransitionName(viewHolder.coverView, getString(R.string.transition_cover));
                     ft.addSharedElement(viewHolder.coverView, getString(R.string.transition_cover));
                 } else {
@@ -353,12 +357,12 @@ public class BookShelfFragment extends Fragment implements View.OnClickListener,
     }
 
     @Override
-    public void onBookSetChanged(@NonNull final List<Book> activeBooks) {
-        L.v(TAG, "onBookSetChanged called");
+    public void onBookSetChanged(@NonNull final BookSetChange change) {
+        L.v(TAG, "onBookSetChanged called with {}", change);
         getActivity().runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                adapter.newDataSet(activeBooks);
+                adapter.apply(change);
                 checkVisibilities();
             }
         });
@@ -370,11 +374,9 @@ public class BookShelfFragment extends Fragment implements View.OnClickListener,
             @Override
             public void run() {
                 L.v(TAG, "onCoverChanged called");
-                SortedList<Book> sortedList = adapter.getSortedList();
-                for (int i = 0; i < sortedList.size(); i++) {
-                    if (adapter.getItemId(i) == bookId) {
-                        adapter.notifyItemChanged(i);
-                    }
+                int position = adapter.getPosition(bookId);
+                if (position != SortedList.INVALID_POSITION) {
+                    adapter.notifyItemChanged(position);
                 }
             }
         });
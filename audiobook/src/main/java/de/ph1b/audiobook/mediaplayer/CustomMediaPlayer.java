@@ -30,17 +30,47 @@ import org.vinuxproject.sonic.Sonic;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
+import de.ph1b.audiobook.utils.ExecutorRegistry;
 import de.ph1b.audiobook.utils.L;
 
 @TargetApi(16)
 public class CustomMediaPlayer implements MediaPlayerInterface {
     private static final String TAG = CustomMediaPlayer.class.getSimpleName();
+    private static final int NO_SEEK = -1;
     private final ReentrantLock lock = new ReentrantLock();
     private final Object decoderLock = new Object();
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ExecutorService executor = ExecutorRegistry.getInstance()
+            .newSerial(TAG + "Decoder", ExecutorRegistry.Priority.AUDIO);
+    /**
+     * Runs seeks and the completion listener, which must not run on the decoder thread.
+     */
+    private final ExecutorService commandExecutor = ExecutorRegistry.getInstance()
+            .newSerial(TAG + "Commands", ExecutorRegistry.Priority.AUDIO);
+    /**
+     * The position of the seek that has not been done yet, or {@link #NO_SEEK}. A newer seek
+     * replaces it, so scrubbing ends in a single seek.
+     */
+    private final AtomicInteger pendingSeek = new AtomicInteger(NO_SEEK);
+    private final Runnable seekRunnable = new Runnable() {
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                int ms = pendingSeek.getAndSet(NO_SEEK);
+                if (ms != NO_SEEK && track != null) {
+                    track.flush();
+                    flushCodec = true;
+                    long to = ((long) ms * 1000);
+                    extractor.seekTo(to, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    };
     private PowerManager.WakeLock wakeLock = null;
     private AudioTrack track;
     private Sonic sonic;
@@ -63,7 +93,7 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
 
     @Override
     public void start() {
-        L.v(TAG, "start called in state:" + state);
+        L.v(TAG, "start called in state:{}", state);
         switch (state) {
             case PLAYBACK_COMPLETED:
                 try {
@@ -73,7 +103,7 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
                 }
             case PREPARED:
                 state = State.STARTED;
-                L.d(TAG, "State changed to: " + state);
+                L.d(TAG, "State changed to: {}", state);
                 continuing = true;
                 track.play();
                 decode();
@@ -83,7 +113,7 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
                 break;
             case PAUSED:
                 state = State.STARTED;
-                L.d(TAG, "State changed to: " + state);
+                L.d(TAG, "State changed to: {}", state);
                 synchronized (decoderLock) {
                     decoderLock.notify();
                 }
@@ -98,11 +128,13 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
 
     @Override
     public void reset() {
-        L.v(TAG, "reset called in state: " + state);
+        L.v(TAG, "reset called in state: {}", state);
         stayAwake(false);
         lock.lock();
         try {
             continuing = false;
+            // a seek in the old file must not be done in the next one
+            pendingSeek.set(NO_SEEK);
             try {
                 if (decoderRunnable != null && state != State.PLAYBACK_COMPLETED) {
                     while (isDecoding) {
@@ -129,7 +161,7 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
                 track = null;
             }
             state = State.IDLE;
-            L.d(TAG, "State changed to: " + state);
+            L.d(TAG, "State changed to: {}", state);
         } finally {
             lock.unlock();
         }
@@ -137,13 +169,13 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
 
     @Override
     public void prepare() throws IOException {
-        L.v(TAG, "prepare called in state: " + state);
+        L.v(TAG, "prepare called in state: {}", state);
         switch (state) {
             case INITIALIZED:
             case STOPPED:
                 initStream();
                 state = State.PREPARED;
-                L.d(TAG, "State changed to: " + state);
+                L.d(TAG, "State changed to: {}", state);
                 break;
             default:
                 error("prepare", state);
@@ -151,30 +183,16 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
     }
 
     @Override
-    public void seekTo(final int ms) {
+    public void seekTo(int ms) {
         switch (state) {
             case PREPARED:
             case STARTED:
             case PAUSED:
             case PLAYBACK_COMPLETED:
-                Thread t = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        lock.lock();
-                        try {
-                            if (track != null) {
-                                track.flush();
-                                flushCodec = true;
-                                long to = ((long) ms * 1000);
-                                extractor.seekTo(to, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-                            }
-                        } finally {
-                            lock.unlock();
-                        }
-                    }
-                });
-                t.setDaemon(true);
-                t.start();
+                // only schedules the seek if none is waiting, else it just replaces the position
+                if (pendingSeek.getAndSet(Math.max(0, ms)) == NO_SEEK) {
+                    commandExecutor.execute(seekRunnable);
+                }
                 break;
             default:
                 error("seekTo", state);
@@ -193,6 +211,10 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
             case IDLE:
                 return 0;
             default:
+                int seek = pendingSeek.get();
+                if (seek != NO_SEEK) {
+                    return seek;
+                }
                 return (int) (extractor.getSampleTime() / 1000);
         }
     }
@@ -203,14 +225,14 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
         switch (state) {
             case PLAYBACK_COMPLETED:
                 state = State.PAUSED;
-                L.d(TAG, "State changed to: " + state);
+                L.d(TAG, "State changed to: {}", state);
                 stayAwake(false);
                 break;
             case STARTED:
             case PAUSED:
                 track.pause();
                 state = State.PAUSED;
-                L.d(TAG, "State changed to: " + state);
+                L.d(TAG, "State changed to: {}", state);
                 stayAwake(false);
                 break;
             default:
@@ -230,12 +252,12 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
 
     @Override
     public void setDataSource(String path) {
-        L.d(TAG, "setDataSource: " + path);
+        L.d(TAG, "setDataSource: {}", path);
         switch (state) {
             case IDLE:
                 this.path = path;
                 state = State.INITIALIZED;
-                L.d(TAG, "State changed to: " + state);
+                L.d(TAG, "State changed to: {}", state);
                 break;
             default:
                 error("setDataSource", state);
@@ -265,7 +287,7 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
     }
 
     private void initStream() throws IOException, IllegalArgumentException {
-        L.v(TAG, "initStream called in state=" + state);
+        L.v(TAG, "initStream called in state={}", state);
         lock.lock();
         try {
             extractor = new MediaExtractor();
@@ -302,8 +324,8 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
             }
             duration = oFormat.getLong(MediaFormat.KEY_DURATION);
 
-            L.v(TAG, "Sample rate: " + sampleRate);
-            L.v(TAG, "Mime type: " + mime);
+            L.v(TAG, "Sample rate: {}", sampleRate);
+            L.v(TAG, "Mime type: {}", mime);
             initDevice(sampleRate, channelCount);
             extractor.selectTrack(trackNum);
             codec = MediaCodec.createDecoderByType(mime);
@@ -321,7 +343,7 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
     }
 
     private void initDevice(int sampleRate, int numChannels) {
-        L.d(TAG, "initDevice called in state:" + state);
+        L.d(TAG, "initDevice called in state:{}", state);
         lock.lock();
         try {
             final int format = findFormatFromChannels(numChannels);
@@ -365,7 +387,7 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
     }
 
     private void decode() {
-        L.d(TAG, "decode called ins state=" + state);
+        L.d(TAG, "decode called ins state={}", state);
         decoderRunnable = new Runnable() {
             @Override
             public void run() {
@@ -470,8 +492,8 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
                 isDecoding = false;
                 if (continuing && (sawInputEOS || sawOutputEOS)) {
                     state = State.PLAYBACK_COMPLETED;
-                    L.d(TAG, "State changed to: " + state);
-                    Thread t = new Thread(new Runnable() {
+                    L.d(TAG, "State changed to: {}", state);
+                    commandExecutor.execute(new Runnable() {
                         @Override
                         public void run() {
                             if (onCompletionListener != null) {
@@ -480,8 +502,6 @@ public class CustomMediaPlayer implements MediaPlayerInterface {
                             stayAwake(false);
                         }
                     });
-                    t.setDaemon(true);
-                    t.start();
                 }
                 synchronized (decoderLock) {
                     decoderLock.notifyAll();
@@ -11,7 +11,6 @@ import android.support.annotation.Nullable;
 import net.jcip.annotations.GuardedBy;
 
 import java.io.IOException;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -19,9 +18,11 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import de.ph1b.audiobook.activity.BookActivity;
 import de.ph1b.audiobook.model.Book;
+import de.ph1b.audiobook.model.BookRepository;
 import de.ph1b.audiobook.model.Chapter;
 import de.ph1b.audiobook.model.DataBaseHelper;
 import de.ph1b.audiobook.utils.Communication;
+import de.ph1b.audiobook.utils.ExecutorRegistry;
 import de.ph1b.audiobook.utils.L;
 import de.ph1b.audiobook.utils.PrefsManager;
 import de.ph1b.audiobook.utils.Validate;
@@ -36,9 +37,9 @@ public class MediaPlayerController implements MediaPlayer.OnErrorListener,
     private static volatile PlayState playState = PlayState.STOPPED;
     private final Context c;
     private final ReentrantLock lock = new ReentrantLock();
-    private final PrefsManager prefs;
-    private final DataBaseHelper db;
-    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+    private final BookRepository db;
+    private final ScheduledExecutorService executor = ExecutorRegistry.getInstance()
+            .newScheduled(TAG, ExecutorRegistry.Priority.FOREGROUND, 2);
     @GuardedBy("lock")
     private final MediaPlayerInterface player;
     private final Communication communication = Communication.getInstance();
@@ -51,17 +52,26 @@ public class MediaPlayerController implements MediaPlayer.OnErrorListener,
     private volatile int prepareTries = 0;
 
     public MediaPlayerController(@NonNull final Context c) {
+        this(c, DataBaseHelper.getInstance(c));
+    }
+
+    /**
+     * @param db the repository the positions are written to
+     */
+    public MediaPlayerController(@NonNull final Context c, @NonNull BookRepository db) {
+        this(c, db, canSetSpeed() ? new CustomMediaPlayer() : new AndroidMediaPlayer());
+    }
+
+    /**
+     * @param player the player to play with, chosen by {@link #canSetSpeed()} otherwise
+     */
+    MediaPlayerController(@NonNull final Context c, @NonNull BookRepository db,
+                          @NonNull MediaPlayerInterface player) {
         lock.lock();
         try {
             this.c = c;
-            prefs = PrefsManager.getInstance(c);
-            db = DataBaseHelper.getInstance(c);
-
-            if (canSetSpeed()) {
-                player = new CustomMediaPlayer();
-            } else {
-                player = new AndroidMediaPlayer();
-            }
+            this.db = db;
+            this.player = player;
             state = State.IDLE;
             setPlayState(PlayState.STOPPED);
         } finally {
@@ -198,20 +208,28 @@ public class MediaPlayerController implements MediaPlayer.OnErrorListener,
             updater = executor.scheduleAtFixedRate(new Runnable() {
                 @Override
                 public void run() {
-                    lock.lock();
-                    try {
-                        if (book != null) {
-                            book.setPosition(player.getCurrentPosition(), book.getCurrentMediaPath());
-                            db.updateBook(book);
-                        }
-                    } finally {
-                        lock.unlock();
-                    }
+                    savePosition();
                 }
             }, 0, 1, TimeUnit.SECONDS);
         }
     }
 
+    /**
+     * Takes the position from the player and writes it to the repository. Called every second
+     * while playing.
+     */
+    void savePosition() {
+        lock.lock();
+        try {
+            if (book != null) {
+                book = book.withPosition(player.getCurrentPosition(), book.getCurrentMediaPath());
+                db.updatePosition(book.getId(), book.getTime(), book.getCurrentMediaPath());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Skips by the amount, specified in the settings.
      *
@@ -219,23 +237,20 @@ public class MediaPlayerController implements MediaPlayer.OnErrorListener,
      */
     public void skip(Direction direction) {
         final String TAG = MediaPlayerController.TAG + ":skip()";
-        L.v(TAG, "direction=" + direction);
+        L.v(TAG, "direction={}", direction);
         lock.lock();
         try {
             if (book != null) {
-                final int currentPos = player.getCurrentPosition();
-                final int duration = player.getDuration();
-                final int delta = prefs.getSeekTime() * 1000;
+                final long currentPos = getBookPosition();
+                final long duration = getBookDuration();
+                final int delta = PrefsManager.getInstance(c).getSeekTime() * 1000;
 
-                final int seekTo = (direction == Direction.FORWARD) ? currentPos + delta : currentPos - delta;
-                L.v(TAG, "currentPos=" + currentPos + ",seekTo=" + seekTo + ",duration=" + duration);
+                final long seekTo = (direction == Direction.FORWARD) ? currentPos + delta : currentPos - delta;
+                L.v(TAG, "currentPos={},seekTo={},duration={}", currentPos, seekTo, duration);
 
-                if (seekTo < 0) {
-                    previous(false);
-                } else if (seekTo > duration) {
-                    next();
-                } else {
-                    changePosition(seekTo, book.getCurrentMediaPath());
+                // skipping across chapters lands at the same distance in the next or previous one
+                if (seekTo <= duration) {
+                    seekToBookPosition(seekTo);
                 }
             }
         } finally {
@@ -243,6 +258,58 @@ public class MediaPlayerController implements MediaPlayer.OnErrorListener,
         }
     }
 
+    /**
+     * Seeks to a position within the whole book and changes the chapter if necessary.
+     *
+     * @param position The position in ms. It is limited to the book.
+     */
+    public void seekToBookPosition(long position) {
+        lock.lock();
+        try {
+            if (book != null) {
+                changePosition(book.withGlobalPosition(position));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The position within the whole book in ms, or 0 if there is no book.
+     */
+    public long getBookPosition() {
+        lock.lock();
+        try {
+            if (book == null) {
+                return 0;
+            }
+            switch (state) {
+                case PREPARED:
+                case STARTED:
+                case PAUSED:
+                case PLAYBACK_COMPLETED:
+                    long chapterStart = book.getGlobalPosition() - book.getTime();
+                    return chapterStart + player.getCurrentPosition();
+                default:
+                    return book.getGlobalPosition();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The duration of the whole book in ms, or 0 if there is no book.
+     */
+    public long getBookDuration() {
+        lock.lock();
+        try {
+            return book == null ? 0 : book.getGlobalDuration();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * If current time is > 2000ms, seek to 0. Else play previous chapter if there is one.
      */
@@ -252,14 +319,15 @@ public class MediaPlayerController implements MediaPlayer.OnErrorListener,
             if (book != null) {
                 if (player.getCurrentPosition() > 2000 || book.getPreviousChapter() == null) {
                     player.seekTo(0);
-                    book.setPosition(0, book.getCurrentMediaPath());
-                    db.updateBook(book);
+                    book = book.withPosition(0, book.getCurrentMediaPath());
+                    db.updatePosition(book.getId(), book.getTime(), book.getCurrentMediaPath());
                 } else {
                     if (toNullOfNewTrack) {
                         changePosition(0, book.getPreviousChapter().getPath());
                     } else {
                         changePosition(book.getPreviousChapter().getDuration() -
-                                (prefs.getSeekTime() * 1000), book.getPreviousChapter().getPath());
+                                (PrefsManager.getInstance(c).getSeekTime() * 1000),
+                                book.getPreviousChapter().getPath());
                     }
                 }
             }
@@ -319,7 +387,7 @@ public class MediaPlayerController implements MediaPlayer.OnErrorListener,
      * Turns the sleep timer on or off.
      */
     public void toggleSleepSand() {
-        L.i(TAG, "toggleSleepSand. Old state was:" + sleepSandActive());
+        L.i(TAG, "toggleSleepSand. Old state was:{}", sleepSandActive());
         lock.lock();
         try {
             if (sleepSandActive()) {
@@ -328,7 +396,7 @@ public class MediaPlayerController implements MediaPlayer.OnErrorListener,
                 sleepTimerActive = false;
             } else {
                 L.i(TAG, "preparing new sleep sand");
-                final int minutes = prefs.getSleepTime();
+                final int minutes = PrefsManager.getInstance(c).getSleepTime();
                 sleepTimerActive = true;
                 sleepSand = executor.schedule(new Runnable() {
                     @Override
@@ -364,22 +432,22 @@ public class MediaPlayerController implements MediaPlayer.OnErrorListener,
     public void pause() {
         lock.lock();
         try {
-            L.v(TAG, "pause acquired lock. state is=" + state);
+            L.v(TAG, "pause acquired lock. state is={}", state);
             if (book != null) {
                 switch (state) {
                     case STARTED:
                         player.pause();
                         stopUpdating();
 
-                        final int autoRewind = prefs.getAutoRewindAmount() * 1000;
+                        final int autoRewind = PrefsManager.getInstance(c).getAutoRewindAmount() * 1000;
                         if (autoRewind != 0) {
                             int originalPosition = player.getCurrentPosition();
                             int seekTo = originalPosition - autoRewind;
                             if (seekTo < 0) seekTo = 0;
                             player.seekTo(seekTo);
-                            book.setPosition(seekTo, book.getCurrentMediaPath());
+                            book = book.withPosition(seekTo, book.getCurrentMediaPath());
                         }
-                        db.updateBook(book);
+                        db.updatePosition(book.getId(), book.getTime(), book.getCurrentMediaPath());
 
                         setPlayState(PlayState.PAUSED);
 
@@ -423,7 +491,7 @@ public class MediaPlayerController implements MediaPlayer.OnErrorListener,
         lock.lock();
         try {
             if (book != null) {
-                L.v(TAG, "onCompletion called, nextChapter=" + book.getNextChapter());
+                L.v(TAG, "onCompletion called, nextChapter={}", book.getNextChapter());
                 if (book.getNextChapter() != null) {
                     next();
                 } else {
@@ -464,17 +532,34 @@ public class MediaPlayerController implements MediaPlayer.OnErrorListener,
      * @param path The path of the media to play (relative to the books root path)
      */
     public void changePosition(int time, String path) {
+        lock.lock();
+        try {
+            L.v(TAG, "time={}, relPath={}", time, path);
+            if (book != null) {
+                changePosition(book.withPosition(time, path));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves to the position of a book, which is the current book with a changed position.
+     *
+     * @param target The current book at its new position
+     */
+    private void changePosition(@NonNull Book target) {
         final String TAG = MediaPlayerController.TAG + ":changePosition()";
         lock.lock();
         try {
-            L.v(TAG, "time=" + time + ", relPath=" + path);
             if (book != null) {
-                boolean changeFile = (!book.getCurrentChapter().getPath().equals(path));
-                L.v(TAG, "changeFile=" + changeFile);
+                int time = target.getTime();
+                boolean changeFile = target.getCurrentChapterIndex() != book.getCurrentChapterIndex();
+                L.v(TAG, "changeFile={}", changeFile);
                 if (changeFile) {
                     boolean wasPlaying = (state == State.STARTED);
-                    book.setPosition(time, path);
-                    db.updateBook(book);
+                    book = target;
+                    db.updatePosition(book.getId(), book.getTime(), book.getCurrentMediaPath());
                     prepare();
                     if (wasPlaying) {
                         player.start();
@@ -491,8 +576,8 @@ public class MediaPlayerController implements MediaPlayer.OnErrorListener,
                         case PAUSED:
                         case PLAYBACK_COMPLETED:
                             player.seekTo(time);
-                            book.setPosition(time, book.getCurrentChapter().getPath());
-                            db.updateBook(book);
+                            book = target;
+                            db.updatePosition(book.getId(), book.getTime(), book.getCurrentMediaPath());
                             break;
                         default:
                             L.e(TAG, "changePosition called in illegal state:" + state);
@@ -523,7 +608,7 @@ public class MediaPlayerController implements MediaPlayer.OnErrorListener,
         lock.lock();
         try {
             if (book != null) {
-                book.setPlaybackSpeed(speed);
+                book = book.withPlaybackSpeed(speed);
                 db.updateBook(book);
                 if (state != State.DEAD) {
                     player.setPlaybackSpeed(speed);
@@ -1,70 +1,61 @@
 package de.ph1b.audiobook.model;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.os.Environment;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.google.common.collect.ImmutableList;
+
+import net.jcip.annotations.Immutable;
+
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import de.ph1b.audiobook.utils.Validate;
 
 
+/**
+ * An immutable audio book. All modifications are made through the <code>with*</code> methods,
+ * which return a new book sharing the unchanged chapter and bookmark lists with this one. So a
+ * book can be passed around and kept as a snapshot without copying it.
+ */
+@Immutable
 public class Book implements Comparable<Book> {
 
     public static final String TAG = Book.class.getSimpleName();
     public static final long ID_UNKNOWN = -1;
     @NonNull
     private final String root;
+    /**
+     * The interned prefix the chapter paths are relative to.
+     */
     @NonNull
-    private final List<Chapter> chapters;
+    private final String prefix;
+    @NonNull
+    private final ChapterTable chapters;
     @NonNull
     private final Type type;
     @NonNull
     private final String packageName;
     @NonNull
-    private final List<Bookmark> bookmarks;
+    private final ImmutableList<Bookmark> bookmarks;
     @Nullable
     private final String author;
-    private long id = ID_UNKNOWN;
+    private final long id;
     @NonNull
-    private String name;
-    private int time = 0;
-    private float playbackSpeed = 1.0f;
+    private final String name;
+    private final int time;
+    private final float playbackSpeed;
     @NonNull
-    private String currentMediaPath;
-    private boolean useCoverReplacement = false;
-
-    public Book(Book that) {
-        new Validate().notNull(that.root, that.name, that.chapters, that.currentMediaPath, that.type)
-                .notEmpty(that.root, that.name)
-                .notEmpty(that.chapters);
-
-        this.id = that.id;
-        this.root = that.root;
-        List<Chapter> copyChapters = new ArrayList<>();
-        for (Chapter c : that.chapters) {
-            copyChapters.add(new Chapter(c));
-        }
-        this.chapters = copyChapters;
-        this.type = Type.valueOf(that.type.name());
-        this.packageName = that.packageName;
-        List<Bookmark> copyBookmarks = new ArrayList<>();
-        for (Bookmark b : that.bookmarks) {
-            copyBookmarks.add(new Bookmark(b));
-        }
-        this.bookmarks = copyBookmarks;
-        this.name = that.name;
-        this.author = that.author;
-        this.time = that.time;
-        this.playbackSpeed = that.playbackSpeed;
-        this.currentMediaPath = that.currentMediaPath;
-        this.useCoverReplacement = that.useCoverReplacement;
-    }
-
+    private final String currentMediaPath;
+    private final boolean useCoverReplacement;
+    /**
+     * The index of the chapter at {@link #currentMediaPath}.
+     */
+    private final int currentIndex;
 
     public Book(@NonNull String root,
                 @NonNull String name,
@@ -75,40 +66,170 @@ public class Book implements Comparable<Book> {
                 @NonNull Type type,
                 @NonNull List<Bookmark> bookmarks,
                 @NonNull Context c) {
-        new Validate().notNull(root, name, chapters, currentMediaPath, type)
+        this(ID_UNKNOWN, root, Chapter.prefixOf(root), name, author, chapters, currentMediaPath, -1, type,
+                ImmutableList.copyOf(bookmarks), c.getPackageName(), 0, 1.0f, false);
+    }
+
+    Book(long id,
+         @NonNull String root,
+         @NonNull String name,
+         @Nullable String author,
+         @NonNull ChapterTable chapters,
+         @NonNull String currentMediaPath,
+         @NonNull Type type,
+         @NonNull ImmutableList<Bookmark> bookmarks,
+         @NonNull String packageName,
+         int time,
+         float playbackSpeed,
+         boolean useCoverReplacement) {
+        this(id, root, Chapter.prefixOf(root), name, author, chapters, currentMediaPath, -1, type, bookmarks,
+                packageName, time, playbackSpeed, useCoverReplacement);
+    }
+
+    /**
+     * @param prefix           the prefix of the root, as returned by {@link Chapter#prefixOf(String)}.
+     *                         Copies pass on their own, so it is only computed once per root.
+     * @param currentIndexHint the probable index of the current chapter, or -1 if unknown. Saves
+     *                         searching the chapters when it is right.
+     */
+    private Book(long id,
+                 @NonNull String root,
+                 @NonNull String prefix,
+                 @NonNull String name,
+                 @Nullable String author,
+                 @NonNull List<Chapter> chapters,
+                 @NonNull String currentMediaPath,
+                 int currentIndexHint,
+                 @NonNull Type type,
+                 @NonNull ImmutableList<Bookmark> bookmarks,
+                 @NonNull String packageName,
+                 int time,
+                 float playbackSpeed,
+                 boolean useCoverReplacement) {
+        new Validate().notNull(root, name, chapters, currentMediaPath, type, bookmarks, packageName)
                 .notEmpty(root, name)
                 .notEmpty(chapters);
 
+        this.id = id;
         this.root = root;
+        this.prefix = prefix;
         this.name = name;
         this.author = author;
-        this.chapters = chapters;
+        this.chapters = ChapterTable.copyOf(prefix, chapters);
+        this.currentIndex = this.chapters.indexOfPath(currentMediaPath, currentIndexHint);
+        if (currentIndex == -1) {
+            throw new IllegalArgumentException("Creating book with name=" + name +
+                    " failed because currentMediaPath=" + currentMediaPath +
+                    " does not exist in chapters");
+        }
+        this.currentMediaPath = currentMediaPath;
         this.type = type;
         this.bookmarks = bookmarks;
-        this.packageName = c.getPackageName();
-        setPosition(0, currentMediaPath);
-        this.currentMediaPath = currentMediaPath;
+        this.packageName = packageName;
+        this.time = time;
+        this.playbackSpeed = playbackSpeed;
+        this.useCoverReplacement = useCoverReplacement;
     }
 
-    public ContentValues getContentValues() {
-        ContentValues bookCv = new ContentValues();
-        bookCv.put(DataBaseHelper.BOOK_NAME, name);
-        bookCv.put(DataBaseHelper.BOOK_AUTHOR, author);
-        bookCv.put(DataBaseHelper.BOOK_ACTIVE, 1);
-        bookCv.put(DataBaseHelper.BOOK_CURRENT_MEDIA_PATH, currentMediaPath);
-        bookCv.put(DataBaseHelper.BOOK_PLAYBACK_SPEED, playbackSpeed);
-        bookCv.put(DataBaseHelper.BOOK_ROOT, root);
-        bookCv.put(DataBaseHelper.BOOK_TIME, time);
-        bookCv.put(DataBaseHelper.BOOK_TYPE, type.name());
-        bookCv.put(DataBaseHelper.BOOK_USE_COVER_REPLACEMENT, useCoverReplacement);
-        return bookCv;
+    /**
+     * @return the interned prefix of the chapter paths, which is the root followed by a separator.
+     */
+    @NonNull
+    String getPathPrefix() {
+        return prefix;
     }
 
+    /**
+     * @return the bookmarks of this book, sorted by {@link NaturalBookmarkComparator}. The list is
+     * immutable.
+     */
     @NonNull
     public List<Bookmark> getBookmarks() {
         return bookmarks;
     }
 
+    /**
+     * @param bookmarks the new bookmarks
+     * @return a copy of this book with the bookmarks replaced.
+     */
+    @NonNull
+    public Book withBookmarks(@NonNull List<Bookmark> bookmarks) {
+        return new Book(id, root, prefix, name, author, chapters, currentMediaPath, currentIndex, type,
+                ImmutableList.copyOf(bookmarks), packageName, time, playbackSpeed, useCoverReplacement);
+    }
+
+    /**
+     * @param bookmarks the new bookmarks, in any order. Bookmarks whose chapter is not one of
+     *                  {@link #getChapters()} are dropped.
+     * @return a copy of this book with the bookmarks replaced and sorted by
+     * {@link NaturalBookmarkComparator}.
+     */
+    @NonNull
+    Book withSortedBookmarks(@NonNull List<Bookmark> bookmarks) {
+        List<Bookmark> sorted = new ArrayList<>(bookmarks.size());
+        for (Bookmark b : bookmarks) {
+            if (indexOfChapter(b.getMediaPath()) != -1) {
+                sorted.add(b);
+            }
+        }
+        Collections.sort(sorted, new NaturalBookmarkComparator(chapters));
+        return withBookmarks(sorted);
+    }
+
+    /**
+     * The bookmarks are kept sorted, so the bookmark is inserted at its place instead of sorting
+     * all of them again.
+     *
+     * @param bookmark the bookmark to add. Its chapter must be one of {@link #getChapters()}.
+     * @return a copy of this book with the bookmark added.
+     */
+    @NonNull
+    Book withBookmark(@NonNull Bookmark bookmark) {
+        if (indexOfChapter(bookmark.getMediaPath()) == -1) {
+            throw new IllegalArgumentException("bookmark=" + bookmark + " does not belong to book=" + name);
+        }
+        int index = Collections.binarySearch(bookmarks, bookmark, new NaturalBookmarkComparator(chapters));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return withBookmarks(ImmutableList.<Bookmark>builder()
+                .addAll(bookmarks.subList(0, index))
+                .add(bookmark)
+                .addAll(bookmarks.subList(index, bookmarks.size()))
+                .build());
+    }
+
+    /**
+     * @param bookmarkId the id of the bookmark to remove
+     * @return a copy of this book without the bookmark, or this book if it has no bookmark with
+     * the id.
+     */
+    @NonNull
+    Book withoutBookmark(long bookmarkId) {
+        int index = indexOfBookmark(bookmarkId);
+        if (index == -1) {
+            return this;
+        }
+        return withBookmarks(ImmutableList.<Bookmark>builder()
+                .addAll(bookmarks.subList(0, index))
+                .addAll(bookmarks.subList(index + 1, bookmarks.size()))
+                .build());
+    }
+
+    /**
+     * @param bookmarkId the id of a bookmark
+     * @return the index of the bookmark in {@link #getBookmarks()}, or -1 if there is none with
+     * the id.
+     */
+    public int indexOfBookmark(long bookmarkId) {
+        for (int i = 0; i < bookmarks.size(); i++) {
+            if (bookmarks.get(i).getId() == bookmarkId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
 
     @NonNull
     public File getCoverFile() {
@@ -127,29 +248,40 @@ public class Book implements Comparable<Book> {
         return type;
     }
 
-    public void setPosition(int time, @NonNull String currentMediaPath) {
-        boolean relativeMediaPathExists = false;
-        for (Chapter c : chapters) {
-            if (c.getPath().equals(currentMediaPath)) {
-                relativeMediaPathExists = true;
-            }
-        }
-        if (!relativeMediaPathExists) {
-            throw new IllegalArgumentException("Creating book with name=" + name +
-                    " failed because currentMediaPath=" + currentMediaPath +
-                    " does not exist in chapters");
-        }
+    /**
+     * @param time             the time within the chapter
+     * @param currentMediaPath the path of the chapter. Must be one of {@link #getChapters()}.
+     * @return a copy of this book with the position changed.
+     */
+    @NonNull
+    public Book withPosition(int time, @NonNull String currentMediaPath) {
+        return new Book(id, root, prefix, name, author, chapters, currentMediaPath, currentIndex, type,
+                bookmarks, packageName, time, playbackSpeed, useCoverReplacement);
+    }
 
-        this.time = time;
-        this.currentMediaPath = currentMediaPath;
+    /**
+     * Replaces the chapters. As the current chapter may no longer exist, a new position must be
+     * set at the same time.
+     *
+     * @param chapters         the new chapters
+     * @param time             the time within the chapter
+     * @param currentMediaPath the path of the chapter. Must be one of the new chapters.
+     * @return a copy of this book with the chapters and position changed.
+     */
+    @NonNull
+    public Book withChapters(@NonNull List<Chapter> chapters, int time, @NonNull String currentMediaPath) {
+        return new Book(id, root, prefix, name, author, chapters, currentMediaPath, -1, type,
+                bookmarks, packageName, time, playbackSpeed, useCoverReplacement);
     }
 
     public boolean isUseCoverReplacement() {
         return useCoverReplacement;
     }
 
-    public void setUseCoverReplacement(boolean useCoverReplacement) {
-        this.useCoverReplacement = useCoverReplacement;
+    @NonNull
+    public Book withUseCoverReplacement(boolean useCoverReplacement) {
+        return new Book(id, root, prefix, name, author, chapters, currentMediaPath, currentIndex, type,
+                bookmarks, packageName, time, playbackSpeed, useCoverReplacement);
     }
 
 
@@ -220,7 +352,6 @@ public class Book implements Comparable<Book> {
 
     @Nullable
     public Chapter getNextChapter() {
-        int currentIndex = chapters.indexOf(getCurrentChapter());
         if (currentIndex < chapters.size() - 1) {
             return chapters.get(currentIndex + 1);
         }
@@ -229,24 +360,69 @@ public class Book implements Comparable<Book> {
 
     @NonNull
     public Chapter getCurrentChapter() {
-        for (Chapter c : chapters) {
-            if (c.getPath().equals(currentMediaPath)) {
-                return c;
-            }
-        }
-        throw new IllegalArgumentException("getCurrentChapter has no valid id with" +
-                " currentMediaPath=" + currentMediaPath);
+        return chapters.get(currentIndex);
+    }
+
+    /**
+     * @return the index of {@link #getCurrentChapter()} in {@link #getChapters()}.
+     */
+    public int getCurrentChapterIndex() {
+        return currentIndex;
+    }
+
+    /**
+     * @param path the absolute path of a chapter
+     * @return the index of the chapter in {@link #getChapters()}, or -1 if there is none with the
+     * path.
+     */
+    public int indexOfChapter(@NonNull String path) {
+        return chapters.indexOfPath(path, currentIndex);
     }
 
     @Nullable
     public Chapter getPreviousChapter() {
-        int currentIndex = chapters.indexOf(getCurrentChapter());
         if (currentIndex > 0) {
             return chapters.get(currentIndex - 1);
         }
         return null;
     }
 
+    /**
+     * @return the position within the whole book, in ms.
+     */
+    public long getGlobalPosition() {
+        return chapters.getStart(currentIndex) + time;
+    }
+
+    /**
+     * @return the duration of the whole book, in ms.
+     */
+    public long getGlobalDuration() {
+        return chapters.getTotalDuration();
+    }
+
+    /**
+     * @return the share of the book that has been listened to, from 0 to 1.
+     */
+    public float getProgress() {
+        long duration = getGlobalDuration();
+        return duration == 0 ? 0 : (float) getGlobalPosition() / duration;
+    }
+
+    /**
+     * @param position the position within the whole book, in ms. It is limited to the book.
+     * @return a copy of this book with the position changed to the chapter and time the global
+     * position falls into.
+     */
+    @NonNull
+    public Book withGlobalPosition(long position) {
+        long limited = Math.max(0, Math.min(position, chapters.getTotalDuration()));
+        int index = chapters.indexAt(limited);
+        int time = (int) (limited - chapters.getStart(index));
+        return new Book(id, root, prefix, name, author, chapters, chapters.get(index).getPath(), index, type,
+                bookmarks, packageName, time, playbackSpeed, useCoverReplacement);
+    }
+
     public int getTime() {
         return time;
     }
@@ -256,20 +432,27 @@ public class Book implements Comparable<Book> {
         return name;
     }
 
-    public void setName(@NonNull String name) {
+    @NonNull
+    public Book withName(@NonNull String name) {
         new Validate().notNull(name)
                 .notEmpty(name);
-        this.name = name;
+        return new Book(id, root, prefix, name, author, chapters, currentMediaPath, currentIndex, type,
+                bookmarks, packageName, time, playbackSpeed, useCoverReplacement);
     }
 
     public long getId() {
         return id;
     }
 
-    public void setId(long id) {
-        this.id = id;
+    @NonNull
+    public Book withId(long id) {
+        return new Book(id, root, prefix, name, author, chapters, currentMediaPath, currentIndex, type,
+                bookmarks, packageName, time, playbackSpeed, useCoverReplacement);
     }
 
+    /**
+     * @return the chapters of this book. The list is immutable.
+     */
     @NonNull
     public List<Chapter> getChapters() {
         return chapters;
@@ -279,8 +462,10 @@ public class Book implements Comparable<Book> {
         return playbackSpeed;
     }
 
-    public void setPlaybackSpeed(float playbackSpeed) {
-        this.playbackSpeed = playbackSpeed;
+    @NonNull
+    public Book withPlaybackSpeed(float playbackSpeed) {
+        return new Book(id, root, prefix, name, author, chapters, currentMediaPath, currentIndex, type,
+                bookmarks, packageName, time, playbackSpeed, useCoverReplacement);
     }
 
     @NonNull
@@ -300,4 +485,3 @@ public class Book implements Comparable<Book> {
         SINGLE_FILE,
     }
 }
-
@@ -7,9 +7,6 @@ import android.media.MediaMetadataRetriever;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
-import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import com.squareup.picasso.Picasso;
 
@@ -18,16 +15,16 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
-import de.ph1b.audiobook.activity.BaseActivity;
 import de.ph1b.audiobook.uitools.ImageHelper;
 import de.ph1b.audiobook.utils.Communication;
+import de.ph1b.audiobook.utils.ExecutorRegistry;
 import de.ph1b.audiobook.utils.FileRecognition;
 import de.ph1b.audiobook.utils.L;
-import de.ph1b.audiobook.utils.PrefsManager;
 
 
 /**
@@ -42,17 +39,27 @@ public class BookAdder {
     private static BookAdder instance;
 
 
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ExecutorService executor = ExecutorRegistry.getInstance()
+            .newSerial(TAG, ExecutorRegistry.Priority.BACKGROUND);
     private final Context c;
-    private final PrefsManager prefs;
-    private final DataBaseHelper db;
+    private final ScanSource source;
+    private final BookRepository db;
     private final Communication communication = Communication.getInstance();
     private volatile boolean stopScanner = false;
 
     private BookAdder(@NonNull Context c) {
+        this(c, new DeviceScanSource(c), DataBaseHelper.getInstance(c));
+    }
+
+    /**
+     * @param source where the folders and the tags are read from
+     * @param db     the repository the books are stored in. {@link #getInstance(Context)} uses the
+     *               {@link DataBaseHelper}.
+     */
+    BookAdder(@NonNull Context c, @NonNull ScanSource source, @NonNull BookRepository db) {
         this.c = c;
-        prefs = PrefsManager.getInstance(c);
-        db = DataBaseHelper.getInstance(c);
+        this.source = source;
+        this.db = db;
     }
 
     public static synchronized BookAdder getInstance(Context c) {
@@ -71,7 +78,7 @@ public class BookAdder {
     private void checkForBooks() throws InterruptedException {
         List<File> singleBooks = getSingleBookFiles();
         for (File f : singleBooks) {
-            L.d(TAG, "checkForBooks with singleBookFile=" + f);
+            L.d(TAG, "checkForBooks with singleBookFile={}", f);
             if (f.isFile() && f.canRead()) {
                 checkBook(f, Book.Type.SINGLE_FILE);
             } else if (f.isDirectory() && f.canRead()) {
@@ -81,7 +88,7 @@ public class BookAdder {
 
         List<File> collectionBooks = getCollectionBookFiles();
         for (File f : collectionBooks) {
-            L.d(TAG, "checking collectionBook=" + f);
+            L.d(TAG, "checking collectionBook={}", f);
             if (f.isFile() && f.canRead()) {
                 checkBook(f, Book.Type.COLLECTION_FILE);
             } else if (f.isDirectory() && f.canRead()) {
@@ -180,13 +187,26 @@ public class BookAdder {
         }
     }
 
+    /**
+     * Brings the books in line with the files: hides the books that are gone, then adds new books
+     * and updates the changed ones.
+     *
+     * @throws InterruptedException if a reset on the scanner has been requested
+     */
+    void scanBooks() throws InterruptedException {
+        deleteOldBooks();
+        checkForBooks();
+        // restored books may have been found
+        db.importPending();
+    }
+
     /**
      * Starts scanning for new {@link Book} or changes within.
      *
      * @param interrupting true if a eventually running scanner should be interrupted.
      */
     public void scanForFiles(boolean interrupting) {
-        L.d(TAG, "scanForFiles called. scannerActive=" + scannerActive + ", interrupting=" + interrupting);
+        L.d(TAG, "scanForFiles called. scannerActive={}, interrupting={}", scannerActive, interrupting);
         if (!scannerActive || interrupting) {
             stopScanner = true;
             executor.execute(new Runnable() {
@@ -198,8 +218,7 @@ public class BookAdder {
                     stopScanner = false;
 
                     try {
-                        deleteOldBooks();
-                        checkForBooks();
+                        scanBooks();
                         findCovers();
                     } catch (InterruptedException e) {
                         L.d(TAG, "We were interrupted at adding a book", e);
@@ -225,7 +244,7 @@ public class BookAdder {
     @NonNull
     private List<File> getSingleBookFiles() {
         List<File> singleBooks = new ArrayList<>();
-        for (String s : prefs.getSingleBookFolders()) {
+        for (String s : source.getSingleBookFolders()) {
             singleBooks.add(new File(s));
         }
         Collections.sort(singleBooks, new NaturalOrderComparator());
@@ -243,7 +262,7 @@ public class BookAdder {
     @NonNull
     private List<File> getCollectionBookFiles() {
         List<File> containingFiles = new ArrayList<>();
-        for (String s : prefs.getCollectionFolders()) {
+        for (String s : source.getCollectionFolders()) {
             File f = new File(s);
             if (f.exists() && f.isDirectory()) {
                 File[] containing = f.listFiles(FileRecognition.folderAndMusicFilter);
@@ -257,6 +276,20 @@ public class BookAdder {
     }
 
 
+    /**
+     * Adds the absolute paths of the files to one set and those of the folders to the other.
+     */
+    private static void addPaths(@NonNull List<File> files, @NonNull Set<String> filePaths,
+                                 @NonNull Set<String> folderPaths) {
+        for (File f : files) {
+            if (f.isFile()) {
+                filePaths.add(f.getAbsolutePath());
+            } else if (f.isDirectory()) {
+                folderPaths.add(f.getAbsolutePath());
+            }
+        }
+    }
+
     /**
      * Deletes all the books that exist on the database but not on the hard drive or on the saved
      * audio book paths.
@@ -267,50 +300,31 @@ public class BookAdder {
         List<File> singleBookFiles = getSingleBookFiles();
         List<File> collectionBookFolders = getCollectionBookFiles();
 
+        // the chosen files and folders by path, so each book is looked up instead of being
+        // compared with all of them
+        Set<String> singleFiles = new HashSet<>();
+        Set<String> singleFolders = new HashSet<>();
+        addPaths(singleBookFiles, singleFiles, singleFolders);
+        Set<String> collectionFiles = new HashSet<>();
+        Set<String> collectionFolders = new HashSet<>();
+        addPaths(collectionBookFolders, collectionFiles, collectionFolders);
+
         //getting books to remove
         List<Book> booksToRemove = new ArrayList<>();
         for (Book book : db.getActiveBooks()) {
-            boolean bookExists = false;
+            boolean bookExists;
             switch (book.getType()) {
                 case COLLECTION_FILE:
-                    for (File f : collectionBookFolders) {
-                        if (f.isFile()) {
-                            List<Chapter> chapters = book.getChapters();
-                            String singleBookChapterPath = chapters.get(0).getPath();
-                            if (singleBookChapterPath.equals(f.getAbsolutePath())) {
-                                bookExists = true;
-                            }
-                        }
-                    }
+                    bookExists = collectionFiles.contains(book.getChapters().get(0).getPath());
                     break;
                 case COLLECTION_FOLDER:
-                    for (File f : collectionBookFolders) {
-                        if (f.isDirectory()) { // multi file book
-                            if (book.getRoot().equals(f.getAbsolutePath())) {
-                                bookExists = true;
-                            }
-                        }
-                    }
+                    bookExists = collectionFolders.contains(book.getRoot());
                     break;
                 case SINGLE_FILE:
-                    for (File f : singleBookFiles) {
-                        if (f.isFile()) {
-                            List<Chapter> chapters = book.getChapters();
-                            String singleBookChapterPath = chapters.get(0).getPath();
-                            if (singleBookChapterPath.equals(f.getAbsolutePath())) {
-                                bookExists = true;
-                            }
-                        }
-                    }
+                    bookExists = singleFiles.contains(book.getChapters().get(0).getPath());
                     break;
                 case SINGLE_FOLDER:
-                    for (File f : singleBookFiles) {
-                        if (f.isDirectory()) { // multi file book
-                            if (book.getRoot().equals(f.getAbsolutePath())) {
-                                bookExists = true;
-                            }
-                        }
-                    }
+                    bookExists = singleFolders.contains(book.getRoot());
                     break;
                 default:
                     throw new AssertionError("We added somewhere a non valid type=" + book.getType());
@@ -321,11 +335,11 @@ public class BookAdder {
             }
         }
 
-        if (!BaseActivity.storageMounted()) {
+        if (!source.storageMounted()) {
             throw new InterruptedException("Storage is not mounted");
         }
         for (Book b : booksToRemove) {
-            L.d(TAG, "deleting book=" + b);
+            L.d(TAG, "deleting book={}", b);
             db.hideBook(b);
         }
         L.d(TAG, "finished");
@@ -341,7 +355,7 @@ public class BookAdder {
      * @return The name of the book we add
      */
     @NonNull
-    private String getBookName(@NonNull String firstChapterPath, @NonNull File rootFile, @NonNull MediaMetadataRetriever mmr) {
+    private String getBookName(@NonNull String firstChapterPath, @NonNull File rootFile, @NonNull ScanSource.TagReader mmr) {
         String bookName = null;
         try {
             mmr.setDataSource(firstChapterPath);
@@ -363,7 +377,7 @@ public class BookAdder {
      * @return The name of the book we add
      */
     @Nullable
-    private String getAuthor(@NonNull String firstChapterPath, @NonNull MediaMetadataRetriever mmr) {
+    private String getAuthor(@NonNull String firstChapterPath, @NonNull ScanSource.TagReader mmr) {
         try {
             mmr.setDataSource(firstChapterPath);
             String bookName = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_COMPOSER);
@@ -387,60 +401,42 @@ public class BookAdder {
      * @param type        The type of the book
      */
     private void addNewBook(@NonNull File rootFile, @NonNull List<Chapter> newChapters, @NonNull Book.Type type) {
-        String bookRoot = rootFile.isDirectory() ?
-                rootFile.getAbsolutePath() :
-                rootFile.getParent();
+        String bookRoot = getBookRoot(rootFile);
 
         String firstChapterPath = newChapters.get(0).getPath();
-        MediaMetadataRetriever mmr = new MediaMetadataRetriever();
+        ScanSource.TagReader mmr = source.newTagReader();
         String bookName = getBookName(firstChapterPath, rootFile, mmr);
         String author = getAuthor(firstChapterPath, mmr);
         mmr.release();
 
-        final Book orphanedBook = getBookFromDb(rootFile, type, true);
+        Book orphanedBook = getBookFromDb(rootFile, type, true);
         if (orphanedBook == null) {
             Book newBook = new Book(bookRoot, bookName, author, newChapters,
                     firstChapterPath, type, new ArrayList<Bookmark>(), c);
-            L.d(TAG, "adding newBook=" + newBook);
+            L.d(TAG, "adding newBook={}", newBook);
             db.addBook(newBook);
         } else { // restore old books
-            // first adds all chapters
-            orphanedBook.getChapters().clear();
-            orphanedBook.getChapters().addAll(newChapters);
-
-            // now removes invalid bookmarks
-            List<Bookmark> filteredBookmarks = Lists.newArrayList(Collections2.filter(
-                    orphanedBook.getBookmarks(), new Predicate<Bookmark>() {
-                        @Override
-                        public boolean apply(Bookmark input) {
-                            for (Chapter c : orphanedBook.getChapters()) {
-                                if (c.getPath().equals(input.getMediaPath())) {
-                                    return true;
-                                }
-                            }
-                            return false;
-                        }
-                    }));
-            orphanedBook.getBookmarks().clear();
-            orphanedBook.getBookmarks().addAll(filteredBookmarks);
-
             // checks if current path is still valid. if not, reset position.
+            int time = orphanedBook.getTime();
+            String currentPath = orphanedBook.getCurrentMediaPath();
             boolean pathValid = false;
-            for (Chapter c : orphanedBook.getChapters()) {
-                if (c.getPath().equals(orphanedBook.getCurrentMediaPath())) {
+            for (Chapter c : newChapters) {
+                if (c.hasPath(currentPath)) {
                     pathValid = true;
                 }
             }
             if (!pathValid) {
-                orphanedBook.setPosition(0, orphanedBook.getChapters().get(0).getPath());
+                time = 0;
+                currentPath = newChapters.get(0).getPath();
             }
 
-            // now finally un-hide this book
-            db.revealBook(orphanedBook);
+            // now finally un-hide this book. The bookmarks are sorted against the new chapters,
+            // and the ones of removed chapters are dropped.
+            Book revealed = orphanedBook.withChapters(newChapters, time, currentPath);
+            db.revealBook(revealed.withSortedBookmarks(orphanedBook.getBookmarks()));
         }
     }
 
-
     /**
      * @param left  First chapter to compare
      * @param right Second chapter to compare
@@ -473,46 +469,29 @@ public class BookAdder {
      * @param bookExisting The existing book
      * @param newChapters  The new chapters matching to the book
      */
-    private void updateBook(@NonNull final Book bookExisting, @NonNull List<Chapter> newChapters) {
+    private void updateBook(@NonNull Book bookExisting, @NonNull List<Chapter> newChapters) {
         boolean bookHasChanged = chaptersDiffer(bookExisting.getChapters(), newChapters);
         // sort chapters
         if (bookHasChanged) {
-            bookExisting.getChapters().clear();
-            bookExisting.getChapters().addAll(newChapters);
-
             // check if the chapter set as the current still exists
             boolean currentPathIsGone = true;
             String currentPath = bookExisting.getCurrentMediaPath();
             int currentTime = bookExisting.getTime();
-            for (Chapter c : bookExisting.getChapters()) {
-                if (c.getPath().equals(currentPath)) {
+            for (Chapter c : newChapters) {
+                if (c.hasPath(currentPath)) {
                     if (c.getDuration() < currentTime) {
-                        bookExisting.setPosition(0, c.getPath());
+                        currentTime = 0;
                     }
                     currentPathIsGone = false;
                 }
             }
             if (currentPathIsGone) {
-                bookExisting.setPosition(0, bookExisting.getChapters().get(0).getPath());
+                currentTime = 0;
+                currentPath = newChapters.get(0).getPath();
             }
 
-            // removes the bookmarks that no longer represent an existing file
-            List<Bookmark> existingBookmarks = bookExisting.getBookmarks();
-            List<Bookmark> filtered = Lists.newArrayList(Collections2.filter(existingBookmarks, new Predicate<Bookmark>() {
-                @Override
-                public boolean apply(Bookmark input) {
-                    for (Chapter c : bookExisting.getChapters()) {
-                        if (c.getPath().equals(input.getMediaPath())) {
-                            return true;
-                        }
-                    }
-                    return false;
-                }
-            }));
-            existingBookmarks.clear();
-            existingBookmarks.addAll(filtered);
-
-            db.updateBook(bookExisting);
+            // also deletes the bookmarks that no longer represent an existing file
+            db.updateBook(bookExisting.withChapters(newChapters, currentTime, currentPath));
         }
     }
 
@@ -528,7 +507,7 @@ public class BookAdder {
         List<Chapter> newChapters = getChaptersByRootFile(rootFile);
         Book bookExisting = getBookFromDb(rootFile, type, false);
 
-        if (!BaseActivity.storageMounted()) {
+        if (!source.storageMounted()) {
             throw new InterruptedException("Storage not mounted");
         }
 
@@ -581,7 +560,19 @@ public class BookAdder {
     }
 
     /**
-     * Returns all the chapters matching to a Book root
+     * @param rootFile The root of the book, a folder or a single file
+     * @return The root folder of the book
+     */
+    @NonNull
+    private String getBookRoot(@NonNull File rootFile) {
+        return rootFile.isDirectory() ?
+                rootFile.getAbsolutePath() :
+                rootFile.getParent();
+    }
+
+    /**
+     * Returns all the chapters matching to a Book root. They are put straight into the table a
+     * book stores its chapters in.
      *
      * @param rootFile The root of the book
      * @return The chapters
@@ -601,8 +592,9 @@ public class BookAdder {
         }
 
         // get duration and if there is no cover yet, try to get an embedded dover (up to 5 times)
-        List<Chapter> containingMedia = new ArrayList<>();
-        MediaMetadataRetriever mmr = new MediaMetadataRetriever();
+        String prefix = Chapter.prefixOf(getBookRoot(rootFile));
+        ChapterTable.Builder containingMedia = new ChapterTable.Builder(prefix, musicFiles.size());
+        ScanSource.TagReader mmr = source.newTagReader();
         try {
             for (int i = 0; i < musicFiles.size(); i++) {
                 File f = musicFiles.get(i);
@@ -624,7 +616,7 @@ public class BookAdder {
                     } else {
                         int duration = Integer.parseInt(durationString);
                         if (duration > 0) {
-                            containingMedia.add(new Chapter(f.getAbsolutePath(), chapterName, duration));
+                            containingMedia.add(Chapter.relativize(prefix, f.getAbsolutePath()), chapterName, duration);
                         }
                     }
                     if (stopScanner) {
@@ -636,7 +628,7 @@ public class BookAdder {
         } finally {
             mmr.release();
         }
-        return containingMedia;
+        return containingMedia.build();
     }
 
 
@@ -651,27 +643,29 @@ public class BookAdder {
      */
     @Nullable
     private Book getBookFromDb(@NonNull File rootFile, @NonNull Book.Type type, boolean orphaned) {
-        L.d(TAG, "getBookFromDb, rootFile=" + rootFile + ", type=" + type + ", orphaned=" + orphaned);
+        L.d(TAG, "getBookFromDb, rootFile={}, type={}, orphaned={}", rootFile, type, orphaned);
         List<Book> books;
         if (orphaned) {
             books = db.getOrphanedBooks();
         } else {
             books = db.getActiveBooks();
         }
+        String rootPath = rootFile.getAbsolutePath();
         if (rootFile.isDirectory()) {
             for (Book b : books) {
-                if (rootFile.getAbsolutePath().equals(b.getRoot()) && type == b.getType()) {
+                if (rootPath.equals(b.getRoot()) && type == b.getType()) {
                     return b;
                 }
             }
         } else if (rootFile.isFile()) {
             L.d(TAG, "getBookFromDb, its a file");
+            String parentPath = rootFile.getParentFile().getAbsolutePath();
             for (Book b : books) {
-                L.v(TAG, "comparing bookRoot=" + b.getRoot() + " with " + rootFile.getParentFile().getAbsolutePath());
-                if (rootFile.getParentFile().getAbsolutePath().equals(b.getRoot()) && type == b.getType()) {
+                L.v(TAG, "comparing bookRoot={} with {}", b.getRoot(), parentPath);
+                if (parentPath.equals(b.getRoot()) && type == b.getType()) {
                     Chapter singleChapter = b.getChapters().get(0);
-                    L.d(TAG, "getBookFromDb, singleChapterPath=" + singleChapter.getPath() + " compared with=" + rootFile.getAbsolutePath());
-                    if (singleChapter.getPath().equals(rootFile.getAbsolutePath())) {
+                    L.d(TAG, "getBookFromDb, singleChapterPath={} compared with={}", singleChapter.getPath(), rootPath);
+                    if (singleChapter.getPath().equals(rootPath)) {
                         return b;
                     }
                 }
@@ -0,0 +1,201 @@
+package de.ph1b.audiobook.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.util.Arrays;
+
+
+/**
+ * Holds books by their {@link Book#getId()}. Lookups go through an open addressing hash table
+ * keyed by the primitive id, so finding, replacing and removing a book does not need to scan all
+ * books. The order in which the books were added is kept for {@link #asList()}.
+ * <p/>
+ * Any number of threads may read concurrently, as long as no thread modifies the registry at the
+ * same time.
+ */
+@NotThreadSafe
+class BookRegistry {
+
+    private static final int MIN_CAPACITY = 16;
+    private long[] keys = new long[MIN_CAPACITY];
+    /**
+     * The books by slot. A slot is empty if its value is <code>null</code>.
+     */
+    private Book[] values = new Book[MIN_CAPACITY];
+    /**
+     * The ids in the order the books have been added.
+     */
+    private long[] order = new long[MIN_CAPACITY];
+    private int size = 0;
+    /**
+     * The sum of the durations of all books, kept up to date by every change.
+     */
+    private long totalDuration = 0;
+    @Nullable
+    private volatile ImmutableList<Book> snapshot = ImmutableList.of();
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slotOf(long id) {
+        int mask = keys.length - 1;
+        int slot = hash(id) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == id) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    @Nullable
+    public Book get(long id) {
+        int slot = slotOf(id);
+        return slot == -1 ? null : values[slot];
+    }
+
+    public boolean contains(long id) {
+        return slotOf(id) != -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a book or replaces the book with the same id. A replaced book keeps its position.
+     *
+     * @param book The book to add
+     * @return The book that has been replaced, or <code>null</code> if there was none.
+     */
+    @Nullable
+    public Book put(@NonNull Book book) {
+        snapshot = null;
+        long id = book.getId();
+        int mask = keys.length - 1;
+        int slot = hash(id) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == id) {
+                Book old = values[slot];
+                values[slot] = book;
+                totalDuration += book.getGlobalDuration() - old.getGlobalDuration();
+                return old;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = id;
+        values[slot] = book;
+        totalDuration += book.getGlobalDuration();
+        if (size == order.length) {
+            order = Arrays.copyOf(order, size * 2);
+        }
+        order[size++] = id;
+        if (size * 4 > keys.length * 3) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the book with the id.
+     *
+     * @param id The id of the book to remove
+     * @return The removed book, or <code>null</code> if there was none.
+     */
+    @Nullable
+    public Book remove(long id) {
+        int slot = slotOf(id);
+        if (slot == -1) {
+            return null;
+        }
+        snapshot = null;
+        Book old = values[slot];
+        values[slot] = null;
+        totalDuration -= old.getGlobalDuration();
+
+        // shift the following entries of the probe sequence back so no lookup runs into a gap
+        int mask = keys.length - 1;
+        int gap = slot;
+        int next = (slot + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys[next]) & mask;
+            boolean movable = (gap <= next) ? (home <= gap || home > next) : (home <= gap && home > next);
+            if (movable) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                values[next] = null;
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (order[i] == id) {
+                System.arraycopy(order, i + 1, order, i, size - i - 1);
+                break;
+            }
+        }
+        size--;
+        return old;
+    }
+
+    public void clear() {
+        keys = new long[MIN_CAPACITY];
+        values = new Book[MIN_CAPACITY];
+        order = new long[MIN_CAPACITY];
+        size = 0;
+        totalDuration = 0;
+        snapshot = ImmutableList.of();
+    }
+
+    /**
+     * @return the sum of the durations of all books, in ms.
+     */
+    public long getTotalDuration() {
+        return totalDuration;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Book[] oldValues = values;
+        keys = new long[capacity];
+        values = new Book[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * @return The books in the order they were added. The list is cached until the next change.
+     */
+    @NonNull
+    public ImmutableList<Book> asList() {
+        ImmutableList<Book> books = snapshot;
+        if (books == null) {
+            // concurrent readers may build it twice, but they build the same list
+            ImmutableList.Builder<Book> builder = ImmutableList.builder();
+            for (int i = 0; i < size; i++) {
+                builder.add(values[slotOf(order[i])]);
+            }
+            books = builder.build();
+            snapshot = books;
+        }
+        return books;
+    }
+}
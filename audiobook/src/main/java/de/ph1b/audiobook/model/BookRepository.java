@@ -0,0 +1,111 @@
+package de.ph1b.audiobook.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Stores the books of the library. Implementations are thread safe, keep the books in memory so
+ * reads never wait for the storage, and send the {@link de.ph1b.audiobook.utils.Communication}
+ * events for every change.
+ *
+ * @see DataBaseHelper
+ * @see InMemoryBookRepository
+ */
+public interface BookRepository {
+
+    /**
+     * Adds a new book.
+     *
+     * @param book the book to add
+     * @return the added book, carrying the ids it and its bookmarks were assigned.
+     */
+    @NonNull
+    Book addBook(@NonNull Book book);
+
+    /**
+     * @return the active book with the id, or <code>null</code> if there is none.
+     */
+    @Nullable
+    Book getBook(long id);
+
+    /**
+     * @return a snapshot of the active books.
+     */
+    @NonNull
+    List<Book> getActiveBooks();
+
+    /**
+     * @return a snapshot of the books that have been hidden.
+     */
+    @NonNull
+    List<Book> getOrphanedBooks();
+
+    /**
+     * @return the sum of the durations of the active books, in ms. Kept up to date on every
+     * change, so it does not iterate the books.
+     */
+    long getLibraryDuration();
+
+    /**
+     * Replaces an active book. Its bookmarks are ignored and the stored ones are kept, except for
+     * the ones of chapters the new version no longer has, which are deleted.
+     *
+     * @param book the new version of the book
+     */
+    void updateBook(@NonNull Book book);
+
+    /**
+     * Changes the position of an active book and nothing else, so it is safe to call with the
+     * position of an outdated copy of the book. Only a position tick is sent, as this happens
+     * every second while playing.
+     *
+     * @param bookId           the id of the book
+     * @param time             the time within the chapter
+     * @param currentMediaPath the path of the chapter. If it is no longer one of the chapters of
+     *                         the book, the position is not changed.
+     */
+    void updatePosition(long bookId, int time, @NonNull String currentMediaPath);
+
+    void hideBook(@NonNull Book book);
+
+    void revealBook(@NonNull Book book);
+
+    /**
+     * @param bookId   the id of an active book
+     * @param bookmark the bookmark to add. Its chapter must be one of the chapters of the book.
+     * @return the book with the bookmark added, or <code>null</code> if there is no such book.
+     */
+    @Nullable
+    Book addBookmark(long bookId, @NonNull Bookmark bookmark);
+
+    /**
+     * @param bookId   the id of an active book
+     * @param bookmark the new version of the bookmark, with the id of the one to replace
+     * @return the book with the bookmark replaced, or <code>null</code> if there is no such book or
+     * bookmark.
+     */
+    @Nullable
+    Book updateBookmark(long bookId, @NonNull Bookmark bookmark);
+
+    /**
+     * @param bookId     the id of an active book
+     * @param bookmarkId the id of the bookmark
+     * @return the book without the bookmark, or <code>null</code> if there is no such book or
+     * bookmark.
+     */
+    @Nullable
+    Book deleteBookmark(long bookId, long bookmarkId);
+
+    /**
+     * Applies the restored records that are waiting for their books, as the books they belong to
+     * may have been found since.
+     */
+    void importPending();
+
+    /**
+     * Blocks until all changes made so far have been stored.
+     */
+    void awaitWrites();
+}
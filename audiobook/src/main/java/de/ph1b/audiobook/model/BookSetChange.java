@@ -0,0 +1,131 @@
+package de.ph1b.audiobook.model;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import net.jcip.annotations.Immutable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A change of the set of active books: the books that have been added, the books that have been
+ * replaced and the ids of the books that have been removed. Each book appears at most once.
+ */
+@Immutable
+public class BookSetChange {
+
+    @NonNull
+    private final ImmutableList<Book> added;
+    @NonNull
+    private final ImmutableList<Book> updated;
+    @NonNull
+    private final ImmutableSet<Long> removed;
+
+    private BookSetChange(@NonNull Collection<Book> added, @NonNull Collection<Book> updated,
+                          @NonNull Collection<Long> removed) {
+        this.added = ImmutableList.copyOf(added);
+        this.updated = ImmutableList.copyOf(updated);
+        this.removed = ImmutableSet.copyOf(removed);
+    }
+
+    @NonNull
+    public static BookSetChange added(@NonNull Book book) {
+        return new BookSetChange(Collections.singletonList(book), Collections.<Book>emptyList(),
+                Collections.<Long>emptyList());
+    }
+
+    @NonNull
+    public static BookSetChange updated(@NonNull List<Book> books) {
+        return new BookSetChange(Collections.<Book>emptyList(), books, Collections.<Long>emptyList());
+    }
+
+    @NonNull
+    public static BookSetChange removed(long bookId) {
+        return new BookSetChange(Collections.<Book>emptyList(), Collections.<Book>emptyList(),
+                Collections.singletonList(bookId));
+    }
+
+    /**
+     * @param updated the books that are active now
+     * @param removed the ids of the books that are no longer active
+     */
+    @NonNull
+    public static BookSetChange of(@NonNull List<Book> updated, @NonNull Collection<Long> removed) {
+        return new BookSetChange(Collections.<Book>emptyList(), updated, removed);
+    }
+
+    /**
+     * Combines this change with one that happened afterwards, as if both had happened at once.
+     *
+     * @param next the later change
+     * @return the combined change
+     */
+    @NonNull
+    public BookSetChange merge(@NonNull BookSetChange next) {
+        Map<Long, Book> added = byId(this.added);
+        Map<Long, Book> updated = byId(this.updated);
+        Set<Long> removed = new LinkedHashSet<>(this.removed);
+
+        for (Book b : next.added) {
+            // a book removed and added again has only been replaced
+            if (removed.remove(b.getId())) {
+                updated.put(b.getId(), b);
+            } else {
+                added.put(b.getId(), b);
+            }
+        }
+        for (Book b : next.updated) {
+            if (added.containsKey(b.getId())) {
+                added.put(b.getId(), b);
+            } else {
+                updated.put(b.getId(), b);
+            }
+        }
+        for (long id : next.removed) {
+            // a book added and removed again has never been there
+            if (added.remove(id) == null) {
+                updated.remove(id);
+                removed.add(id);
+            }
+        }
+        return new BookSetChange(added.values(), updated.values(), removed);
+    }
+
+    @NonNull
+    private static Map<Long, Book> byId(@NonNull List<Book> books) {
+        Map<Long, Book> byId = new LinkedHashMap<>(books.size() * 2);
+        for (Book b : books) {
+            byId.put(b.getId(), b);
+        }
+        return byId;
+    }
+
+    @NonNull
+    public List<Book> getAdded() {
+        return added;
+    }
+
+    @NonNull
+    public List<Book> getUpdated() {
+        return updated;
+    }
+
+    @NonNull
+    public Set<Long> getRemoved() {
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return "BookSetChange{added=" + added.size() + ", updated=" + updated.size() +
+                ", removed=" + removed.size() + "}";
+    }
+}
@@ -1,30 +1,35 @@
 package de.ph1b.audiobook.model;
 
-import android.content.ContentValues;
 import android.support.annotation.NonNull;
 
+import net.jcip.annotations.Immutable;
+
 import de.ph1b.audiobook.utils.Validate;
 
+@Immutable
 public class Bookmark {
 
+    public static final long ID_UNKNOWN = -1;
     private static final String TAG = Bookmark.class.getSimpleName();
+    private final long id;
     private final int time;
     @NonNull
     private final String mediaPath;
     @NonNull
-    private String title;
-
+    private final String title;
 
-    public Bookmark(Bookmark that) {
-        this.time = that.time;
-        this.mediaPath = that.mediaPath;
-        this.title = that.title;
+    public Bookmark(@NonNull String mediaPath, @NonNull String title, int time) {
+        this(ID_UNKNOWN, mediaPath, title, time);
     }
 
-    public Bookmark(@NonNull String mediaPath, @NonNull String title, int time) {
+    /**
+     * @param id the id the bookmark is stored with, or {@link #ID_UNKNOWN} if it is not stored yet
+     */
+    Bookmark(long id, @NonNull String mediaPath, @NonNull String title, int time) {
         new Validate().notNull(mediaPath, title)
                 .notEmpty(mediaPath, title);
 
+        this.id = id;
         this.mediaPath = mediaPath;
         this.title = title;
         this.time = time;
@@ -38,7 +43,7 @@ public class Bookmark {
 
         if (o instanceof Bookmark) {
             Bookmark that = (Bookmark) o;
-            return this.time == that.time && this.mediaPath.equals(that.mediaPath) && that.title.equals(this.title);
+            return this.id == that.id && this.time == that.time && this.mediaPath.equals(that.mediaPath) && that.title.equals(this.title);
         }
 
         return false;
@@ -47,7 +52,8 @@ public class Bookmark {
     @Override
     public int hashCode() {
         final int PRIME = 31;
-        int result = PRIME + time;
+        int result = PRIME + (int) (id ^ (id >>> 32));
+        result = PRIME * result + time;
         result = PRIME * result + mediaPath.hashCode();
         result = PRIME * result + title.hashCode();
         return result;
@@ -56,7 +62,8 @@ public class Bookmark {
     @Override
     public String toString() {
         return TAG + "[" +
-                "title=" + title +
+                "id=" + id +
+                ",title=" + title +
                 ",time=" + time +
                 ",mediaPath=" + mediaPath +
                 "]";
@@ -72,22 +79,29 @@ public class Bookmark {
         return title;
     }
 
-    public void setTitle(@NonNull String title) {
-        new Validate().notNull(title)
-                .notEmpty(title);
-        this.title = title;
+    /**
+     * @param title the new title
+     * @return a copy of this bookmark with the title changed.
+     */
+    @NonNull
+    public Bookmark withTitle(@NonNull String title) {
+        return new Bookmark(id, mediaPath, title, time);
     }
 
-    public int getTime() {
-        return time;
+    /**
+     * @return the id of the bookmark in the database, or {@link #ID_UNKNOWN} if it has not been
+     * added yet. It stays the same when the bookmark is edited.
+     */
+    public long getId() {
+        return id;
+    }
+
+    @NonNull
+    Bookmark withId(long id) {
+        return new Bookmark(id, mediaPath, title, time);
     }
 
-    public ContentValues getContentValues(long bookId) {
-        ContentValues cv = new ContentValues();
-        cv.put(DataBaseHelper.BOOKMARK_TIME, time);
-        cv.put(DataBaseHelper.BOOKMARK_PATH, mediaPath);
-        cv.put(DataBaseHelper.BOOKMARK_TITLE, title);
-        cv.put(DataBaseHelper.BOOK_ID, bookId);
-        return cv;
+    public int getTime() {
+        return time;
     }
 }
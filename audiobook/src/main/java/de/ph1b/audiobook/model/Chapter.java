@@ -1,40 +1,127 @@
 package de.ph1b.audiobook.model;
 
-import android.content.ContentValues;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
 import net.jcip.annotations.Immutable;
 
+import java.io.File;
+
 import de.ph1b.audiobook.utils.Validate;
 
+/**
+ * A chapter of a book. It is a view on a row of the {@link ChapterTable} of the book, so it holds
+ * no strings of its own. The name and the absolute path are only built when asked for. A chapter
+ * created with the public constructor holds its values itself until it is put into a book.
+ */
 @Immutable
 public class Chapter {
 
     private static final String TAG = Chapter.class.getSimpleName();
-    @NonNull
+    private static final Interner<String> PREFIXES = Interners.newWeakInterner();
+    /**
+     * The table this chapter is a row of, or null if it was created on its own and holds its
+     * path, name and duration itself.
+     */
+    @Nullable
+    private final ChapterTable table;
+    private final int index;
+    @Nullable
     private final String path;
-    @NonNull
+    @Nullable
     private final String name;
     private final int duration;
 
-    public Chapter(Chapter that) {
-        this.path = that.path;
-        this.name = that.name;
-        this.duration = that.duration;
-    }
-
-
+    /**
+     * @param path     the absolute path of the chapter
+     * @param name     the name of the chapter
+     * @param duration the duration in ms
+     */
     public Chapter(@NonNull String path,
                    @NonNull String name,
                    int duration) {
-
         new Validate().notNull(path, name)
                 .notEmpty(path, name);
+        this.table = null;
+        this.index = 0;
         this.path = path;
         this.name = name;
         this.duration = duration;
     }
 
+    Chapter(@NonNull ChapterTable table, int index) {
+        this.table = table;
+        this.index = index;
+        this.path = null;
+        this.name = null;
+        this.duration = 0;
+    }
+
+    /**
+     * @param root the root folder of a book
+     * @return the interned prefix of the paths of its chapters.
+     */
+    @NonNull
+    static String prefixOf(@NonNull String root) {
+        return PREFIXES.intern(root + File.separator);
+    }
+
+    /**
+     * @param prefix the prefix of a book, as returned by {@link #prefixOf(String)}
+     * @param path   an absolute path
+     * @return the path relative to the prefix, or the absolute path if it does not start with it.
+     */
+    @NonNull
+    static String relativize(@NonNull String prefix, @NonNull String path) {
+        if (path.startsWith(prefix)) {
+            return path.substring(prefix.length());
+        }
+        return path;
+    }
+
+    /**
+     * Inverse of {@link #relativize(String, String)}. A relative path that starts with a separator
+     * is absolute.
+     */
+    @NonNull
+    static String resolve(@NonNull String prefix, @NonNull String relativePath) {
+        if (relativePath.startsWith(File.separator)) {
+            return relativePath;
+        }
+        return prefix + relativePath;
+    }
+
+    /**
+     * @param prefix the prefix of a book, as returned by {@link #prefixOf(String)}
+     * @return the path as stored for a book with that prefix.
+     */
+    @NonNull
+    String getPathRelativeTo(@NonNull String prefix) {
+        if (table == null) {
+            return relativize(prefix, path);
+        }
+        if (table.getPrefix() == prefix) {
+            return table.getStoredPath(index);
+        }
+        return relativize(prefix, getPath());
+    }
+
+    /**
+     * Compares the path without building it.
+     *
+     * @param path an absolute path
+     * @return true if this chapter has the path
+     */
+    public boolean hasPath(@NonNull String path) {
+        if (table == null) {
+            return path.equals(this.path);
+        }
+        return table.hasPath(index, path);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o == this) {
@@ -43,7 +130,19 @@ public class Chapter {
 
         if (o instanceof Chapter) {
             Chapter that = (Chapter) o;
-            return this.path.equals(that.path) && this.duration == that.duration;
+            if (this.getDuration() != that.getDuration()) {
+                return false;
+            }
+            if (this.table == null) {
+                return that.hasPath(this.path);
+            }
+            if (that.table == null) {
+                return this.hasPath(that.path);
+            }
+            if (this.table == that.table) {
+                return this.index == that.index;
+            }
+            return this.table.samePath(this.index, that.table, that.index);
         }
         return false;
     }
@@ -51,40 +150,35 @@ public class Chapter {
     @Override
     public int hashCode() {
         final int PRIME = 31;
-        int result = PRIME + path.hashCode();
-        result = PRIME * result + duration;
+        int result = PRIME + (table == null ? path.hashCode() : table.pathHashCode(index));
+        result = PRIME * result + getDuration();
         return result;
     }
 
     @Override
     public String toString() {
         return TAG + "[" +
-                "path=" + path +
-                ",name=" + name +
-                ",duration=" + duration +
+                "path=" + getPath() +
+                ",name=" + getName() +
+                ",duration=" + getDuration() +
                 "]";
     }
 
     @NonNull
     public String getName() {
-        return name;
+        return table == null ? name : table.getName(index);
     }
 
     public int getDuration() {
-        return duration;
+        return table == null ? duration : table.getDuration(index);
     }
 
+    /**
+     * @return the absolute path. It is built on each call, so prefer {@link #hasPath(String)} for
+     * comparisons.
+     */
     @NonNull
     public String getPath() {
-        return path;
-    }
-
-    public ContentValues getContentValues(long bookId) {
-        ContentValues chapterCv = new ContentValues();
-        chapterCv.put(DataBaseHelper.CHAPTER_DURATION, duration);
-        chapterCv.put(DataBaseHelper.CHAPTER_NAME, name);
-        chapterCv.put(DataBaseHelper.CHAPTER_PATH, path);
-        chapterCv.put(DataBaseHelper.BOOK_ID, bookId);
-        return chapterCv;
+        return table == null ? path : table.getPath(index);
     }
 }
@@ -0,0 +1,309 @@
+package de.ph1b.audiobook.model;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import de.ph1b.audiobook.utils.Validate;
+
+
+/**
+ * The chapters of a book, stored by column. All paths and all names are each kept in a single
+ * string with the end offsets in an array, next to an array of the durations. So a book with
+ * thousands of chapters only needs a handful of objects.
+ * <p/>
+ * {@link #get(int)} returns a {@link Chapter} that is a view on a row of the table.
+ */
+@Immutable
+final class ChapterTable extends AbstractList<Chapter> implements RandomAccess {
+
+    /**
+     * The interned prefix the paths are relative to.
+     */
+    @NonNull
+    private final String prefix;
+    /**
+     * The paths as stored: relative to the prefix, or absolute if they start with a separator.
+     */
+    @NonNull
+    private final String paths;
+    @NonNull
+    private final int[] pathEnds;
+    @NonNull
+    private final String names;
+    @NonNull
+    private final int[] nameEnds;
+    @NonNull
+    private final int[] durations;
+    /**
+     * The position in the book each chapter starts at, followed by the duration of the book.
+     */
+    @NonNull
+    private final long[] starts;
+
+    private ChapterTable(@NonNull String prefix, @NonNull String paths, @NonNull int[] pathEnds,
+                         @NonNull String names, @NonNull int[] nameEnds, @NonNull int[] durations) {
+        this.prefix = prefix;
+        this.paths = paths;
+        this.pathEnds = pathEnds;
+        this.names = names;
+        this.nameEnds = nameEnds;
+        this.durations = durations;
+        this.starts = new long[durations.length + 1];
+        for (int i = 0; i < durations.length; i++) {
+            starts[i + 1] = starts[i] + durations[i];
+        }
+    }
+
+    /**
+     * @param prefix   the prefix of a book, as returned by {@link Chapter#prefixOf(String)}
+     * @param chapters the chapters
+     * @return the chapters with their paths relative to the prefix. The list itself if it already
+     * is such a table.
+     */
+    @NonNull
+    static ChapterTable copyOf(@NonNull String prefix, @NonNull List<Chapter> chapters) {
+        if (chapters instanceof ChapterTable && ((ChapterTable) chapters).prefix == prefix) {
+            return (ChapterTable) chapters;
+        }
+        Builder builder = new Builder(prefix, chapters.size());
+        for (Chapter c : chapters) {
+            builder.add(c.getPathRelativeTo(prefix), c.getName(), c.getDuration());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public Chapter get(int index) {
+        Preconditions.checkElementIndex(index, durations.length);
+        return new Chapter(this, index);
+    }
+
+    @Override
+    public int size() {
+        return durations.length;
+    }
+
+    /**
+     * @param path an absolute path
+     * @return the index of the chapter with the path, or -1 if there is none.
+     */
+    int indexOfPath(@NonNull String path) {
+        for (int i = 0; i < durations.length; i++) {
+            if (hasPath(i, path)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Like {@link #indexOfPath(String)}, but first looks at the chapter at the hint and its
+     * neighbours, which covers staying in a chapter and skipping to the next or previous one.
+     *
+     * @param path an absolute path
+     * @param hint the probable index, or -1
+     */
+    int indexOfPath(@NonNull String path, int hint) {
+        if (hint >= 0 && hint < durations.length && hasPath(hint, path)) {
+            return hint;
+        }
+        if (hint + 1 >= 0 && hint + 1 < durations.length && hasPath(hint + 1, path)) {
+            return hint + 1;
+        }
+        if (hint - 1 >= 0 && hint - 1 < durations.length && hasPath(hint - 1, path)) {
+            return hint - 1;
+        }
+        return indexOfPath(path);
+    }
+
+    /**
+     * @return the position in the book the chapter starts at, in ms.
+     */
+    long getStart(int index) {
+        return starts[index];
+    }
+
+    /**
+     * @return the sum of the durations of all chapters, in ms.
+     */
+    long getTotalDuration() {
+        return starts[durations.length];
+    }
+
+    /**
+     * @param position a position in the book, in ms
+     * @return the index of the chapter the position falls into. Positions outside the book are
+     * mapped to the first or last chapter.
+     */
+    int indexAt(long position) {
+        // finds the last chapter starting at or before the position
+        int low = 0;
+        int high = durations.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @NonNull
+    String getPrefix() {
+        return prefix;
+    }
+
+    private int pathStart(int index) {
+        return index == 0 ? 0 : pathEnds[index - 1];
+    }
+
+    boolean hasPath(int index, @NonNull String path) {
+        int start = pathStart(index);
+        int length = pathEnds[index] - start;
+        if (isAbsolute(index)) {
+            return path.length() == length && path.regionMatches(0, paths, start, length);
+        }
+        return path.length() == prefix.length() + length
+                && path.startsWith(prefix)
+                && path.regionMatches(prefix.length(), paths, start, length);
+    }
+
+    private boolean isAbsolute(int index) {
+        return paths.startsWith(File.separator, pathStart(index));
+    }
+
+    private int pathLength(int index) {
+        int length = pathEnds[index] - pathStart(index);
+        return isAbsolute(index) ? length : prefix.length() + length;
+    }
+
+    private char pathCharAt(int index, int position) {
+        if (isAbsolute(index)) {
+            return paths.charAt(pathStart(index) + position);
+        }
+        if (position < prefix.length()) {
+            return prefix.charAt(position);
+        }
+        return paths.charAt(pathStart(index) + position - prefix.length());
+    }
+
+    /**
+     * Compares the absolute paths of two chapters without building them.
+     *
+     * @return true if the chapter at the index has the same path as the chapter of the other table.
+     */
+    boolean samePath(int index, @NonNull ChapterTable other, int otherIndex) {
+        int length = pathLength(index);
+        if (length != other.pathLength(otherIndex)) {
+            return false;
+        }
+        if (prefix == other.prefix && !isAbsolute(index) && !other.isAbsolute(otherIndex)) {
+            int start = pathStart(index);
+            return paths.regionMatches(start, other.paths, other.pathStart(otherIndex), pathEnds[index] - start);
+        }
+        for (int i = 0; i < length; i++) {
+            if (pathCharAt(index, i) != other.pathCharAt(otherIndex, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the same value as the hash code of the absolute path, without building it.
+     */
+    int pathHashCode(int index) {
+        int start = pathStart(index);
+        int end = pathEnds[index];
+        int hash = isAbsolute(index) ? 0 : prefix.hashCode();
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + paths.charAt(i);
+        }
+        return hash;
+    }
+
+    @NonNull
+    String getStoredPath(int index) {
+        return paths.substring(pathStart(index), pathEnds[index]);
+    }
+
+    @NonNull
+    String getPath(int index) {
+        return Chapter.resolve(prefix, getStoredPath(index));
+    }
+
+    @NonNull
+    String getName(int index) {
+        return names.substring(index == 0 ? 0 : nameEnds[index - 1], nameEnds[index]);
+    }
+
+    int getDuration(int index) {
+        return durations[index];
+    }
+
+    @NotThreadSafe
+    static final class Builder {
+
+        @NonNull
+        private final String prefix;
+        private final StringBuilder paths = new StringBuilder();
+        private final StringBuilder names = new StringBuilder();
+        private int[] pathEnds;
+        private int[] nameEnds;
+        private int[] durations;
+        private int size = 0;
+
+        /**
+         * @param prefix       the prefix of a book, as returned by {@link Chapter#prefixOf(String)}
+         * @param expectedSize the number of chapters that will probably be added
+         */
+        Builder(@NonNull String prefix, int expectedSize) {
+            int capacity = Math.max(expectedSize, 1);
+            this.prefix = prefix;
+            this.pathEnds = new int[capacity];
+            this.nameEnds = new int[capacity];
+            this.durations = new int[capacity];
+        }
+
+        /**
+         * @param storedPath the path relative to the prefix, or an absolute path
+         * @param name       the name of the chapter
+         * @param duration   the duration in ms
+         */
+        @NonNull
+        Builder add(@NonNull String storedPath, @NonNull String name, int duration) {
+            new Validate().notNull(storedPath, name)
+                    .notEmpty(storedPath, name);
+            if (size == durations.length) {
+                pathEnds = Arrays.copyOf(pathEnds, size * 2);
+                nameEnds = Arrays.copyOf(nameEnds, size * 2);
+                durations = Arrays.copyOf(durations, size * 2);
+            }
+            paths.append(storedPath);
+            pathEnds[size] = paths.length();
+            names.append(name);
+            nameEnds[size] = names.length();
+            durations[size] = duration;
+            size++;
+            return this;
+        }
+
+        @NonNull
+        ChapterTable build() {
+            return new ChapterTable(prefix, paths.toString(), Arrays.copyOf(pathEnds, size),
+                    names.toString(), Arrays.copyOf(nameEnds, size), Arrays.copyOf(durations, size));
+        }
+    }
+}
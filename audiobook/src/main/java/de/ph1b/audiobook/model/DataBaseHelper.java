@@ -1,27 +1,55 @@
 package de.ph1b.audiobook.model;
 
-import android.content.ContentValues;
+import android.app.backup.BackupManager;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.google.common.base.Objects;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.util.concurrent.Futures;
+
+import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.InvalidPropertiesFormatException;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import de.ph1b.audiobook.utils.Communication;
+import de.ph1b.audiobook.utils.ExecutorRegistry;
 import de.ph1b.audiobook.utils.L;
 import de.ph1b.audiobook.utils.Validate;
 
 @ThreadSafe
 @SuppressWarnings("TryFinallyCanBeTryWithResources")
-public class DataBaseHelper extends SQLiteOpenHelper {
+public class DataBaseHelper extends SQLiteOpenHelper implements BookRepository {
 
     // book keys
     public static final String BOOK_ID = "bookId";
@@ -34,18 +62,26 @@ public class DataBaseHelper extends SQLiteOpenHelper {
     public static final String BOOK_TYPE = "bookType";
     public static final String BOOK_USE_COVER_REPLACEMENT = "bookUseCoverReplacement";
     public static final String BOOK_ACTIVE = "BOOK_ACTIVE";
+    public static final String BOOK_GENERATION = "bookGeneration";
     public static final String CHAPTER_DURATION = "chapterDuration";
     public static final String CHAPTER_NAME = "chapterName";
     public static final String CHAPTER_PATH = "chapterPath";
+    public static final String BOOKMARK_ID = "bookmarkId";
     public static final String BOOKMARK_TIME = "bookmarkTime";
     public static final String BOOKMARK_PATH = "bookmarkPath";
     public static final String BOOKMARK_TITLE = "bookmarkTitle";
-    private static final int DATABASE_VERSION = 30;
+    static final int DATABASE_VERSION = 38;
     private static final String DATABASE_NAME = "autoBookDB";
-    private static final String TABLE_BOOK = "tableBooks";
-    private static final String TABLE_CHAPTERS = "tableChapters";
-    private static final String TABLE_BOOKMARKS = "tableBookmarks";
-    private static final String CREATE_TABLE_BOOK = "CREATE TABLE " + TABLE_BOOK + " ( " +
+    static final String TABLE_BOOK = "tableBooks";
+    static final String TABLE_CHAPTERS = "tableChapters";
+    static final String TABLE_BOOKMARKS = "tableBookmarks";
+    static final String TABLE_LIBRARY = "tableLibrary";
+    static final String LIBRARY_GENERATION = "libraryGeneration";
+    /**
+     * Counts the changes other than positions, which are the ones that invalidate the snapshot.
+     */
+    static final String LIBRARY_CONTENT_GENERATION = "libraryContentGeneration";
+    static final String CREATE_TABLE_BOOK = "CREATE TABLE " + TABLE_BOOK + " ( " +
             BOOK_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
             BOOK_NAME + " TEXT NOT NULL, " +
             BOOK_AUTHOR + " TEXT, " +
@@ -55,33 +91,277 @@ public class DataBaseHelper extends SQLiteOpenHelper {
             BOOK_TIME + " INTEGER NOT NULL, " +
             BOOK_TYPE + " TEXT NOT NULL, " +
             BOOK_USE_COVER_REPLACEMENT + " INTEGER NOT NULL, " +
-            BOOK_ACTIVE + " INTEGER NOT NULL DEFAULT 1)";
+            BOOK_ACTIVE + " INTEGER NOT NULL DEFAULT 1, " +
+            BOOK_GENERATION + " INTEGER NOT NULL DEFAULT 0)";
 
-    private static final String CREATE_TABLE_CHAPTERS = "CREATE TABLE " + TABLE_CHAPTERS + " ( " +
+    static final String CREATE_TABLE_CHAPTERS = "CREATE TABLE " + TABLE_CHAPTERS + " ( " +
             CHAPTER_DURATION + " INTEGER NOT NULL, " +
             CHAPTER_NAME + " TEXT NOT NULL, " +
             CHAPTER_PATH + " TEXT NOT NULL, " +
             BOOK_ID + " INTEGER NOT NULL, " +
             "FOREIGN KEY (" + BOOK_ID + ") REFERENCES " + TABLE_BOOK + "(" + BOOK_ID + "))";
 
-    private static final String CREATE_TABLE_BOOKMARKS = "CREATE TABLE " + TABLE_BOOKMARKS + " ( " +
+    static final String CREATE_TABLE_BOOKMARKS = "CREATE TABLE " + TABLE_BOOKMARKS + " ( " +
+            BOOKMARK_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
             BOOKMARK_PATH + " TEXT NOT NULL, " +
             BOOKMARK_TITLE + " TEXT NOT NULL, " +
             BOOKMARK_TIME + " INTEGER NOT NULL, " +
             BOOK_ID + " INTEGER NOT NULL, " +
             "FOREIGN KEY (" + BOOK_ID + ") REFERENCES " + TABLE_BOOK + "(" + BOOK_ID + "))";
 
+    private static final String CREATE_TABLE_LIBRARY = "CREATE TABLE " + TABLE_LIBRARY + " ( " +
+            LIBRARY_GENERATION + " INTEGER NOT NULL, " +
+            LIBRARY_CONTENT_GENERATION + " INTEGER NOT NULL DEFAULT 0)";
+
+    static final String CREATE_INDEX_CHAPTERS = "CREATE INDEX IF NOT EXISTS " +
+            TABLE_CHAPTERS + "BookIdIndex ON " + TABLE_CHAPTERS + " (" + BOOK_ID + ")";
+    static final String CREATE_INDEX_BOOKMARKS = "CREATE INDEX IF NOT EXISTS " +
+            TABLE_BOOKMARKS + "BookIdIndex ON " + TABLE_BOOKMARKS + " (" + BOOK_ID + ")";
+
+    // compiled statements
+    private static final String INSERT_BOOK = "INSERT INTO " + TABLE_BOOK + " (" +
+            BOOK_NAME + ", " + BOOK_AUTHOR + ", " + BOOK_CURRENT_MEDIA_PATH + ", " +
+            BOOK_PLAYBACK_SPEED + ", " + BOOK_ROOT + ", " + BOOK_TIME + ", " + BOOK_TYPE + ", " +
+            BOOK_USE_COVER_REPLACEMENT + ", " + BOOK_ACTIVE + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, 1)";
+    private static final String UPDATE_BOOK = "UPDATE " + TABLE_BOOK + " SET " +
+            BOOK_NAME + "=?, " + BOOK_AUTHOR + "=?, " + BOOK_CURRENT_MEDIA_PATH + "=?, " +
+            BOOK_PLAYBACK_SPEED + "=?, " + BOOK_ROOT + "=?, " + BOOK_TIME + "=?, " + BOOK_TYPE + "=?, " +
+            BOOK_USE_COVER_REPLACEMENT + "=? WHERE " + BOOK_ID + "=?";
+    private static final String UPDATE_POSITION = "UPDATE " + TABLE_BOOK + " SET " +
+            BOOK_TIME + "=?, " + BOOK_CURRENT_MEDIA_PATH + "=? WHERE " + BOOK_ID + "=?";
+    private static final String UPDATE_ACTIVE = "UPDATE " + TABLE_BOOK + " SET " +
+            BOOK_ACTIVE + "=? WHERE " + BOOK_ID + "=?";
+    private static final String UPDATE_GENERATION = "UPDATE " + TABLE_BOOK + " SET " +
+            BOOK_GENERATION + "=? WHERE " + BOOK_ID + "=?";
+    static final String INSERT_CHAPTER = "INSERT INTO " + TABLE_CHAPTERS + " (" +
+            CHAPTER_DURATION + ", " + CHAPTER_NAME + ", " + CHAPTER_PATH + ", " + BOOK_ID +
+            ") VALUES (?, ?, ?, ?)";
+    private static final String DELETE_CHAPTERS = "DELETE FROM " + TABLE_CHAPTERS + " WHERE " +
+            BOOK_ID + "=?";
+    private static final String INSERT_BOOKMARK = "INSERT INTO " + TABLE_BOOKMARKS + " (" +
+            BOOKMARK_ID + ", " + BOOKMARK_PATH + ", " + BOOKMARK_TITLE + ", " + BOOKMARK_TIME + ", " +
+            BOOK_ID + ") VALUES (?, ?, ?, ?, ?)";
+    private static final String UPDATE_BOOKMARK = "UPDATE " + TABLE_BOOKMARKS + " SET " +
+            BOOKMARK_PATH + "=?, " + BOOKMARK_TITLE + "=?, " + BOOKMARK_TIME + "=? WHERE " +
+            BOOKMARK_ID + "=?";
+    private static final String DELETE_BOOKMARK = "DELETE FROM " + TABLE_BOOKMARKS + " WHERE " +
+            BOOKMARK_ID + "=?";
+    private static final String DELETE_BOOKMARKS = "DELETE FROM " + TABLE_BOOKMARKS + " WHERE " +
+            BOOK_ID + "=?";
+    private static final String INCREMENT_GENERATION = "UPDATE " + TABLE_LIBRARY + " SET " +
+            LIBRARY_GENERATION + "=" + LIBRARY_GENERATION + "+1, " +
+            LIBRARY_CONTENT_GENERATION + "=" + LIBRARY_CONTENT_GENERATION + "+1";
+    private static final String INCREMENT_POSITION_GENERATION = "UPDATE " + TABLE_LIBRARY + " SET " +
+            LIBRARY_GENERATION + "=" + LIBRARY_GENERATION + "+1";
+
+    private static final String SNAPSHOT_NAME = "library.snapshot";
+    /**
+     * Restored records of books that have not been found yet.
+     */
+    private static final String PENDING_IMPORT_NAME = "pending.export";
+    /**
+     * A new snapshot is written once there have been no changes for this long.
+     */
+    private static final long SNAPSHOT_DELAY_MS = 5000;
+    /**
+     * The backup manager is told about changes at most this often.
+     */
+    private static final long BACKUP_REQUEST_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long NO_SNAPSHOT = -1;
+
     private static final String TAG = DataBaseHelper.class.getSimpleName();
     private static DataBaseHelper instance;
     private final Context c;
-    private final List<Book> activeBooks = new ArrayList<>();
-    private final List<Book> orphanedBooks = new ArrayList<>();
+    /**
+     * Guards the books in memory. It is only held for lookups and replacements and never while
+     * the database is accessed.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    @GuardedBy("lock")
+    private final BookRegistry activeBooks = new BookRegistry();
+    @GuardedBy("lock")
+    private final BookRegistry orphanedBooks = new BookRegistry();
     private final Communication communication = Communication.getInstance();
+    /**
+     * Performs all writes to the database, one after another in the order they were submitted.
+     */
+    private final ScheduledExecutorService writer = ExecutorRegistry.getInstance()
+            .newScheduled(TAG + "Writer", ExecutorRegistry.Priority.BACKGROUND, 1);
+    /**
+     * Statements compiled against the writable database, by their sql. Only accessed on the
+     * writer thread.
+     */
+    private final Map<String, SQLiteStatement> statements = new HashMap<>();
+    /**
+     * Writes that have changed the books in memory but not the database yet.
+     */
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    /**
+     * The migration of an older database, which runs before anything else on the writer thread.
+     */
+    private final Future<?> migration;
+    @Nullable
+    private volatile OnMigrationListener migrationListener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Passes the progress of the migration on to the listener that is set at that time, on the
+     * main thread. The listener is usually set after the migration has started.
+     */
+    private final OnMigrationListener migrationProgress = new OnMigrationListener() {
+        @Override
+        public void onMigrationProgress(final int percent) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    OnMigrationListener listener = migrationListener;
+                    if (listener != null) {
+                        listener.onMigrationProgress(percent);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onMigrationFinished() {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    OnMigrationListener listener = migrationListener;
+                    if (listener != null) {
+                        listener.onMigrationFinished();
+                    }
+                }
+            });
+        }
+    };
+    private final File snapshotFile;
+    private final File pendingImportFile;
+    private final BackupManager backupManager;
+    /**
+     * The snapshot the books will be read from, until they have been loaded.
+     */
+    @Nullable
+    private volatile LibrarySnapshot snapshot;
+    /**
+     * The generation of the snapshot that was found on disk, or {@link #NO_SNAPSHOT}. Unlike
+     * {@link #snapshot} it is still known after the books have been loaded.
+     */
+    private final long snapshotGeneration;
+    private volatile boolean loaded = false;
+    /**
+     * The generation of the database. Only accessed on the writer thread, like the fields below.
+     */
+    private long generation;
+    /**
+     * The generation of the changes other than positions, which the snapshot is valid for.
+     */
+    private long contentGeneration;
+    private boolean snapshotOnDisk;
+    private boolean snapshotScheduled = false;
+    private long lastContentChangeNs;
+    private long lastBackupRequestNs;
+    /**
+     * Writes the snapshot once the books have not changed for {@link #SNAPSHOT_DELAY_MS}, else
+     * waits for the rest of that time again. Tries again later if writes are still pending.
+     */
+    private final Runnable snapshotWriter = new Runnable() {
+        @Override
+        public void run() {
+            long quietMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastContentChangeNs);
+            if (quietMs < SNAPSHOT_DELAY_MS) {
+                writer.schedule(this, SNAPSHOT_DELAY_MS - quietMs, TimeUnit.MILLISECONDS);
+                return;
+            }
+            if (!writeSnapshot()) {
+                writer.schedule(this, SNAPSHOT_DELAY_MS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            snapshotScheduled = false;
+        }
+    };
 
     private DataBaseHelper(Context c) {
         super(c, DATABASE_NAME, null, DATABASE_VERSION);
         this.c = c;
 
+        // the database is only opened on the writer thread, if the snapshot is valid
+        snapshotFile = new File(c.getCacheDir(), SNAPSHOT_NAME);
+        pendingImportFile = new File(c.getFilesDir(), PENDING_IMPORT_NAME);
+        backupManager = new BackupManager(c);
+        snapshot = LibrarySnapshot.map(snapshotFile, DATABASE_VERSION);
+        snapshotGeneration = snapshot == null ? NO_SNAPSHOT : snapshot.getGeneration();
+        snapshotOnDisk = snapshot != null;
+        migration = writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                migrate();
+            }
+        });
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                verifySnapshot();
+            }
+        });
+    }
+
+    /**
+     * Migrates an older database step by step, so that it is never upgraded on the thread that
+     * happens to open it first. Must be called on the writer thread.
+     */
+    private void migrate() {
+        File file = c.getDatabasePath(DATABASE_NAME);
+        try {
+            if (!file.exists()) {
+                return;
+            }
+            boolean failed = false;
+            try {
+                SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+                try {
+                    int version = db.getVersion();
+                    // a newer version is left to onDowngrade
+                    if (version > 0 && version < DATABASE_VERSION) {
+                        new DataBaseUpgradeHelper(db, c).migrate(DATABASE_VERSION, migrationProgress);
+                    }
+                } finally {
+                    db.close();
+                }
+            } catch (InvalidPropertiesFormatException | RuntimeException e) {
+                // bad json makes an upgrade step throw IllegalStateException
+                L.e(TAG, "Error at upgrade", e);
+                failed = true;
+            }
+            if (failed) {
+                // onCreate starts over
+                c.deleteDatabase(DATABASE_NAME);
+            }
+        } finally {
+            migrationProgress.onMigrationFinished();
+        }
+    }
+
+    /**
+     * @return true while an older database is migrated. Reading books blocks until it is done.
+     */
+    public boolean isMigrating() {
+        return !migration.isDone();
+    }
+
+    /**
+     * @param listener notified about the progress of the migration, on the main thread. If it is
+     *                 set after the migration, it is not notified at all, so check
+     *                 {@link #isMigrating()} after setting it.
+     */
+    public void setOnMigrationListener(@Nullable OnMigrationListener listener) {
+        migrationListener = listener;
+    }
+
+    /**
+     * Reads all books from the database.
+     */
+    @GuardedBy("lock")
+    private void loadFromDataBase() {
         SQLiteDatabase db = getReadableDatabase();
         Cursor bookCursor = db.query(TABLE_BOOK,
                 new String[]{BOOK_ID, BOOK_NAME, BOOK_AUTHOR, BOOK_CURRENT_MEDIA_PATH,
@@ -93,7 +373,7 @@ public class DataBaseHelper extends SQLiteOpenHelper {
                 long bookId = bookCursor.getLong(0);
                 String bookName = bookCursor.getString(1);
                 String bookAuthor = bookCursor.getString(2);
-                String bookmarkCurrentMediaPath = bookCursor.getString(3);
+                String bookCurrentMediaPath = bookCursor.getString(3);
                 float bookSpeed = bookCursor.getFloat(4);
                 String bookRoot = bookCursor.getString(5);
                 int bookTime = bookCursor.getInt(6);
@@ -101,18 +381,21 @@ public class DataBaseHelper extends SQLiteOpenHelper {
                 boolean bookUseCoverReplacement = bookCursor.getInt(8) == 1;
                 boolean bookActive = bookCursor.getInt(9) == 1;
 
-                List<Chapter> chapters = new ArrayList<>();
+                // paths are stored relative to the root
+                String prefix = Chapter.prefixOf(bookRoot);
+
                 Cursor chapterCursor = db.query(TABLE_CHAPTERS,
                         new String[]{CHAPTER_DURATION, CHAPTER_NAME, CHAPTER_PATH},
                         BOOK_ID + "=?",
                         new String[]{String.valueOf(bookId)},
                         null, null, null);
+                ChapterTable.Builder chapters = new ChapterTable.Builder(prefix, chapterCursor.getCount());
                 try {
                     while (chapterCursor.moveToNext()) {
                         int chapterDuration = chapterCursor.getInt(0);
                         String chapterName = chapterCursor.getString(1);
                         String chapterPath = chapterCursor.getString(2);
-                        chapters.add(new Chapter(chapterPath, chapterName, chapterDuration));
+                        chapters.add(chapterPath, chapterName, chapterDuration);
                     }
                 } finally {
                     chapterCursor.close();
@@ -120,31 +403,36 @@ public class DataBaseHelper extends SQLiteOpenHelper {
 
                 List<Bookmark> bookmarks = new ArrayList<>();
                 Cursor bookmarkCursor = db.query(TABLE_BOOKMARKS,
-                        new String[]{BOOKMARK_PATH, BOOKMARK_TIME, BOOKMARK_TITLE},
+                        new String[]{BOOKMARK_ID, BOOKMARK_PATH, BOOKMARK_TIME, BOOKMARK_TITLE},
                         BOOK_ID + "=?", new String[]{String.valueOf(bookId)}
                         , null, null, null);
                 try {
                     while (bookmarkCursor.moveToNext()) {
-                        String bookmarkPath = bookmarkCursor.getString(0);
-                        int bookmarkTime = bookmarkCursor.getInt(1);
-                        String bookmarkTitle = bookmarkCursor.getString(2);
-                        bookmarks.add(new Bookmark(bookmarkPath, bookmarkTitle, bookmarkTime));
+                        long bookmarkId = bookmarkCursor.getLong(0);
+                        String bookmarkPath = bookmarkCursor.getString(1);
+                        int bookmarkTime = bookmarkCursor.getInt(2);
+                        String bookmarkTitle = bookmarkCursor.getString(3);
+                        bookmarks.add(new Bookmark(bookmarkId, Chapter.resolve(prefix, bookmarkPath),
+                                bookmarkTitle, bookmarkTime));
                     }
                 } finally {
                     bookmarkCursor.close();
                 }
 
-                Book book = new Book(bookRoot, bookName, bookAuthor, chapters,
-                        bookmarkCurrentMediaPath, bookType, bookmarks, c);
-                book.setPlaybackSpeed(bookSpeed);
-                book.setPosition(bookTime, bookmarkCurrentMediaPath);
-                book.setUseCoverReplacement(bookUseCoverReplacement);
-                book.setId(bookId);
+                // the rows are in the order they were added
+                Book book = new Book(bookId, bookRoot, bookName, bookAuthor, chapters.build(),
+                        Chapter.resolve(prefix, bookCurrentMediaPath), bookType,
+                        ImmutableList.<Bookmark>of(), c.getPackageName(), bookTime, bookSpeed,
+                        bookUseCoverReplacement).withSortedBookmarks(bookmarks);
+                if (book.getBookmarks().size() != bookmarks.size()) {
+                    L.e(TAG, "Skipped {} bookmarks of bookId={} without chapter",
+                            bookmarks.size() - book.getBookmarks().size(), bookId);
+                }
 
                 if (bookActive) {
-                    activeBooks.add(book);
+                    activeBooks.put(book);
                 } else {
-                    orphanedBooks.add(book);
+                    orphanedBooks.put(book);
                 }
             }
         } finally {
@@ -152,6 +440,165 @@ public class DataBaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Fills the books in memory on first use, from the snapshot if there is a valid one. The
+     * positions of books read from the snapshot are updated from the database afterwards, on the
+     * writer thread, so the database is not opened before the books are returned.
+     */
+    private void ensureLoaded() {
+        if (!loaded) {
+            Futures.getUnchecked(migration);
+            lock.writeLock().lock();
+            try {
+                if (!loaded) {
+                    LibrarySnapshot s = snapshot;
+                    if (s != null && s.read(activeBooks, orphanedBooks, c.getPackageName())) {
+                        // positions do not invalidate the snapshot
+                        final List<Book> read = new ArrayList<>(activeBooks.asList());
+                        read.addAll(orphanedBooks.asList());
+                        writer.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                loadPositions(read);
+                            }
+                        });
+                    } else {
+                        loadFromDataBase();
+                    }
+                    snapshot = null;
+                    loaded = true;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Replaces the positions of the books read from the snapshot with the ones in the database,
+     * unless the books have been changed in the meantime. Must be called on the writer thread.
+     *
+     * @param read the books as they were read from the snapshot
+     */
+    private void loadPositions(@NonNull List<Book> read) {
+        Map<Long, Book> byId = new HashMap<>(read.size() * 2);
+        for (Book b : read) {
+            byId.put(b.getId(), b);
+        }
+
+        // the books with a different position in the database
+        List<Book> moved = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_BOOK,
+                new String[]{BOOK_ID, BOOK_TIME, BOOK_CURRENT_MEDIA_PATH},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                long bookId = cursor.getLong(0);
+                int time = cursor.getInt(1);
+                String relativePath = cursor.getString(2);
+
+                Book book = byId.get(bookId);
+                if (book == null) {
+                    continue;
+                }
+                String path = Chapter.resolve(book.getPathPrefix(), relativePath);
+                if (time != book.getTime() || !path.equals(book.getCurrentMediaPath())) {
+                    if (book.indexOfChapter(path) == -1) {
+                        L.e(TAG, "Stored position of bookId={} is in no chapter", bookId);
+                    } else {
+                        moved.add(book.withPosition(time, path));
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (moved.isEmpty()) {
+            return;
+        }
+
+        List<Book> updated = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            for (Book book : moved) {
+                // a book changed since has its own position
+                Book old = byId.get(book.getId());
+                if (activeBooks.get(book.getId()) == old) {
+                    activeBooks.put(book);
+                    updated.add(book);
+                } else if (orphanedBooks.get(book.getId()) == old) {
+                    orphanedBooks.put(book);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (!updated.isEmpty()) {
+            communication.bookSetChanged(BookSetChange.updated(updated));
+        }
+    }
+
+    /**
+     * Compares the generation of the snapshot with the database. If the database has been changed
+     * since, for example by a restore, the books are loaded from it again, whether they have
+     * already been read from the snapshot or not. Must be called on the writer thread.
+     */
+    private void verifySnapshot() {
+        Cursor cursor = getReadableDatabase().query(TABLE_LIBRARY,
+                new String[]{LIBRARY_GENERATION, LIBRARY_CONTENT_GENERATION}, null, null, null, null, null);
+        try {
+            cursor.moveToFirst();
+            generation = cursor.getLong(0);
+            contentGeneration = cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+
+        if (snapshotGeneration != NO_SNAPSHOT && snapshotGeneration != contentGeneration) {
+            L.e(TAG, "snapshot generation={} does not match database generation={}", snapshotGeneration,
+                    contentGeneration);
+            deleteSnapshot();
+
+            lock.writeLock().lock();
+            try {
+                if (!loaded) {
+                    // ensureLoaded reads the database instead
+                    snapshot = null;
+                    return;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            reloadFromDataBase();
+        }
+    }
+
+    /**
+     * Replaces the books in memory with the ones in the database and sends the difference. Must be
+     * called on the writer thread once the books have been loaded.
+     */
+    private void reloadFromDataBase() {
+        BookSetChange change;
+        lock.writeLock().lock();
+        try {
+            List<Book> old = activeBooks.asList();
+            activeBooks.clear();
+            orphanedBooks.clear();
+            loadFromDataBase();
+
+            List<Long> removed = new ArrayList<>();
+            for (Book b : old) {
+                if (!activeBooks.contains(b.getId())) {
+                    removed.add(b.getId());
+                }
+            }
+            change = BookSetChange.of(activeBooks.asList(), removed);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        communication.bookSetChanged(change);
+    }
+
     public static synchronized DataBaseHelper getInstance(Context c) {
         if (instance == null) {
             instance = new DataBaseHelper(c.getApplicationContext());
@@ -160,150 +607,1151 @@ public class DataBaseHelper extends SQLiteOpenHelper {
     }
 
 
-    public synchronized void addBook(@NonNull Book book) {
-        L.v(TAG, "addBook=" + book.getName());
+    /**
+     * Adds a new book to the database. Blocks until the book has been written, as its id is
+     * assigned by the database.
+     *
+     * @param book the book to add
+     * @return the added book, carrying the ids it and its bookmarks were assigned.
+     */
+    @Override
+    @NonNull
+    public Book addBook(@NonNull final Book book) {
+        L.v(TAG, "addBook={}", book.getName());
+        ensureLoaded();
 
-        SQLiteDatabase db = getWritableDatabase();
-        db.beginTransaction();
+        Book added;
+        // the book is in the database before it is in memory
+        pendingWrites.incrementAndGet();
         try {
-            ContentValues bookCv = book.getContentValues();
-
-            long bookId = db.insert(TABLE_BOOK, null, bookCv);
-            book.setId(bookId);
+            added = Futures.getUnchecked(writer.submit(new Callable<Book>() {
+                @Override
+                public Book call() throws Exception {
+                    return insertBook(book);
+                }
+            }));
 
-            for (Chapter c : book.getChapters()) {
-                ContentValues chapterCv = c.getContentValues(book.getId());
-                db.insert(TABLE_CHAPTERS, null, chapterCv);
+            lock.writeLock().lock();
+            try {
+                activeBooks.put(added);
+            } finally {
+                lock.writeLock().unlock();
             }
+        } finally {
+            pendingWrites.decrementAndGet();
+        }
 
-            for (Bookmark b : book.getBookmarks()) {
-                ContentValues bookmarkCv = b.getContentValues(book.getId());
-                db.insert(TABLE_BOOKMARKS, null, bookmarkCv);
+        communication.bookSetChanged(BookSetChange.added(added));
+        return added;
+    }
+
+    @Override
+    @Nullable
+    public Book getBook(long id) {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return activeBooks.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return a snapshot of the active books. As books are immutable, no copies are made.
+     */
+    @Override
+    @NonNull
+    public List<Book> getActiveBooks() {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return activeBooks.asList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @NonNull
+    public List<Book> getOrphanedBooks() {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return orphanedBooks.asList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getLibraryDuration() {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return activeBooks.getTotalDuration();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces a book. The change is visible immediately and written to the database in the
+     * background.
+     * <p/>
+     * The bookmarks of the book are ignored and the stored ones are kept, so an outdated copy of a
+     * book can not undo changes to the bookmarks. They are changed through
+     * {@link #addBookmark(long, Bookmark)}, {@link #updateBookmark(long, Bookmark)} and
+     * {@link #deleteBookmark(long, long)}. If the chapters change, the stored bookmarks of chapters
+     * that are gone are deleted along with the update.
+     *
+     * @param book the new version of the book
+     */
+    @Override
+    public void updateBook(@NonNull Book book) {
+        L.v(TAG, "updateBook={}", book.getName());
+        new Validate().notEmpty(book.getChapters());
+        ensureLoaded();
+
+        final Book updated;
+        lock.writeLock().lock();
+        try {
+            final Book old = activeBooks.get(book.getId());
+            if (old == null) {
+                L.e(TAG, "Could not update book={}", book);
+                return;
             }
+            if (old.getChapters() != book.getChapters()) {
+                // the order of the bookmarks depends on the order of the chapters
+                updated = book.withSortedBookmarks(old.getBookmarks());
+            } else {
+                updated = book.withBookmarks(old.getBookmarks());
+            }
+            activeBooks.put(updated);
+            submitWrite(new Runnable() {
+                @Override
+                public void run() {
+                    persistUpdate(old, updated);
+                }
+            });
+        } finally {
+            lock.writeLock().unlock();
+        }
 
-            db.setTransactionSuccessful();
+        communication.sendBookContentChanged(updated);
+    }
+
+    @Override
+    public void updatePosition(long bookId, int time, @NonNull String currentMediaPath) {
+        ensureLoaded();
+
+        final Book updated;
+        lock.writeLock().lock();
+        try {
+            final Book old = activeBooks.get(bookId);
+            if (old == null) {
+                L.e(TAG, "Could not update position of bookId={}", bookId);
+                return;
+            }
+            if (old.indexOfChapter(currentMediaPath) == -1) {
+                // the chapter has been removed by the scanner while it was played
+                L.e(TAG, "Could not update position of bookId={} to missing chapter={}", bookId, currentMediaPath);
+                return;
+            }
+            updated = old.withPosition(time, currentMediaPath);
+            activeBooks.put(updated);
+            submitWrite(new Runnable() {
+                @Override
+                public void run() {
+                    persistUpdate(old, updated);
+                }
+            });
         } finally {
-            db.endTransaction();
+            lock.writeLock().unlock();
         }
 
-        activeBooks.add(book);
+        communication.sendPositionTick(bookId, updated.getCurrentChapterIndex(), time);
+    }
 
-        communication.bookSetChanged(activeBooks);
+    /**
+     * Adds a bookmark to an active book. Blocks until the bookmark has been written, as its id is
+     * assigned by the database. Only the bookmark is written, not the whole book.
+     *
+     * @param bookId   the id of the book
+     * @param bookmark the bookmark to add. Its chapter must be one of the chapters of the book.
+     * @return the book with the bookmark added, or <code>null</code> if there is no such book.
+     */
+    @Override
+    @Nullable
+    public Book addBookmark(final long bookId, @NonNull final Bookmark bookmark) {
+        L.v(TAG, "addBookmark={}", bookmark);
+        ensureLoaded();
+
+        final Book book = getBook(bookId);
+        if (book == null) {
+            L.e(TAG, "Could not add bookmark to bookId={}", bookId);
+            return null;
+        }
+        if (book.indexOfChapter(bookmark.getMediaPath()) == -1) {
+            throw new IllegalArgumentException("bookmark=" + bookmark + " does not belong to book=" + book);
+        }
+
+        Book updated;
+        // the bookmark is in the database before it is in memory
+        pendingWrites.incrementAndGet();
+        try {
+            long bookmarkId = Futures.getUnchecked(writer.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return persistBookmarkInsert(book, bookmark);
+                }
+            }));
+
+            lock.writeLock().lock();
+            try {
+                // the book may have been hidden in the meantime
+                BookRegistry registry = activeBooks.contains(bookId) ? activeBooks : orphanedBooks;
+                Book current = registry.get(bookId);
+                if (current == null) {
+                    L.e(TAG, "Book with id={} is gone", bookId);
+                    return null;
+                }
+                updated = current.withBookmark(bookmark.withId(bookmarkId));
+                registry.put(updated);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            pendingWrites.decrementAndGet();
+        }
+
+        communication.sendBookmarksChanged(updated);
+        return updated;
     }
 
+    /**
+     * Replaces the bookmark with the same id. The change is visible immediately and written to
+     * the database in the background.
+     *
+     * @param bookId   the id of the book
+     * @param bookmark the new version of the bookmark
+     * @return the book with the bookmark replaced, or <code>null</code> if there is no such book or
+     * bookmark.
+     */
+    @Override
     @Nullable
-    public synchronized Book getBook(long id) {
-        for (Book b : activeBooks) {
-            if (b.getId() == id) {
-                return new Book(b);
+    public Book updateBookmark(long bookId, @NonNull final Bookmark bookmark) {
+        L.v(TAG, "updateBookmark={}", bookmark);
+        ensureLoaded();
+
+        Book updated;
+        lock.writeLock().lock();
+        try {
+            final Book book = activeBooks.get(bookId);
+            if (book == null || book.indexOfBookmark(bookmark.getId()) == -1) {
+                L.e(TAG, "Could not update bookmark={} of bookId={}", bookmark, bookId);
+                return null;
             }
+            // the bookmark may have moved, as the title is part of the order
+            updated = book.withoutBookmark(bookmark.getId()).withBookmark(bookmark);
+            activeBooks.put(updated);
+            submitWrite(new Runnable() {
+                @Override
+                public void run() {
+                    persistBookmarkUpdate(book, bookmark);
+                }
+            });
+        } finally {
+            lock.writeLock().unlock();
         }
-        return null;
+
+        communication.sendBookmarksChanged(updated);
+        return updated;
     }
 
+    /**
+     * Deletes a bookmark. The change is visible immediately and written to the database in the
+     * background.
+     *
+     * @param bookId     the id of the book
+     * @param bookmarkId the id of the bookmark
+     * @return the book without the bookmark, or <code>null</code> if there is no such book or
+     * bookmark.
+     */
+    @Override
+    @Nullable
+    public Book deleteBookmark(final long bookId, final long bookmarkId) {
+        L.v(TAG, "deleteBookmark={}", bookmarkId);
+        ensureLoaded();
 
-    @NonNull
-    public synchronized List<Book> getActiveBooks() {
-        List<Book> copyBooks = new ArrayList<>();
-        for (Book b : activeBooks) {
-            copyBooks.add(new Book(b));
+        Book updated;
+        lock.writeLock().lock();
+        try {
+            Book book = activeBooks.get(bookId);
+            if (book == null || book.indexOfBookmark(bookmarkId) == -1) {
+                L.e(TAG, "Could not delete bookmarkId={} of bookId={}", bookmarkId, bookId);
+                return null;
+            }
+            updated = book.withoutBookmark(bookmarkId);
+            activeBooks.put(updated);
+            submitWrite(new Runnable() {
+                @Override
+                public void run() {
+                    persistBookmarkDelete(bookId, bookmarkId);
+                }
+            });
+        } finally {
+            lock.writeLock().unlock();
         }
-        return copyBooks;
+
+        communication.sendBookmarksChanged(updated);
+        return updated;
     }
 
-    public synchronized List<Book> getOrphanedBooks() {
-        List<Book> copyBooks = new ArrayList<>();
-        for (Book b : orphanedBooks) {
-            copyBooks.add(new Book(b));
+    @Override
+    public void hideBook(@NonNull final Book book) {
+        L.v(TAG, "hideBook={}", book.getName());
+        new Validate().notEmpty(book.getChapters());
+        ensureLoaded();
+
+        lock.writeLock().lock();
+        try {
+            if (activeBooks.remove(book.getId()) == null) {
+                throw new AssertionError("This should not have happened. Tried to remove a not existing book");
+            }
+            orphanedBooks.put(book);
+            submitWrite(new Runnable() {
+                @Override
+                public void run() {
+                    persistHide(book);
+                }
+            });
+        } finally {
+            lock.writeLock().unlock();
         }
-        return copyBooks;
+
+        communication.bookSetChanged(BookSetChange.removed(book.getId()));
     }
 
-    public synchronized void updateBook(@NonNull Book book) {
-        L.v(TAG, "updateBook=" + book.getName());
+    @Override
+    public void revealBook(@NonNull final Book book) {
         new Validate().notEmpty(book.getChapters());
+        ensureLoaded();
+
+        lock.writeLock().lock();
+        try {
+            orphanedBooks.remove(book.getId());
+            activeBooks.put(book);
+            submitWrite(new Runnable() {
+                @Override
+                public void run() {
+                    persistReveal(book);
+                }
+            });
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        communication.bookSetChanged(BookSetChange.added(book));
+    }
+
+    /**
+     * Writes the positions, speeds and bookmarks of the active books to a stream, in the format of
+     * {@link LibraryExport}.
+     *
+     * @param out the stream. It is not closed.
+     */
+    public void exportLibrary(@NonNull OutputStream out) throws IOException {
+        LibraryExport.write(out, getActiveBooks());
+    }
+
+    /**
+     * Restores positions, speeds and bookmarks from an export. A record is only applied to the
+     * active book with the same root and the same chapters, others are skipped, and bookmarks a
+     * book already has are not added again. The export is read record by record and all changes
+     * are written in a single transaction.
+     *
+     * @param in the export. It is not closed.
+     * @return the number of books that have been restored
+     * @throws IOException if the export could not be read. Nothing has been changed then.
+     */
+    public int importLibrary(@NonNull InputStream in) throws IOException {
+        return importLibrary(in, null);
+    }
 
-        int indexToUpdate = -1;
-        for (int i = 0; i < activeBooks.size(); i++) {
-            if (activeBooks.get(i).getId() == book.getId()) {
-                indexToUpdate = i;
+    /**
+     * Like {@link #importLibrary(InputStream)}, but keeps the records that do not match a book.
+     *
+     * @param unmatched receives the records that have not been applied, or <code>null</code>
+     */
+    private int importLibrary(@NonNull final InputStream in, @Nullable final LibraryExport.Writer unmatched)
+            throws IOException {
+        L.v(TAG, "importLibrary");
+        ensureLoaded();
+
+        final ListMultimap<String, Book> booksByRoot = ArrayListMultimap.create();
+        for (Book b : getActiveBooks()) {
+            booksByRoot.put(b.getRoot(), b);
+        }
+
+        List<Book> restored = Futures.get(writer.submit(new Callable<List<Book>>() {
+            @Override
+            public List<Book> call() throws IOException {
+                return persistImport(in, booksByRoot, unmatched);
             }
+        }), IOException.class);
+
+        if (!restored.isEmpty()) {
+            communication.bookSetChanged(BookSetChange.updated(restored));
         }
-        if (indexToUpdate != -1) {
-            activeBooks.set(indexToUpdate, book);
+        return restored.size();
+    }
 
-            SQLiteDatabase db = getWritableDatabase();
-            db.beginTransaction();
+    /**
+     * Keeps the records of an export until their books are found, as a restore happens before the
+     * first scan. They are applied by {@link #importPending()}.
+     *
+     * @param exports the exports to keep, read one after another. They are not closed, and the
+     *                records of a corrupt one are skipped.
+     */
+    public void importLater(@NonNull List<InputStream> exports) throws IOException {
+        synchronized (pendingImportFile) {
+            File tmp = new File(pendingImportFile.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
             try {
-                // update book itself
-                ContentValues bookCv = book.getContentValues();
-                db.update(TABLE_BOOK, bookCv, BOOK_ID + "=?", new String[]{String.valueOf(book.getId())});
+                LibraryExport.Writer writer = new LibraryExport.Writer(out);
+                if (pendingImportFile.exists()) {
+                    copyRecords(pendingImportFile, writer);
+                }
+                for (InputStream in : exports) {
+                    try {
+                        LibraryExport.Reader reader = new LibraryExport.Reader(in);
+                        LibraryExport.Record record;
+                        while ((record = reader.next()) != null) {
+                            writer.add(record);
+                        }
+                    } catch (IOException e) {
+                        // keeps the others
+                        L.e(TAG, "Skipping a corrupt export", e);
+                    }
+                }
+                writer.finish();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(pendingImportFile)) {
+                throw new IOException("Could not rename " + tmp + " to " + pendingImportFile);
+            }
+        }
+    }
 
-                // delete old chapters and replace them with new ones
-                db.delete(TABLE_CHAPTERS, BOOK_ID + "=?", new String[]{String.valueOf(book.getId())});
-                for (Chapter c : book.getChapters()) {
-                    ContentValues chapterCv = c.getContentValues(book.getId());
-                    db.insert(TABLE_CHAPTERS, null, chapterCv);
+    /**
+     * Applies the records kept by {@link #importLater(List)} to the books that have been found
+     * since. The others are kept for the next time.
+     */
+    @Override
+    public void importPending() {
+        synchronized (pendingImportFile) {
+            if (!pendingImportFile.exists()) {
+                return;
+            }
+            File tmp = new File(pendingImportFile.getPath() + ".tmp");
+            try {
+                int restored;
+                LibraryExport.Writer unmatched;
+                InputStream in = new FileInputStream(pendingImportFile);
+                try {
+                    FileOutputStream out = new FileOutputStream(tmp);
+                    try {
+                        unmatched = new LibraryExport.Writer(out);
+                        restored = importLibrary(in, unmatched);
+                        unmatched.finish();
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    in.close();
+                }
+                L.i(TAG, "restored={} books, pending={}", restored, unmatched.getCount());
+                if (unmatched.getCount() == 0) {
+                    //noinspection ResultOfMethodCallIgnored
+                    pendingImportFile.delete();
+                } else if (restored > 0 && !tmp.renameTo(pendingImportFile)) {
+                    L.e(TAG, "Could not rename {} to {}", tmp, pendingImportFile);
                 }
+            } catch (IOException e) {
+                L.e(TAG, "Could not import pending records", e);
+                //noinspection ResultOfMethodCallIgnored
+                pendingImportFile.delete();
+            } finally {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+            }
+        }
+    }
 
-                // replace old bookmarks and replace them with new ones
-                db.delete(TABLE_BOOKMARKS, BOOK_ID + "=?", new String[]{String.valueOf(book.getId())});
+    private static void copyRecords(@NonNull File export, @NonNull LibraryExport.Writer writer) throws IOException {
+        InputStream in = new FileInputStream(export);
+        try {
+            LibraryExport.Reader reader = new LibraryExport.Reader(in);
+            LibraryExport.Record record;
+            while ((record = reader.next()) != null) {
+                writer.add(record);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Finds the active books that have changed since an earlier call. Waits for the pending writes
+     * first.
+     *
+     * @param generation the generation returned by an earlier call, or 0 for all books
+     * @param changed    receives the books
+     * @return the generation the books are current to
+     */
+    public long getBooksChangedSince(long generation, @NonNull List<Book> changed) {
+        ensureLoaded();
+        awaitWrites();
+
+        SQLiteDatabase db = getReadableDatabase();
+        // read first, so a book changed in between is found again the next time
+        long current = DatabaseUtils.longForQuery(db, "SELECT " + LIBRARY_GENERATION + " FROM " + TABLE_LIBRARY, null);
+        Cursor cursor = db.query(TABLE_BOOK, new String[]{BOOK_ID},
+                BOOK_ACTIVE + "=1 AND " + BOOK_GENERATION + ">?", new String[]{String.valueOf(generation)},
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                Book book = getBook(cursor.getLong(0));
+                if (book != null) {
+                    changed.add(book);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return current;
+    }
+
+    /**
+     * Queues a write of changes that have already been made in memory. If the write fails, memory
+     * no longer matches the database, so the snapshot is dropped and the books are loaded from the
+     * database again.
+     */
+    @GuardedBy("lock")
+    private void submitWrite(@NonNull final Runnable write) {
+        pendingWrites.incrementAndGet();
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write.run();
+                } catch (RuntimeException e) {
+                    L.e(TAG, "Could not write change", e);
+                    deleteSnapshot();
+                    reloadFromDataBase();
+                } finally {
+                    pendingWrites.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Blocks until all writes submitted so far have been performed.
+     */
+    @Override
+    public void awaitWrites() {
+        Futures.getUnchecked(writer.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }));
+    }
+
+    /**
+     * Inserts a book with its chapters and bookmarks. Must be called on the writer thread.
+     *
+     * @return the book carrying the ids of it and its bookmarks
+     */
+    @NonNull
+    private Book insertBook(@NonNull Book book) {
+        deleteSnapshot();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement insertBook = statement(INSERT_BOOK);
+            bindBook(insertBook, book);
+            long bookId = insertBook.executeInsert();
+            book = book.withId(bookId);
+
+            insertChapters(book);
+            book = book.withBookmarks(insertBookmarks(book));
+
+            incrementGeneration();
+            updateGeneration(bookId, generation);
+            db.setTransactionSuccessful();
+            return book;
+        } finally {
+            db.endTransaction();
+            scheduleSnapshot();
+        }
+    }
+
+    /**
+     * Writes the changes between two versions of a book. Must be called on the writer thread.
+     */
+    private void persistUpdate(@NonNull Book old, @NonNull Book book) {
+        // books share unchanged chapters, so only changed ones are rewritten. Bookmarks are
+        // written on their own.
+        boolean chaptersChanged = old.getChapters() != book.getChapters();
+        if (!chaptersChanged && onlyPositionDiffers(old, book)) {
+            persistPosition(book);
+            return;
+        }
+
+        deleteSnapshot();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            // update book itself
+            SQLiteStatement updateBook = statement(UPDATE_BOOK);
+            bindBook(updateBook, book);
+            updateBook.bindLong(9, book.getId());
+            updateBook.executeUpdateDelete();
+
+            if (chaptersChanged) {
+                deleteById(DELETE_CHAPTERS, book.getId());
+                insertChapters(book);
+
+                // the bookmarks of removed chapters have been dropped by updateBook
+                Set<Long> kept = new HashSet<>(book.getBookmarks().size() * 2);
                 for (Bookmark b : book.getBookmarks()) {
-                    ContentValues bookmarkCV = b.getContentValues(book.getId());
-                    db.insert(TABLE_BOOKMARKS, null, bookmarkCV);
+                    kept.add(b.getId());
+                }
+                for (Bookmark b : old.getBookmarks()) {
+                    if (!kept.contains(b.getId())) {
+                        deleteById(DELETE_BOOKMARK, b.getId());
+                    }
                 }
+            }
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+            incrementGeneration();
+            updateGeneration(book.getId(), generation);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            scheduleSnapshot();
+        }
+    }
+
+    /**
+     * Writes the position of a book. The snapshot stays valid, as the positions are read from the
+     * database after the snapshot has been loaded. Must be called on the writer thread.
+     */
+    private void persistPosition(@NonNull Book book) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement updatePosition = statement(UPDATE_POSITION);
+            updatePosition.bindLong(1, book.getTime());
+            updatePosition.bindString(2, Chapter.relativize(book.getPathPrefix(), book.getCurrentMediaPath()));
+            updatePosition.bindLong(3, book.getId());
+            updatePosition.executeUpdateDelete();
+
+            statement(INCREMENT_POSITION_GENERATION).executeUpdateDelete();
+            generation++;
+            updateGeneration(book.getId(), generation);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            requestBackup();
+        }
+    }
+
+    /**
+     * Marks a book as orphaned. Must be called on the writer thread.
+     */
+    private void persistHide(@NonNull Book book) {
+        deleteSnapshot();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement updateActive = statement(UPDATE_ACTIVE);
+            updateActive.bindLong(1, 0);
+            updateActive.bindLong(2, book.getId());
+            updateActive.executeUpdateDelete();
+
+            incrementGeneration();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            scheduleSnapshot();
+        }
+    }
+
+    /**
+     * Marks a book as active again. Must be called on the writer thread.
+     */
+    private void persistReveal(@NonNull Book book) {
+        // the book may come back with a different set of chapters and bookmarks
+        deleteSnapshot();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement updateBook = statement(UPDATE_BOOK);
+            bindBook(updateBook, book);
+            updateBook.bindLong(9, book.getId());
+            updateBook.executeUpdateDelete();
+
+            SQLiteStatement updateActive = statement(UPDATE_ACTIVE);
+            updateActive.bindLong(1, 1);
+            updateActive.bindLong(2, book.getId());
+            updateActive.executeUpdateDelete();
+
+            deleteById(DELETE_CHAPTERS, book.getId());
+            insertChapters(book);
+            deleteById(DELETE_BOOKMARKS, book.getId());
+            insertBookmarks(book);
+
+            incrementGeneration();
+            updateGeneration(book.getId(), generation);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            scheduleSnapshot();
+        }
+    }
+
+    /**
+     * Inserts a single bookmark. Must be called on the writer thread.
+     *
+     * @return the id of the new bookmark
+     */
+    private long persistBookmarkInsert(@NonNull Book book, @NonNull Bookmark bookmark) {
+        deleteSnapshot();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement insertBookmark = statement(INSERT_BOOKMARK);
+            insertBookmark.bindNull(1);
+            bindBookmark(insertBookmark, 2, book, bookmark);
+            insertBookmark.bindLong(5, book.getId());
+            long bookmarkId = insertBookmark.executeInsert();
+
+            incrementGeneration();
+            updateGeneration(book.getId(), generation);
+            db.setTransactionSuccessful();
+            return bookmarkId;
+        } finally {
+            db.endTransaction();
+            scheduleSnapshot();
+        }
+    }
+
+    /**
+     * Writes a single bookmark by its id. Must be called on the writer thread.
+     */
+    private void persistBookmarkUpdate(@NonNull Book book, @NonNull Bookmark bookmark) {
+        deleteSnapshot();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement updateBookmark = statement(UPDATE_BOOKMARK);
+            bindBookmark(updateBookmark, 1, book, bookmark);
+            updateBookmark.bindLong(4, bookmark.getId());
+            updateBookmark.executeUpdateDelete();
+
+            incrementGeneration();
+            updateGeneration(book.getId(), generation);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            scheduleSnapshot();
+        }
+    }
+
+    /**
+     * Deletes a single bookmark by its id. Must be called on the writer thread.
+     */
+    private void persistBookmarkDelete(long bookId, long bookmarkId) {
+        deleteSnapshot();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            deleteById(DELETE_BOOKMARK, bookmarkId);
+
+            incrementGeneration();
+            updateGeneration(bookId, generation);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            scheduleSnapshot();
+        }
+    }
+
+    /**
+     * Writes the records of an export to the database and then applies them to the books in
+     * memory. Must be called on the writer thread.
+     *
+     * @param booksByRoot the active books by their root, as they were when the import started
+     * @return the active books that have been restored
+     */
+    @NonNull
+    private List<Book> persistImport(@NonNull InputStream in, @NonNull ListMultimap<String, Book> booksByRoot,
+                              @Nullable LibraryExport.Writer unmatched) throws IOException {
+        LibraryExport.Reader reader = new LibraryExport.Reader(in);
+        // only the changes of the matching books are kept until the transaction is done
+        List<Book> bases = new ArrayList<>();
+        List<LibraryExport.Record> records = new ArrayList<>();
+        List<ImmutableList<Bookmark>> addedBookmarks = new ArrayList<>();
+
+        deleteSnapshot();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            LibraryExport.Record record;
+            while ((record = reader.next()) != null) {
+                boolean applied = false;
+                for (Book base : booksByRoot.get(record.root)) {
+                    if (record.matches(base)) {
+                        ImmutableList<Bookmark> added = persistRecord(base, record);
+                        if (added != null) {
+                            bases.add(base);
+                            records.add(record);
+                            addedBookmarks.add(added);
+                            applied = true;
+                        }
+                        break;
+                    }
+                }
+                if (!applied && unmatched != null) {
+                    unmatched.add(record);
+                }
             }
 
-            communication.sendBookContentChanged(book);
-        } else {
-            L.e(TAG, "Could not update book=" + book);
+            incrementGeneration();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            scheduleSnapshot();
+        }
+
+        List<Book> restored = new ArrayList<>(bases.size());
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < bases.size(); i++) {
+                Book base = bases.get(i);
+                // the book may have been changed or hidden in the meantime
+                BookRegistry registry = activeBooks.contains(base.getId()) ? activeBooks : orphanedBooks;
+                final Book current = registry.get(base.getId());
+                if (current == null) {
+                    continue;
+                }
+                final Book updated = restore(current, records.get(i), addedBookmarks.get(i));
+                registry.put(updated);
+                if (registry == activeBooks) {
+                    restored.add(updated);
+                }
+                if (current != base) {
+                    // the write of the concurrent change comes after the import and would undo it
+                    submitWrite(new Runnable() {
+                        @Override
+                        public void run() {
+                            persistUpdate(current, updated);
+                        }
+                    });
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
+        return restored;
     }
 
-    public synchronized void hideBook(@NonNull Book book) {
-        L.v(TAG, "hideBook=" + book.getName());
-        new Validate().notEmpty(book.getChapters());
+    /**
+     * Writes the position and speed of a record and inserts its new bookmarks. Must be called
+     * inside the transaction of an import.
+     *
+     * @return the inserted bookmarks with their ids, or <code>null</code> if the record does not
+     * fit the chapters of the book.
+     */
+    @Nullable
+    private ImmutableList<Bookmark> persistRecord(@NonNull Book book, @NonNull LibraryExport.Record record) {
+        String prefix = book.getPathPrefix();
+        if (book.indexOfChapter(Chapter.resolve(prefix, record.currentMediaPath)) == -1) {
+            return null;
+        }
+
+        SQLiteStatement updateBook = statement(UPDATE_BOOK);
+        bindBook(updateBook, restore(book, record, ImmutableList.<Bookmark>of()));
+        updateBook.bindLong(9, book.getId());
+        updateBook.executeUpdateDelete();
+        // the generation is incremented once the import is done
+        updateGeneration(book.getId(), generation + 1);
 
-        int indexToHide = -1;
-        for (int i = 0; i < activeBooks.size(); i++) {
-            if (activeBooks.get(i).getId() == book.getId()) {
-                indexToHide = i;
+        SQLiteStatement insertBookmark = statement(INSERT_BOOKMARK);
+        ImmutableList.Builder<Bookmark> inserted = ImmutableList.builder();
+        for (Bookmark b : record.bookmarks) {
+            Bookmark bookmark = new Bookmark(Chapter.resolve(prefix, b.getMediaPath()), b.getTitle(), b.getTime());
+            if (book.indexOfChapter(bookmark.getMediaPath()) == -1 || hasBookmark(book, bookmark)) {
+                continue;
             }
+            insertBookmark.bindNull(1);
+            bindBookmark(insertBookmark, 2, book, bookmark);
+            insertBookmark.bindLong(5, book.getId());
+            inserted.add(bookmark.withId(insertBookmark.executeInsert()));
         }
-        if (indexToHide == -1) {
-            throw new AssertionError("This should not have happened. Tried to remove a not existing book");
-        } else {
-            activeBooks.remove(indexToHide);
-            orphanedBooks.add(book);
+        return inserted.build();
+    }
 
-            ContentValues cv = new ContentValues();
-            cv.put(BOOK_ACTIVE, 0);
-            getWritableDatabase().update(TABLE_BOOK, cv, BOOK_ID + "=?", new String[]{String.valueOf(book.getId())});
+    /**
+     * @param record    a record that fits the chapters of the book
+     * @param bookmarks bookmarks of the record, with the ids they were stored with
+     * @return the book with the position and speed of the record and the bookmarks added
+     */
+    @NonNull
+    private static Book restore(@NonNull Book book, @NonNull LibraryExport.Record record,
+                                @NonNull List<Bookmark> bookmarks) {
+        Book restored = book.withPosition(record.time, Chapter.resolve(book.getPathPrefix(), record.currentMediaPath))
+                .withPlaybackSpeed(record.playbackSpeed);
+        for (Bookmark b : bookmarks) {
+            restored = restored.withBookmark(b);
+        }
+        return restored;
+    }
 
-            communication.bookSetChanged(activeBooks);
+    /**
+     * @return true if the book has a bookmark with the same chapter, time and title.
+     */
+    private static boolean hasBookmark(@NonNull Book book, @NonNull Bookmark bookmark) {
+        for (Bookmark b : book.getBookmarks()) {
+            if (b.getTime() == bookmark.getTime() && b.getMediaPath().equals(bookmark.getMediaPath())
+                    && b.getTitle().equals(bookmark.getTitle())) {
+                return true;
+            }
         }
+        return false;
     }
 
-    public synchronized void revealBook(@NonNull Book book) {
-        new Validate().notEmpty(book.getChapters());
+    /**
+     * Advances the generation of the database, which invalidates all snapshots taken before. Must
+     * be called inside the transaction of a write.
+     */
+    private void incrementGeneration() {
+        statement(INCREMENT_GENERATION).executeUpdateDelete();
+        generation++;
+        contentGeneration++;
+    }
+
+    /**
+     * Marks a book as changed in a generation, so {@link #getBooksChangedSince(long, List)} finds
+     * it. Must be called inside the transaction of a write.
+     */
+    private void updateGeneration(long bookId, long generation) {
+        SQLiteStatement updateGeneration = statement(UPDATE_GENERATION);
+        updateGeneration.bindLong(1, generation);
+        updateGeneration.bindLong(2, bookId);
+        updateGeneration.executeUpdateDelete();
+    }
+
+    /**
+     * Deletes the snapshot before the database changes, so a snapshot on disk never lags behind
+     * the database. Must be called on the writer thread.
+     */
+    private void deleteSnapshot() {
+        if (snapshotOnDisk) {
+            if (!snapshotFile.delete() && snapshotFile.exists()) {
+                L.e(TAG, "Could not delete snapshot");
+            }
+            snapshotOnDisk = false;
+        }
+    }
+
+    /**
+     * Writes a new snapshot once the changes have stopped for a while, so a burst of changes
+     * results in one snapshot. Must be called on the writer thread.
+     */
+    private void scheduleSnapshot() {
+        lastContentChangeNs = System.nanoTime();
+        if (!snapshotScheduled) {
+            snapshotScheduled = true;
+            writer.schedule(snapshotWriter, SNAPSHOT_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+        requestBackup();
+    }
+
+    /**
+     * Tells the backup manager that the books have changed, at most every
+     * {@link #BACKUP_REQUEST_INTERVAL_MS}. The backup itself runs much later and only contains
+     * the books changed since the last one. Must be called on the writer thread.
+     */
+    private void requestBackup() {
+        long now = System.nanoTime();
+        if (lastBackupRequestNs == 0 || now - lastBackupRequestNs >= TimeUnit.MILLISECONDS.toNanos(BACKUP_REQUEST_INTERVAL_MS)) {
+            lastBackupRequestNs = now;
+            backupManager.dataChanged();
+        }
+    }
+
+    /**
+     * Writes the books if they match the database. Must be called on the writer thread.
+     *
+     * @return false if the books in memory are ahead of the database, so nothing was written.
+     * Position writes do not schedule a snapshot, so the caller has to try again.
+     */
+    private boolean writeSnapshot() {
+        List<Book> active;
+        List<Book> orphaned;
+        lock.readLock().lock();
+        try {
+            if (pendingWrites.get() > 0) {
+                return false;
+            }
+            active = activeBooks.asList();
+            orphaned = orphanedBooks.asList();
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        try {
+            LibrarySnapshot.write(snapshotFile, DATABASE_VERSION, contentGeneration, active, orphaned);
+            snapshotOnDisk = true;
+        } catch (IOException e) {
+            L.e(TAG, "Could not write snapshot", e);
+            snapshotOnDisk = true;
+            deleteSnapshot();
+        }
+        return true;
+    }
+
+    /**
+     * @param old  the book as it is stored
+     * @param book the new version of the book
+     * @return true if the books only differ by their position
+     */
+    private static boolean onlyPositionDiffers(@NonNull Book old, @NonNull Book book) {
+        return old.getName().equals(book.getName())
+                && Objects.equal(old.getAuthor(), book.getAuthor())
+                && old.getPlaybackSpeed() == book.getPlaybackSpeed()
+                && old.isUseCoverReplacement() == book.isUseCoverReplacement()
+                && old.getRoot().equals(book.getRoot())
+                && old.getType() == book.getType();
+    }
+
+    /**
+     * Binds the columns of a book to {@link #INSERT_BOOK} or {@link #UPDATE_BOOK}.
+     */
+    private static void bindBook(@NonNull SQLiteStatement statement, @NonNull Book book) {
+        statement.bindString(1, book.getName());
+        String author = book.getAuthor();
+        if (author == null) {
+            statement.bindNull(2);
+        } else {
+            statement.bindString(2, author);
+        }
+        statement.bindString(3, Chapter.relativize(book.getPathPrefix(), book.getCurrentMediaPath()));
+        statement.bindDouble(4, book.getPlaybackSpeed());
+        statement.bindString(5, book.getRoot());
+        statement.bindLong(6, book.getTime());
+        statement.bindString(7, book.getType().name());
+        statement.bindLong(8, book.isUseCoverReplacement() ? 1 : 0);
+    }
 
-        Iterator<Book> orphanedBookIterator = orphanedBooks.iterator();
-        while (orphanedBookIterator.hasNext()) {
-            if (orphanedBookIterator.next().getId() == book.getId()) {
-                orphanedBookIterator.remove();
-                break;
+    /**
+     * Returns the compiled statement for a sql string, compiling it on first use.
+     *
+     * @param sql the sql to compile
+     * @return the statement. Bound arguments from earlier executions are retained.
+     */
+    @NonNull
+    private SQLiteStatement statement(@NonNull String sql) {
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = getWritableDatabase().compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private void insertChapters(@NonNull Book book) {
+        SQLiteStatement insertChapter = statement(INSERT_CHAPTER);
+        for (Chapter c : book.getChapters()) {
+            insertChapter.bindLong(1, c.getDuration());
+            insertChapter.bindString(2, c.getName());
+            insertChapter.bindString(3, c.getPathRelativeTo(book.getPathPrefix()));
+            insertChapter.bindLong(4, book.getId());
+            insertChapter.executeInsert();
+        }
+    }
+
+    /**
+     * Inserts the bookmarks of a book. Bookmarks that have an id keep it.
+     *
+     * @return the bookmarks, carrying the ids they were stored with
+     */
+    @NonNull
+    private ImmutableList<Bookmark> insertBookmarks(@NonNull Book book) {
+        SQLiteStatement insertBookmark = statement(INSERT_BOOKMARK);
+        ImmutableList.Builder<Bookmark> inserted = ImmutableList.builder();
+        for (Bookmark b : book.getBookmarks()) {
+            if (b.getId() == Bookmark.ID_UNKNOWN) {
+                insertBookmark.bindNull(1);
+            } else {
+                insertBookmark.bindLong(1, b.getId());
             }
+            bindBookmark(insertBookmark, 2, book, b);
+            insertBookmark.bindLong(5, book.getId());
+            inserted.add(b.withId(insertBookmark.executeInsert()));
         }
-        activeBooks.add(book);
-        ContentValues cv = new ContentValues();
-        cv.put(BOOK_ACTIVE, 1);
-        getWritableDatabase().update(TABLE_BOOK, cv, BOOK_ID + "=?", new String[]{String.valueOf(book.getId())});
+        return inserted.build();
+    }
+
+    /**
+     * Binds the path, title and time of a bookmark to three consecutive arguments.
+     *
+     * @param first the index of the argument the path is bound to
+     */
+    private static void bindBookmark(@NonNull SQLiteStatement statement, int first, @NonNull Book book,
+                                     @NonNull Bookmark bookmark) {
+        statement.bindString(first, Chapter.relativize(book.getPathPrefix(), bookmark.getMediaPath()));
+        statement.bindString(first + 1, bookmark.getTitle());
+        statement.bindLong(first + 2, bookmark.getTime());
+    }
 
-        communication.bookSetChanged(activeBooks);
+    /**
+     * Executes a statement that takes a single id.
+     */
+    private void deleteById(@NonNull String sql, long id) {
+        SQLiteStatement delete = statement(sql);
+        delete.bindLong(1, id);
+        delete.executeUpdateDelete();
+    }
+
+    @Override
+    public void close() {
+        Futures.getUnchecked(writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (SQLiteStatement statement : statements.values()) {
+                    statement.close();
+                }
+                statements.clear();
+            }
+        }));
+        super.close();
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // lets the readers run while the writer thread is inside a transaction
+        if (!db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
     }
 
     @Override
@@ -311,19 +1759,34 @@ public class DataBaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_TABLE_BOOK);
         db.execSQL(CREATE_TABLE_CHAPTERS);
         db.execSQL(CREATE_TABLE_BOOKMARKS);
+        db.execSQL(CREATE_TABLE_LIBRARY);
+        db.execSQL("INSERT INTO " + TABLE_LIBRARY + " (" + LIBRARY_GENERATION + ") VALUES (0)");
+        db.execSQL(CREATE_INDEX_CHAPTERS);
+        db.execSQL(CREATE_INDEX_BOOKMARKS);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         try {
+            // usually done by migrate() already
             DataBaseUpgradeHelper upgradeHelper = new DataBaseUpgradeHelper(db, c);
-            upgradeHelper.upgrade(oldVersion);
+            upgradeHelper.upgrade(oldVersion, newVersion);
         } catch (InvalidPropertiesFormatException e) {
             L.e(TAG, "Error at upgrade", e);
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_BOOK);
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_CHAPTERS);
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_BOOKMARKS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_LIBRARY);
             onCreate(db);
         }
     }
+
+    public interface OnMigrationListener {
+        /**
+         * @param percent the progress of the whole migration
+         */
+        void onMigrationProgress(int percent);
+
+        void onMigrationFinished();
+    }
 }
@@ -4,7 +4,9 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
+import android.support.annotation.Nullable;
 
 import com.google.common.base.Charsets;
 import com.google.common.io.Files;
@@ -22,13 +24,29 @@ import java.util.List;
 import de.ph1b.audiobook.utils.L;
 
 
+/**
+ * Migrates the database to the latest version. Each <code>upgradeN</code> takes the database from
+ * version N to N + 1 and must never change once released, so it only uses literal table and column
+ * names.
+ */
 @SuppressWarnings("TryFinallyCanBeTryWithResources")
 class DataBaseUpgradeHelper {
 
     private static final String TAG = DataBaseUpgradeHelper.class.getSimpleName();
+    /**
+     * Progress is reported after this many books.
+     */
+    private static final int PROGRESS_INTERVAL = 100;
 
     private final SQLiteDatabase db;
     private final Context c;
+    @Nullable
+    private DataBaseHelper.OnMigrationListener listener;
+    /**
+     * The index of the running step and the number of steps, for the progress.
+     */
+    private int step = 0;
+    private int steps = 1;
 
     public DataBaseUpgradeHelper(SQLiteDatabase db, Context c) {
         this.db = db;
@@ -81,6 +99,7 @@ class DataBaseUpgradeHelper {
                 null, null, null, null, null);
         try {
             while (bookCursor.moveToNext()) {
+                reportProgress(bookCursor.getPosition(), bookCursor.getCount());
                 long bookId = bookCursor.getLong(0);
                 String root = bookCursor.getString(1);
                 String type = bookCursor.getString(2);
@@ -322,17 +341,19 @@ class DataBaseUpgradeHelper {
      */
     private void upgrade25() throws InvalidPropertiesFormatException {
 
-        // get all books
-        List<JSONObject> allBooks = new ArrayList<>();
+        // find the empty books, only keeping their ids
+        List<Long> emptyBookIds = new ArrayList<>();
         Cursor cursor = db.query("TABLE_BOOK",
                 new String[]{"BOOK_ID", "BOOK_JSON"},
                 null, null, null, null, null);
         try {
             while (cursor.moveToNext()) {
-                String content = cursor.getString(1);
-                JSONObject book = new JSONObject(content);
-                book.put("id", cursor.getLong(0));
-                allBooks.add(book);
+                reportProgress(cursor.getPosition(), cursor.getCount());
+                JSONObject book = new JSONObject(cursor.getString(1));
+                JSONArray chapters = book.getJSONArray("chapters");
+                if (chapters.length() == 0) {
+                    emptyBookIds.add(cursor.getLong(0));
+                }
             }
         } catch (JSONException e) {
             throw new InvalidPropertiesFormatException(e);
@@ -341,15 +362,8 @@ class DataBaseUpgradeHelper {
         }
 
         // delete empty books
-        try {
-            for (JSONObject b : allBooks) {
-                JSONArray chapters = b.getJSONArray("chapters");
-                if (chapters.length() == 0) {
-                    db.delete("TABLE_BOOK", "BOOK_ID" + "=?", new String[]{String.valueOf(b.get("id"))});
-                }
-            }
-        } catch (JSONException e) {
-            throw new InvalidPropertiesFormatException(e);
+        for (long id : emptyBookIds) {
+            db.delete("TABLE_BOOK", "BOOK_ID" + "=?", new String[]{String.valueOf(id)});
         }
     }
 
@@ -400,6 +414,7 @@ class DataBaseUpgradeHelper {
         Cursor cursor = db.query("TABLE_BOOK", new String[]{"BOOK_JSON", "BOOK_ID"}, null, null, null, null, null);
         try {
             while (cursor.moveToNext()) {
+                reportProgress(cursor.getPosition(), cursor.getCount());
                 JSONObject book = new JSONObject(cursor.getString(0));
                 JSONArray chapters = book.getJSONArray("chapters");
                 for (int i = 0; i < chapters.length(); i++) {
@@ -429,20 +444,10 @@ class DataBaseUpgradeHelper {
     private void upgrade29() {
         L.d(TAG, "upgrade29");
 
-        // fetching old contents
-        List<String> bookContents = new ArrayList<>();
-        List<Boolean> activeMapping = new ArrayList<>();
-        Cursor cursor = db.query("TABLE_BOOK", new String[]{"BOOK_JSON", "BOOK_ACTIVE"},
-                null, null, null, null, null);
-        try {
-            while (cursor.moveToNext()) {
-                bookContents.add(cursor.getString(0));
-                activeMapping.add(cursor.getInt(1) == 1);
-            }
-        } finally {
-            cursor.close();
-        }
-        db.execSQL("DROP TABLE TABLE_BOOK");
+        // the old contents are streamed from a copy instead of being read into memory at once
+        String copyBookTableName = "TABLE_BOOK_COPY";
+        db.execSQL("DROP TABLE IF EXISTS " + copyBookTableName);
+        db.execSQL("ALTER TABLE TABLE_BOOK RENAME TO " + copyBookTableName);
 
         // tables
         final String TABLE_BOOK = "tableBooks";
@@ -508,11 +513,23 @@ class DataBaseUpgradeHelper {
         db.execSQL(CREATE_TABLE_CHAPTERS);
         db.execSQL(CREATE_TABLE_BOOKMARKS);
 
-        for (int i = 0; i < bookContents.size(); i++) {
-            String bookJson = bookContents.get(i);
-            boolean bookActive = activeMapping.get(i);
-
-            try {
+        SQLiteStatement insertBook = db.compileStatement("INSERT INTO " + TABLE_BOOK + " (" +
+                BOOK_CURRENT_MEDIA_PATH + ", " + BOOK_NAME + ", " + BOOK_PLAYBACK_SPEED + ", " +
+                BOOK_ROOT + ", " + BOOK_TIME + ", " + BOOK_TYPE + ", " + BOOK_USE_COVER_REPLACEMENT +
+                ", " + BOOK_ACTIVE + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        SQLiteStatement insertChapter = db.compileStatement("INSERT INTO " + TABLE_CHAPTERS + " (" +
+                CHAPTER_DURATION + ", " + CHAPTER_NAME + ", " + CHAPTER_PATH + ", " + BOOK_ID +
+                ") VALUES (?, ?, ?, ?)");
+        SQLiteStatement insertBookmark = db.compileStatement("INSERT INTO " + TABLE_BOOKMARKS + " (" +
+                BOOKMARK_PATH + ", " + BOOKMARK_TITLE + ", " + BOOKMARK_TIME + ", " + BOOK_ID +
+                ") VALUES (?, ?, ?, ?)");
+        Cursor cursor = db.query(copyBookTableName, new String[]{"BOOK_JSON", "BOOK_ACTIVE"},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                reportProgress(cursor.getPosition(), cursor.getCount());
+                String bookJson = cursor.getString(0);
+                boolean bookActive = cursor.getInt(1) == 1;
 
                 JSONObject bookObj = new JSONObject(bookJson);
                 JSONArray bookmarks = bookObj.getJSONArray("bookmarks");
@@ -525,17 +542,15 @@ class DataBaseUpgradeHelper {
                 String type = bookObj.getString("type");
                 boolean useCoverReplacement = bookObj.getBoolean("useCoverReplacement");
 
-                ContentValues bookCV = new ContentValues();
-                bookCV.put(BOOK_CURRENT_MEDIA_PATH, currentMediaPath);
-                bookCV.put(BOOK_NAME, bookName);
-                bookCV.put(BOOK_PLAYBACK_SPEED, speed);
-                bookCV.put(BOOK_ROOT, root);
-                bookCV.put(BOOK_TIME, time);
-                bookCV.put(BOOK_TYPE, type);
-                bookCV.put(BOOK_USE_COVER_REPLACEMENT, useCoverReplacement ? 1 : 0);
-                bookCV.put(BOOK_ACTIVE, bookActive ? 1 : 0);
-
-                long bookId = db.insert(TABLE_BOOK, null, bookCV);
+                insertBook.bindString(1, currentMediaPath);
+                insertBook.bindString(2, bookName);
+                insertBook.bindDouble(3, speed);
+                insertBook.bindString(4, root);
+                insertBook.bindLong(5, time);
+                insertBook.bindString(6, type);
+                insertBook.bindLong(7, useCoverReplacement ? 1 : 0);
+                insertBook.bindLong(8, bookActive ? 1 : 0);
+                long bookId = insertBook.executeInsert();
 
 
                 for (int j = 0; j < chapters.length(); j++) {
@@ -544,13 +559,11 @@ class DataBaseUpgradeHelper {
                     String chapterName = chapter.getString("name");
                     String chapterPath = chapter.getString("path");
 
-                    ContentValues chapterCV = new ContentValues();
-                    chapterCV.put(CHAPTER_DURATION, chapterDuration);
-                    chapterCV.put(CHAPTER_NAME, chapterName);
-                    chapterCV.put(CHAPTER_PATH, chapterPath);
-                    chapterCV.put(BOOK_ID, bookId);
-
-                    db.insert(TABLE_CHAPTERS, null, chapterCV);
+                    insertChapter.bindLong(1, chapterDuration);
+                    insertChapter.bindString(2, chapterName);
+                    insertChapter.bindString(3, chapterPath);
+                    insertChapter.bindLong(4, bookId);
+                    insertChapter.executeInsert();
                 }
 
                 for (int j = 0; j < bookmarks.length(); j++) {
@@ -559,58 +572,282 @@ class DataBaseUpgradeHelper {
                     String bookmarkPath = bookmark.getString("mediaPath");
                     String bookmarkTitle = bookmark.getString("title");
 
-                    ContentValues bookmarkCV = new ContentValues();
-                    bookmarkCV.put(BOOKMARK_PATH, bookmarkPath);
-                    bookmarkCV.put(BOOKMARK_TITLE, bookmarkTitle);
-                    bookmarkCV.put(BOOKMARK_TIME, bookmarkTime);
-                    bookmarkCV.put(BOOK_ID, bookId);
+                    insertBookmark.bindString(1, bookmarkPath);
+                    insertBookmark.bindString(2, bookmarkTitle);
+                    insertBookmark.bindLong(3, bookmarkTime);
+                    insertBookmark.bindLong(4, bookId);
+                    insertBookmark.executeInsert();
+                }
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            cursor.close();
+            insertBook.close();
+            insertChapter.close();
+            insertBookmark.close();
+        }
+        db.execSQL("DROP TABLE " + copyBookTableName);
+    }
+
+    /**
+     * Adds indexes on the book id of chapters and bookmarks, so they can be looked up and deleted
+     * per book without scanning the whole table.
+     */
+    private void upgrade30() {
+        L.d(TAG, "upgrade30");
 
-                    db.insert(TABLE_BOOKMARKS, null, bookmarkCV);
+        db.execSQL("CREATE INDEX IF NOT EXISTS tableChaptersBookIdIndex ON tableChapters (bookId)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS tableBookmarksBookIdIndex ON tableBookmarks (bookId)");
+    }
+
+    /**
+     * Stores the paths of chapters, bookmarks and the current media path relative to the root of
+     * their book. Paths outside of the root stay absolute.
+     */
+    private void upgrade31() {
+        L.d(TAG, "upgrade31");
+
+        Cursor bookCursor = db.query("tableBooks", new String[]{"bookId", "bookRoot", "bookCurrentMediaPath"},
+                null, null, null, null, null);
+        try {
+            while (bookCursor.moveToNext()) {
+                reportProgress(bookCursor.getPosition(), bookCursor.getCount());
+                String bookId = String.valueOf(bookCursor.getLong(0));
+                String prefix = bookCursor.getString(1) + File.separator;
+
+                String currentMediaPath = bookCursor.getString(2);
+                if (currentMediaPath.startsWith(prefix)) {
+                    ContentValues cv = new ContentValues();
+                    cv.put("bookCurrentMediaPath", currentMediaPath.substring(prefix.length()));
+                    db.update("tableBooks", cv, "bookId=?", new String[]{bookId});
                 }
-            } catch (JSONException e) {
-                throw new IllegalStateException(e);
+
+                relativizePaths("tableChapters", "chapterPath", bookId, prefix);
+                relativizePaths("tableBookmarks", "bookmarkPath", bookId, prefix);
+            }
+        } finally {
+            bookCursor.close();
+        }
+    }
+
+    private void relativizePaths(String table, String pathColumn, String bookId, String prefix) {
+        Cursor cursor = db.query(table, new String[]{"rowid", pathColumn}, "bookId=?",
+                new String[]{bookId}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(1);
+                if (path.startsWith(prefix)) {
+                    ContentValues cv = new ContentValues();
+                    cv.put(pathColumn, path.substring(prefix.length()));
+                    db.update(table, cv, "rowid=?", new String[]{String.valueOf(cursor.getLong(0))});
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Adds the generation counter of the library, which is advanced on every write.
+     */
+    private void upgrade32() {
+        L.d(TAG, "upgrade32");
+
+        db.execSQL("CREATE TABLE tableLibrary ( libraryGeneration INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO tableLibrary (libraryGeneration) VALUES (0)");
+    }
+
+    /**
+     * Gives every bookmark a stable id, so single bookmarks can be edited and deleted. SQLite can
+     * not add a primary key to a table, so the table is copied.
+     */
+    private void upgrade33() {
+        L.d(TAG, "upgrade33");
+
+        db.execSQL("CREATE TABLE tableBookmarksNew ( " +
+                "bookmarkId INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "bookmarkPath TEXT NOT NULL, " +
+                "bookmarkTitle TEXT NOT NULL, " +
+                "bookmarkTime INTEGER NOT NULL, " +
+                "bookId INTEGER NOT NULL, " +
+                "FOREIGN KEY (bookId) REFERENCES tableBooks(bookId))");
+        db.execSQL("INSERT INTO tableBookmarksNew (bookmarkPath, bookmarkTitle, bookmarkTime, bookId) " +
+                "SELECT bookmarkPath, bookmarkTitle, bookmarkTime, bookId FROM tableBookmarks ORDER BY rowid");
+        db.execSQL("DROP TABLE tableBookmarks");
+        db.execSQL("ALTER TABLE tableBookmarksNew RENAME TO tableBookmarks");
+        db.execSQL("CREATE INDEX IF NOT EXISTS tableBookmarksBookIdIndex ON tableBookmarks (bookId)");
+    }
+
+    /**
+     * Stores the duration of each book and its position within the whole book, so they can be
+     * read without summing up the chapters. The chapters are in the order of their rowid.
+     */
+    private void upgrade34() {
+        L.d(TAG, "upgrade34");
+
+        db.execSQL("ALTER TABLE tableBooks ADD COLUMN bookDuration INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE tableBooks ADD COLUMN bookPosition INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("UPDATE tableBooks SET bookDuration = (SELECT IFNULL(SUM(c.chapterDuration), 0) " +
+                "FROM tableChapters c WHERE c.bookId = tableBooks.bookId)");
+        db.execSQL("UPDATE tableBooks SET bookPosition = bookTime + (SELECT IFNULL(SUM(c.chapterDuration), 0) " +
+                "FROM tableChapters c WHERE c.bookId = tableBooks.bookId AND c.rowid < " +
+                "(SELECT IFNULL(MIN(cur.rowid), 0) FROM tableChapters cur WHERE cur.bookId = tableBooks.bookId " +
+                "AND cur.chapterPath = tableBooks.bookCurrentMediaPath))");
+    }
+
+    /**
+     * Adds the generation each book has last been changed in. Existing books start at 0, so the
+     * first backup contains all of them.
+     */
+    private void upgrade35() {
+        L.d(TAG, "upgrade35");
+
+        db.execSQL("ALTER TABLE tableBooks ADD COLUMN bookGeneration INTEGER NOT NULL DEFAULT 0");
+    }
+
+    /**
+     * Counts the changes other than positions on their own, as only these invalidate the snapshot.
+     */
+    private void upgrade36() {
+        L.d(TAG, "upgrade36");
+
+        db.execSQL("ALTER TABLE tableLibrary ADD COLUMN libraryContentGeneration INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("UPDATE tableLibrary SET libraryContentGeneration = libraryGeneration");
+    }
+
+    /**
+     * Drops the duration and position of the books again, as they are computed from the chapters
+     * in memory. SQLite can not drop a column, so the table is copied. The ids and the sequence
+     * they are taken from are kept.
+     */
+    private void upgrade37() {
+        L.d(TAG, "upgrade37");
+
+        db.execSQL("CREATE TABLE tableBooksNew ( " +
+                "bookId INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "bookName TEXT NOT NULL, " +
+                "bookAuthor TEXT, " +
+                "bookCurrentMediaPath TEXT NOT NULL, " +
+                "bookSpeed REAL NOT NULL, " +
+                "bookRoot TEXT NOT NULL, " +
+                "bookTime INTEGER NOT NULL, " +
+                "bookType TEXT NOT NULL, " +
+                "bookUseCoverReplacement INTEGER NOT NULL, " +
+                "BOOK_ACTIVE INTEGER NOT NULL DEFAULT 1, " +
+                "bookGeneration INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("INSERT INTO tableBooksNew (bookId, bookName, bookAuthor, bookCurrentMediaPath, " +
+                "bookSpeed, bookRoot, bookTime, bookType, bookUseCoverReplacement, BOOK_ACTIVE, bookGeneration) " +
+                "SELECT bookId, bookName, bookAuthor, bookCurrentMediaPath, bookSpeed, bookRoot, bookTime, " +
+                "bookType, bookUseCoverReplacement, BOOK_ACTIVE, bookGeneration FROM tableBooks");
+        db.execSQL("DELETE FROM sqlite_sequence WHERE name = 'tableBooksNew'");
+        db.execSQL("INSERT INTO sqlite_sequence (name, seq) " +
+                "SELECT 'tableBooksNew', seq FROM sqlite_sequence WHERE name = 'tableBooks'");
+        db.execSQL("DROP TABLE tableBooks");
+        db.execSQL("ALTER TABLE tableBooksNew RENAME TO tableBooks");
+    }
+
+    /**
+     * Reports the progress of the running step to the listener.
+     *
+     * @param done  the number of books the step has migrated
+     * @param total the number of books of the step
+     */
+    private void reportProgress(int done, int total) {
+        if (listener != null && total > 0 && done % PROGRESS_INTERVAL == 0) {
+            listener.onMigrationProgress((int) ((step * 100L + done * 100L / total) / steps));
+        }
+    }
+
+    /**
+     * Migrates the database in one go. Used by {@link DataBaseHelper#onUpgrade(SQLiteDatabase, int, int)},
+     * which already runs inside a transaction.
+     */
+    public void upgrade(int fromVersion, int toVersion) throws InvalidPropertiesFormatException {
+        for (int version = fromVersion; version < toVersion; version++) {
+            upgradeFrom(version);
+        }
+    }
+
+    /**
+     * Migrates the database step by step. Each step is committed together with the new version,
+     * so an interrupted migration resumes at the step it stopped at.
+     *
+     * @param toVersion the version to migrate to
+     * @param listener  notified about the progress, on the calling thread. It is read once, so
+     *                  it should pass the progress on to whoever is interested at that time.
+     */
+    public void migrate(int toVersion, @Nullable DataBaseHelper.OnMigrationListener listener)
+            throws InvalidPropertiesFormatException {
+        this.listener = listener;
+        int fromVersion = db.getVersion();
+        steps = Math.max(toVersion - fromVersion, 1);
+        for (int version = fromVersion; version < toVersion; version++) {
+            step = version - fromVersion;
+            reportProgress(0, 1);
+            L.i(TAG, "migrating from version={}", version);
+            db.beginTransaction();
+            try {
+                upgradeFrom(version);
+                db.setVersion(version + 1);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
         }
     }
 
-    public void upgrade(int fromVersion) throws InvalidPropertiesFormatException {
-        switch (fromVersion) {
-            case 1:
-            case 2:
-            case 3:
-            case 4:
-            case 5:
-            case 6:
-            case 7:
-            case 8:
-            case 9:
-            case 10:
-            case 11:
-            case 12:
-            case 13:
-            case 14:
-            case 15:
-            case 16:
-            case 17:
-            case 18:
-            case 19:
-            case 20:
-            case 21:
-            case 22:
+    /**
+     * Takes the database from a version to the next one. Versions before 23 are not migrated, as
+     * {@link #upgrade23()} starts over.
+     */
+    private void upgradeFrom(int version) throws InvalidPropertiesFormatException {
+        switch (version) {
             case 23:
                 upgrade23();
+                break;
             case 24:
                 upgrade24();
+                break;
             case 25:
                 upgrade25();
+                break;
             case 26:
                 upgrade26();
+                break;
             case 27:
                 upgrade27();
+                break;
             case 28:
                 upgrade28();
+                break;
             case 29:
                 upgrade29();
+                break;
+            case 30:
+                upgrade30();
+                break;
+            case 31:
+                upgrade31();
+                break;
+            case 32:
+                upgrade32();
+                break;
+            case 33:
+                upgrade33();
+                break;
+            case 34:
+                upgrade34();
+                break;
+            case 35:
+                upgrade35();
+                break;
+            case 36:
+                upgrade36();
+                break;
+            case 37:
+                upgrade37();
+                break;
             default:
                 break;
         }
@@ -0,0 +1,64 @@
+package de.ph1b.audiobook.model;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+
+import de.ph1b.audiobook.activity.BaseActivity;
+import de.ph1b.audiobook.utils.PrefsManager;
+
+/**
+ * Reads the folders from the {@link PrefsManager} and the tags with a
+ * {@link MediaMetadataRetriever}.
+ */
+class DeviceScanSource implements ScanSource {
+
+    private final PrefsManager prefs;
+
+    DeviceScanSource(@NonNull Context c) {
+        prefs = PrefsManager.getInstance(c);
+    }
+
+    @NonNull
+    @Override
+    public List<String> getSingleBookFolders() {
+        return prefs.getSingleBookFolders();
+    }
+
+    @NonNull
+    @Override
+    public List<String> getCollectionFolders() {
+        return prefs.getCollectionFolders();
+    }
+
+    @Override
+    public boolean storageMounted() {
+        return BaseActivity.storageMounted();
+    }
+
+    @NonNull
+    @Override
+    public TagReader newTagReader() {
+        final MediaMetadataRetriever mmr = new MediaMetadataRetriever();
+        return new TagReader() {
+            @Override
+            public void setDataSource(@NonNull String path) {
+                mmr.setDataSource(path);
+            }
+
+            @Nullable
+            @Override
+            public String extractMetadata(int key) {
+                return mmr.extractMetadata(key);
+            }
+
+            @Override
+            public void release() {
+                mmr.release();
+            }
+        };
+    }
+}
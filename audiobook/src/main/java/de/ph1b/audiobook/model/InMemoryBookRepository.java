@@ -0,0 +1,258 @@
+package de.ph1b.audiobook.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import de.ph1b.audiobook.utils.Communication;
+import de.ph1b.audiobook.utils.L;
+import de.ph1b.audiobook.utils.Validate;
+
+/**
+ * A {@link BookRepository} that only keeps the books in memory. It behaves like
+ * {@link DataBaseHelper} without the database, so the code using a repository can be tested and
+ * benchmarked off the device.
+ */
+@ThreadSafe
+public class InMemoryBookRepository implements BookRepository {
+
+    private static final String TAG = InMemoryBookRepository.class.getSimpleName();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    @GuardedBy("lock")
+    private final BookRegistry activeBooks = new BookRegistry();
+    @GuardedBy("lock")
+    private final BookRegistry orphanedBooks = new BookRegistry();
+    private final AtomicLong nextBookId = new AtomicLong(1);
+    private final AtomicLong nextBookmarkId = new AtomicLong(1);
+    private final Communication communication = Communication.getInstance();
+
+    @NonNull
+    @Override
+    public Book addBook(@NonNull Book book) {
+        ImmutableList.Builder<Bookmark> bookmarks = ImmutableList.builder();
+        for (Bookmark b : book.getBookmarks()) {
+            bookmarks.add(b.getId() == Bookmark.ID_UNKNOWN ? b.withId(nextBookmarkId.getAndIncrement()) : b);
+        }
+        Book added = book.withId(nextBookId.getAndIncrement()).withBookmarks(bookmarks.build());
+
+        lock.writeLock().lock();
+        try {
+            activeBooks.put(added);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        communication.bookSetChanged(BookSetChange.added(added));
+        return added;
+    }
+
+    @Nullable
+    @Override
+    public Book getBook(long id) {
+        lock.readLock().lock();
+        try {
+            return activeBooks.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @NonNull
+    @Override
+    public List<Book> getActiveBooks() {
+        lock.readLock().lock();
+        try {
+            return activeBooks.asList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @NonNull
+    @Override
+    public List<Book> getOrphanedBooks() {
+        lock.readLock().lock();
+        try {
+            return orphanedBooks.asList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getLibraryDuration() {
+        lock.readLock().lock();
+        try {
+            return activeBooks.getTotalDuration();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void updateBook(@NonNull Book book) {
+        new Validate().notEmpty(book.getChapters());
+
+        Book updated;
+        lock.writeLock().lock();
+        try {
+            Book old = activeBooks.get(book.getId());
+            if (old == null) {
+                L.e(TAG, "Could not update book={}", book);
+                return;
+            }
+            if (old.getChapters() != book.getChapters()) {
+                updated = book.withSortedBookmarks(old.getBookmarks());
+            } else {
+                updated = book.withBookmarks(old.getBookmarks());
+            }
+            activeBooks.put(updated);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        communication.sendBookContentChanged(updated);
+    }
+
+    @Override
+    public void updatePosition(long bookId, int time, @NonNull String currentMediaPath) {
+        Book updated;
+        lock.writeLock().lock();
+        try {
+            Book old = activeBooks.get(bookId);
+            if (old == null) {
+                L.e(TAG, "Could not update position of bookId={}", bookId);
+                return;
+            }
+            if (old.indexOfChapter(currentMediaPath) == -1) {
+                // the chapter has been removed by the scanner while it was played
+                L.e(TAG, "Could not update position of bookId={} to missing chapter={}", bookId, currentMediaPath);
+                return;
+            }
+            updated = old.withPosition(time, currentMediaPath);
+            activeBooks.put(updated);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        communication.sendPositionTick(bookId, updated.getCurrentChapterIndex(), time);
+    }
+
+    @Override
+    public void hideBook(@NonNull Book book) {
+        new Validate().notEmpty(book.getChapters());
+
+        lock.writeLock().lock();
+        try {
+            if (activeBooks.remove(book.getId()) == null) {
+                throw new AssertionError("This should not have happened. Tried to remove a not existing book");
+            }
+            orphanedBooks.put(book);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        communication.bookSetChanged(BookSetChange.removed(book.getId()));
+    }
+
+    @Override
+    public void revealBook(@NonNull Book book) {
+        new Validate().notEmpty(book.getChapters());
+
+        lock.writeLock().lock();
+        try {
+            orphanedBooks.remove(book.getId());
+            activeBooks.put(book);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        communication.bookSetChanged(BookSetChange.added(book));
+    }
+
+    @Nullable
+    @Override
+    public Book addBookmark(long bookId, @NonNull Bookmark bookmark) {
+        Book updated;
+        lock.writeLock().lock();
+        try {
+            Book book = activeBooks.get(bookId);
+            if (book == null) {
+                L.e(TAG, "Could not add bookmark to bookId={}", bookId);
+                return null;
+            }
+            updated = book.withBookmark(bookmark.withId(nextBookmarkId.getAndIncrement()));
+            activeBooks.put(updated);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        communication.sendBookmarksChanged(updated);
+        return updated;
+    }
+
+    @Nullable
+    @Override
+    public Book updateBookmark(long bookId, @NonNull Bookmark bookmark) {
+        Book updated;
+        lock.writeLock().lock();
+        try {
+            Book book = activeBooks.get(bookId);
+            if (book == null || book.indexOfBookmark(bookmark.getId()) == -1) {
+                L.e(TAG, "Could not update bookmark={} of bookId={}", bookmark, bookId);
+                return null;
+            }
+            updated = book.withoutBookmark(bookmark.getId()).withBookmark(bookmark);
+            activeBooks.put(updated);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        communication.sendBookmarksChanged(updated);
+        return updated;
+    }
+
+    @Nullable
+    @Override
+    public Book deleteBookmark(long bookId, long bookmarkId) {
+        Book updated;
+        lock.writeLock().lock();
+        try {
+            Book book = activeBooks.get(bookId);
+            if (book == null || book.indexOfBookmark(bookmarkId) == -1) {
+                L.e(TAG, "Could not delete bookmarkId={} of bookId={}", bookmarkId, bookId);
+                return null;
+            }
+            updated = book.withoutBookmark(bookmarkId);
+            activeBooks.put(updated);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        communication.sendBookmarksChanged(updated);
+        return updated;
+    }
+
+    /**
+     * Does nothing, as nothing is restored into memory.
+     */
+    @Override
+    public void importPending() {
+    }
+
+    /**
+     * Does nothing, as all changes are done once they are visible.
+     */
+    @Override
+    public void awaitWrites() {
+    }
+}
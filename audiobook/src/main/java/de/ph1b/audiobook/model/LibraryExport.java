@@ -0,0 +1,227 @@
+package de.ph1b.audiobook.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * The state of the books the user can not restore by scanning the folders again: the positions,
+ * the speeds and the bookmarks. Books are identified by their root and the fingerprint of their
+ * chapters, so an export can be imported on an other device with the same files.
+ * <p/>
+ * The format is a compressed stream of one record per book, so neither writing nor reading needs
+ * all records in memory.
+ */
+public class LibraryExport {
+
+    private static final int MAGIC = 0x4D414558;
+    private static final int FORMAT_VERSION = 1;
+
+    private LibraryExport() {
+    }
+
+    /**
+     * @return a hash of the paths and durations of the chapters, which changes if the files of the
+     * book change.
+     */
+    static long fingerprint(@NonNull Book book) {
+        String prefix = book.getPathPrefix();
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (Chapter c : book.getChapters()) {
+            hasher.putString(c.getPathRelativeTo(prefix), Charsets.UTF_8);
+            hasher.putInt(c.getDuration());
+        }
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * Writes the books to a stream. The stream is finished but not closed.
+     */
+    public static void write(@NonNull OutputStream stream, @NonNull List<Book> books) throws IOException {
+        Writer writer = new Writer(stream);
+        for (Book b : books) {
+            writer.add(b);
+        }
+        writer.finish();
+    }
+
+    /**
+     * Writes records one after another.
+     */
+    @NotThreadSafe
+    static class Writer {
+
+        private final GZIPOutputStream gzip;
+        private final DataOutputStream out;
+        private int count = 0;
+
+        /**
+         * @param stream receives the export. It is not closed by the writer.
+         */
+        Writer(@NonNull OutputStream stream) throws IOException {
+            gzip = new GZIPOutputStream(stream);
+            out = new DataOutputStream(new BufferedOutputStream(gzip));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+        }
+
+        void add(@NonNull Book book) throws IOException {
+            String prefix = book.getPathPrefix();
+            ImmutableList.Builder<Bookmark> bookmarks = ImmutableList.builder();
+            for (Bookmark b : book.getBookmarks()) {
+                bookmarks.add(new Bookmark(Chapter.relativize(prefix, b.getMediaPath()), b.getTitle(), b.getTime()));
+            }
+            add(new Record(book.getRoot(), book.getType().name(), fingerprint(book),
+                    Chapter.relativize(prefix, book.getCurrentMediaPath()), book.getTime(),
+                    book.getPlaybackSpeed(), bookmarks.build()));
+        }
+
+        void add(@NonNull Record record) throws IOException {
+            out.writeBoolean(true);
+            out.writeUTF(record.root);
+            out.writeUTF(record.type);
+            out.writeLong(record.fingerprint);
+            out.writeUTF(record.currentMediaPath);
+            out.writeInt(record.time);
+            out.writeFloat(record.playbackSpeed);
+
+            out.writeInt(record.bookmarks.size());
+            for (Bookmark b : record.bookmarks) {
+                out.writeUTF(b.getMediaPath());
+                out.writeUTF(b.getTitle());
+                out.writeInt(b.getTime());
+            }
+            count++;
+        }
+
+        /**
+         * @return the number of records written so far.
+         */
+        int getCount() {
+            return count;
+        }
+
+        /**
+         * Ends the export. Nothing can be added afterwards.
+         */
+        void finish() throws IOException {
+            out.writeBoolean(false);
+            out.flush();
+            gzip.finish();
+        }
+    }
+
+    /**
+     * Reads the records of an export one after another.
+     */
+    @NotThreadSafe
+    static class Reader {
+
+        private final DataInputStream in;
+        private boolean done = false;
+
+        /**
+         * @param stream the export. It is not closed by the reader.
+         * @throws IOException if the stream is not an export or of an unknown version
+         */
+        Reader(@NonNull InputStream stream) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(stream)));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a library export");
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unknown export version=" + version);
+            }
+        }
+
+        /**
+         * @return the next record, or <code>null</code> at the end of the export.
+         */
+        @Nullable
+        Record next() throws IOException {
+            if (done || !in.readBoolean()) {
+                done = true;
+                return null;
+            }
+
+            String root = in.readUTF();
+            String type = in.readUTF();
+            long fingerprint = in.readLong();
+            String currentMediaPath = in.readUTF();
+            int time = in.readInt();
+            float playbackSpeed = in.readFloat();
+
+            int bookmarkCount = in.readInt();
+            if (bookmarkCount < 0) {
+                throw new IOException("Invalid bookmark count=" + bookmarkCount);
+            }
+            ImmutableList.Builder<Bookmark> bookmarks = ImmutableList.builder();
+            for (int i = 0; i < bookmarkCount; i++) {
+                String path = in.readUTF();
+                String title = in.readUTF();
+                int bookmarkTime = in.readInt();
+                bookmarks.add(new Bookmark(path, title, bookmarkTime));
+            }
+            return new Record(root, type, fingerprint, currentMediaPath, time, playbackSpeed, bookmarks.build());
+        }
+    }
+
+    /**
+     * The exported state of a single book. Paths are relative to the root of the book.
+     */
+    @Immutable
+    static class Record {
+
+        @NonNull
+        final String root;
+        @NonNull
+        final String type;
+        final long fingerprint;
+        @NonNull
+        final String currentMediaPath;
+        final int time;
+        final float playbackSpeed;
+        @NonNull
+        final ImmutableList<Bookmark> bookmarks;
+
+        private Record(@NonNull String root, @NonNull String type, long fingerprint,
+                       @NonNull String currentMediaPath, int time, float playbackSpeed,
+                       @NonNull ImmutableList<Bookmark> bookmarks) {
+            this.root = root;
+            this.type = type;
+            this.fingerprint = fingerprint;
+            this.currentMediaPath = currentMediaPath;
+            this.time = time;
+            this.playbackSpeed = playbackSpeed;
+            this.bookmarks = bookmarks;
+        }
+
+        /**
+         * @return true if the record was exported from this book, with the same chapters.
+         */
+        boolean matches(@NonNull Book book) {
+            return book.getRoot().equals(root) && book.getType().name().equals(type)
+                    && fingerprint(book) == fingerprint;
+        }
+    }
+}
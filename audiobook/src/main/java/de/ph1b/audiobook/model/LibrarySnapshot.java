@@ -0,0 +1,246 @@
+package de.ph1b.audiobook.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import de.ph1b.audiobook.utils.L;
+
+
+/**
+ * A binary copy of all books, so they can be restored at startup without querying every chapter
+ * and bookmark from the database. The snapshot carries the content generation of the database it
+ * was taken from and is only valid as long as the database has the same content generation. The
+ * positions of the books are not part of that generation. They are updated from the database once
+ * the books have been read.
+ * <p/>
+ * The file is memory mapped and only decoded when the books are first needed.
+ */
+@NotThreadSafe
+class LibrarySnapshot {
+
+    private static final String TAG = LibrarySnapshot.class.getSimpleName();
+    private static final int MAGIC = 0x4D415053;
+    private static final int FORMAT_VERSION = 2;
+    private final ByteBuffer buffer;
+    private final long generation;
+
+    private LibrarySnapshot(@NonNull ByteBuffer buffer, long generation) {
+        this.buffer = buffer;
+        this.generation = generation;
+    }
+
+    /**
+     * Maps a snapshot and checks its header.
+     *
+     * @param file          the snapshot file
+     * @param schemaVersion the version of the database schema
+     * @return the snapshot, or <code>null</code> if there is none or it was written by an other
+     * version.
+     */
+    @Nullable
+    static LibrarySnapshot map(@NonNull File file, int schemaVersion) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                // the mapping stays valid after the file is closed
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION ||
+                    buffer.getInt() != schemaVersion) {
+                L.i(TAG, "Snapshot has a different format");
+                return null;
+            }
+            long generation = buffer.getLong();
+            return new LibrarySnapshot(buffer.slice(), generation);
+        } catch (IOException | RuntimeException e) {
+            L.e(TAG, "Could not map snapshot", e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a snapshot. The file is replaced atomically, so a snapshot is either complete or
+     * missing.
+     */
+    static void write(@NonNull File file, int schemaVersion, long generation,
+                      @NonNull List<Book> activeBooks, @NonNull List<Book> orphanedBooks) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(schemaVersion);
+            out.writeLong(generation);
+
+            out.writeInt(activeBooks.size() + orphanedBooks.size());
+            for (Book b : activeBooks) {
+                writeBook(out, b, true);
+            }
+            for (Book b : orphanedBooks) {
+                writeBook(out, b, false);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+
+    private static void writeBook(@NonNull DataOutputStream out, @NonNull Book book, boolean active) throws IOException {
+        String prefix = book.getPathPrefix();
+
+        out.writeLong(book.getId());
+        out.writeBoolean(active);
+        writeString(out, book.getRoot());
+        writeString(out, book.getName());
+        String author = book.getAuthor();
+        out.writeBoolean(author != null);
+        if (author != null) {
+            writeString(out, author);
+        }
+        writeString(out, Chapter.relativize(prefix, book.getCurrentMediaPath()));
+        writeString(out, book.getType().name());
+        out.writeInt(book.getTime());
+        out.writeFloat(book.getPlaybackSpeed());
+        out.writeBoolean(book.isUseCoverReplacement());
+
+        List<Chapter> chapters = book.getChapters();
+        out.writeInt(chapters.size());
+        for (Chapter c : chapters) {
+            writeString(out, c.getPathRelativeTo(prefix));
+            writeString(out, c.getName());
+            out.writeInt(c.getDuration());
+        }
+
+        List<Bookmark> bookmarks = book.getBookmarks();
+        out.writeInt(bookmarks.size());
+        for (Bookmark b : bookmarks) {
+            out.writeLong(b.getId());
+            writeString(out, Chapter.relativize(prefix, b.getMediaPath()));
+            writeString(out, b.getTitle());
+            out.writeInt(b.getTime());
+        }
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @NonNull String s) throws IOException {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    /**
+     * @return the generation of the database the snapshot was taken from.
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Decodes the books.
+     *
+     * @param activeBooks   receives the active books
+     * @param orphanedBooks receives the orphaned books
+     * @param packageName   the package name of the app
+     * @return false if the snapshot is corrupt. Nothing has been added then.
+     */
+    boolean read(@NonNull BookRegistry activeBooks, @NonNull BookRegistry orphanedBooks,
+                 @NonNull String packageName) {
+        ByteBuffer in = buffer.duplicate();
+        BookRegistry active = new BookRegistry();
+        BookRegistry orphaned = new BookRegistry();
+        try {
+            int bookCount = in.getInt();
+            for (int i = 0; i < bookCount; i++) {
+                long id = in.getLong();
+                boolean isActive = in.get() != 0;
+                String root = readString(in);
+                String name = readString(in);
+                String author = in.get() != 0 ? readString(in) : null;
+                String currentMediaPath = readString(in);
+                Book.Type type = Book.Type.valueOf(readString(in));
+                int time = in.getInt();
+                float playbackSpeed = in.getFloat();
+                boolean useCoverReplacement = in.get() != 0;
+
+                String prefix = Chapter.prefixOf(root);
+
+                int chapterCount = in.getInt();
+                ChapterTable.Builder chapters = new ChapterTable.Builder(prefix,
+                        Math.min(chapterCount, in.remaining()));
+                for (int j = 0; j < chapterCount; j++) {
+                    String path = readString(in);
+                    String chapterName = readString(in);
+                    chapters.add(path, chapterName, in.getInt());
+                }
+
+                int bookmarkCount = in.getInt();
+                ImmutableList.Builder<Bookmark> bookmarks = ImmutableList.builder();
+                for (int j = 0; j < bookmarkCount; j++) {
+                    long bookmarkId = in.getLong();
+                    String path = Chapter.resolve(prefix, readString(in));
+                    String title = readString(in);
+                    bookmarks.add(new Bookmark(bookmarkId, path, title, in.getInt()));
+                }
+
+                Book book = new Book(id, root, name, author, chapters.build(),
+                        Chapter.resolve(prefix, currentMediaPath), type, bookmarks.build(), packageName,
+                        time, playbackSpeed, useCoverReplacement);
+                if (isActive) {
+                    active.put(book);
+                } else {
+                    orphaned.put(book);
+                }
+            }
+        } catch (RuntimeException e) {
+            L.e(TAG, "Snapshot is corrupt", e);
+            return false;
+        }
+
+        for (Book b : active.asList()) {
+            activeBooks.put(b);
+        }
+        for (Book b : orphaned.asList()) {
+            orphanedBooks.put(b);
+        }
+        return true;
+    }
+}
@@ -1,52 +1,59 @@
 package de.ph1b.audiobook.model;
 
+import net.jcip.annotations.NotThreadSafe;
+
 import java.util.Comparator;
 import java.util.List;
 
+/**
+ * Orders bookmarks by their chapter, then by their time and then by their title. The chapter of a
+ * bookmark is found without building the paths of the chapters, starting at the chapter found
+ * last, as the bookmarks of a chapter are usually compared one after another. Create one
+ * comparator per sort.
+ */
+@NotThreadSafe
 public class NaturalBookmarkComparator implements Comparator<Bookmark> {
 
     private final List<Chapter> chapters;
+    private int lastOrdinal = -1;
 
     public NaturalBookmarkComparator(List<Chapter> chapters) {
         this.chapters = chapters;
     }
 
-    @Override
-    public int compare(Bookmark lhs, Bookmark rhs) {
-
-        int indexLhs = -1;
-        int indexRhs = -1;
-
-        for (int i = 0; i < chapters.size(); i++) {
-            String chapterPath = chapters.get(i).getPath();
-            if (lhs.getMediaPath().equals(chapterPath)) {
-                indexLhs = i;
-            }
-            if (rhs.getMediaPath().equals(chapterPath)) {
-                indexRhs = i;
+    private int ordinalOf(Bookmark bookmark) {
+        String path = bookmark.getMediaPath();
+        int ordinal = -1;
+        if (chapters instanceof ChapterTable) {
+            ordinal = ((ChapterTable) chapters).indexOfPath(path, lastOrdinal);
+        } else {
+            for (int i = 0; i < chapters.size(); i++) {
+                if (chapters.get(i).hasPath(path)) {
+                    ordinal = i;
+                    break;
+                }
             }
         }
-
         // throw exception if bookmark does not belong to book
-        if (indexLhs == -1) {
-            throw new IllegalArgumentException("bookmark=" + lhs + " could not be found in:" + chapters);
-        }
-        if (indexRhs == -1) {
-            throw new IllegalArgumentException("bookmark=" + rhs + " could not be found in:" + chapters);
+        if (ordinal == -1) {
+            throw new IllegalArgumentException("bookmark=" + bookmark + " could not be found in:" + chapters);
         }
+        lastOrdinal = ordinal;
+        return ordinal;
+    }
 
+    @Override
+    public int compare(Bookmark lhs, Bookmark rhs) {
         // if position in chapter is earlier or later, return.
-        if (indexLhs > indexRhs) {
-            return 1;
-        } else if (indexLhs < indexRhs) {
-            return -1;
+        int indexLhs = ordinalOf(lhs);
+        int indexRhs = ordinalOf(rhs);
+        if (indexLhs != indexRhs) {
+            return indexLhs < indexRhs ? -1 : 1;
         }
 
         // if time is earlier or later return
-        if (lhs.getTime() > rhs.getTime()) {
-            return 1;
-        } else if (lhs.getTime() < rhs.getTime()) {
-            return -1;
+        if (lhs.getTime() != rhs.getTime()) {
+            return lhs.getTime() < rhs.getTime() ? -1 : 1;
         }
 
         // if there is nothing else to compare, compare the titles.
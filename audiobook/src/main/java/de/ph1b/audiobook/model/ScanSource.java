@@ -0,0 +1,51 @@
+package de.ph1b.audiobook.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * What {@link BookAdder} reads from the device besides the files themselves: the folders the user
+ * chose, whether the storage is mounted and the tags of the audio files.
+ *
+ * @see DeviceScanSource
+ */
+interface ScanSource {
+
+    @NonNull
+    List<String> getSingleBookFolders();
+
+    @NonNull
+    List<String> getCollectionFolders();
+
+    boolean storageMounted();
+
+    /**
+     * @return a new reader. The caller releases it when done.
+     */
+    @NonNull
+    TagReader newTagReader();
+
+    /**
+     * Reads the tags of one audio file after another, like
+     * {@link android.media.MediaMetadataRetriever}.
+     */
+    interface TagReader {
+
+        /**
+         * @throws RuntimeException if the file can not be read
+         */
+        void setDataSource(@NonNull String path);
+
+        /**
+         * @param key one of the <code>METADATA_KEY</code> constants of
+         *            {@link android.media.MediaMetadataRetriever}
+         * @return the tag of the current file, or <code>null</code> if it has none.
+         */
+        @Nullable
+        String extractMetadata(int key);
+
+        void release();
+    }
+}
@@ -27,13 +27,11 @@ import android.view.KeyEvent;
 import com.squareup.picasso.Picasso;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import de.ph1b.audiobook.R;
 import de.ph1b.audiobook.activity.BookActivity;
@@ -46,23 +44,28 @@ import de.ph1b.audiobook.receiver.RemoteControlReceiver;
 import de.ph1b.audiobook.uitools.CoverReplacement;
 import de.ph1b.audiobook.uitools.ImageHelper;
 import de.ph1b.audiobook.utils.Communication;
+import de.ph1b.audiobook.utils.ExecutorRegistry;
 import de.ph1b.audiobook.utils.L;
 import de.ph1b.audiobook.utils.PrefsManager;
 
 
-public class AudioService extends Service implements AudioManager.OnAudioFocusChangeListener, Communication.OnBookContentChangedListener, Communication.OnPlayStateChangedListener, Communication.OnCurrentBookIdChangedListener {
+public class AudioService extends Service implements AudioManager.OnAudioFocusChangeListener, Communication.OnBookContentChangedListener, Communication.OnPlayStateChangedListener, Communication.OnCurrentBookIdChangedListener, Communication.OnPositionTickListener {
 
     private static final String TAG = AudioService.class.getSimpleName();
     private static final int NOTIFICATION_ID = 42;
     private static final String PLAYSTATE_CHANGED = "com.android.music.playstatechanged";
     private static final String META_CHANGED = "com.android.music.metachanged";
-    private final ExecutorService executor = Executors.newCachedThreadPool();
-    private final ExecutorService playerExecutor = new ThreadPoolExecutor(
-            1, 1, // single thread
-            5, TimeUnit.SECONDS,
-            new LinkedBlockingQueue<Runnable>(2), // queue capacity
-            new ThreadPoolExecutor.DiscardOldestPolicy()
-    );
+    /**
+     * The media session only needs the chapter, so ticks are taken at most this often.
+     */
+    private static final long TICK_INTERVAL_MS = 1000;
+    private final ExecutorService executor = ExecutorRegistry.getInstance()
+            .newCached(TAG, ExecutorRegistry.Priority.FOREGROUND);
+    /**
+     * Runs the commands to the player. Only the last two are kept if it falls behind.
+     */
+    private final ExecutorService playerExecutor = ExecutorRegistry.getInstance()
+            .newLatestSerial(TAG + "Player", ExecutorRegistry.Priority.FOREGROUND, 2);
     private final PlaybackStateCompat.Builder playbackStateBuilder = new PlaybackStateCompat.Builder()
             .setActions(PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS
                     | PlaybackStateCompat.ACTION_REWIND
@@ -114,6 +117,10 @@ public class AudioService extends Service implements AudioManager.OnAudioFocusCh
      * The last path the {@link #notifyChange(String)} has used to update the metadata.
      */
     private volatile String lastPathForMetaData = "";
+    /**
+     * The chapter of the last position tick, so the metadata is only updated when it changes.
+     */
+    private volatile int tickChapterIndex = -1;
 
     @Override
     public void onCreate() {
@@ -135,7 +142,7 @@ public class AudioService extends Service implements AudioManager.OnAudioFocusCh
                 if (keyEvent != null && keyEvent.getAction() == KeyEvent.ACTION_DOWN
                         && keyEvent.getRepeatCount() == 0) {
                     int keyCode = keyEvent.getKeyCode();
-                    L.d(TAG, "onMediaButtonEvent Received command=" + keyEvent);
+                    L.d(TAG, "onMediaButtonEvent Received command={}", keyEvent);
                     return handleKeyCode(keyCode);
                 } else {
                     return super.onMediaButtonEvent(mediaButtonEvent);
@@ -156,16 +163,31 @@ public class AudioService extends Service implements AudioManager.OnAudioFocusCh
         communication.addOnBookContentChangedListener(this);
         communication.addOnCurrentBookIdChangedListener(this);
         communication.addOnPlayStateChangedListener(this);
+        communication.addOnPositionTickListener(this, TICK_INTERVAL_MS);
 
+        if (db.isMigrating()) {
+            // reading the books waits for the migration, which must not happen on the main thread
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    initCurrentBook();
+                }
+            });
+        } else {
+            initCurrentBook();
+        }
+    }
+
+    private void initCurrentBook() {
         Book book = db.getBook(prefs.getCurrentBookId());
         if (book != null) {
-            L.d(TAG, "onCreated initialized book=" + book);
+            L.d(TAG, "onCreated initialized book={}", book);
             reInitController(book);
         }
     }
 
     private boolean handleKeyCode(int keyCode) {
-        L.v(TAG, "handling keyCode: " + keyCode);
+        L.v(TAG, "handling keyCode: {}", keyCode);
         switch (keyCode) {
             case KeyEvent.KEYCODE_MEDIA_PLAY:
             case KeyEvent.KEYCODE_MEDIA_PAUSE:
@@ -200,7 +222,7 @@ public class AudioService extends Service implements AudioManager.OnAudioFocusCh
             playerExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    L.v(TAG, "handling intent action:" + intent.getAction());
+                    L.v(TAG, "handling intent action:{}", intent.getAction());
                     switch (intent.getAction()) {
                         case Intent.ACTION_MEDIA_BUTTON:
                             KeyEvent keyEvent = intent.getParcelableExtra(Intent.EXTRA_KEY_EVENT);
@@ -245,6 +267,7 @@ public class AudioService extends Service implements AudioManager.OnAudioFocusCh
         communication.removeOnBookContentChangedListener(this);
         communication.removeOnCurrentBookIdChangedListener(this);
         communication.removeOnPlayStateChangedListener(this);
+        communication.removeOnPositionTickListener(this);
 
         MediaPlayerController.setPlayState(MediaPlayerController.PlayState.STOPPED);
 
@@ -264,6 +287,18 @@ public class AudioService extends Service implements AudioManager.OnAudioFocusCh
         return null;
     }
 
+    /**
+     * Dumps the event statistics, the thread pools and the recent log, see <code>adb shell dumpsys activity service AudioService</code>
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        communication.dump(writer);
+        writer.println();
+        ExecutorRegistry.getInstance().dump(writer);
+        writer.println();
+        L.dump(writer);
+    }
+
     private void reInitController(@NonNull Book book) {
         controller.stop();
         controller.init(book);
@@ -276,7 +311,7 @@ public class AudioService extends Service implements AudioManager.OnAudioFocusCh
     public void onAudioFocusChange(int focusChange) {
         TelephonyManager tm = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
         final int callState = (tm != null) ? tm.getCallState() : TelephonyManager.CALL_STATE_IDLE;
-        L.d(TAG, "Call state is: " + callState);
+        L.d(TAG, "Call state is: {}", callState);
         if (callState != TelephonyManager.CALL_STATE_IDLE) {
             focusChange = AudioManager.AUDIOFOCUS_LOSS;
             // if there is an incoming call, we pause permanently. (tricking switch condition)
@@ -369,7 +404,7 @@ public class AudioService extends Service implements AudioManager.OnAudioFocusCh
 
         List<Chapter> chapters = book.getChapters();
         if (chapters.size() > 1) {
-            notificationBuilder.setContentInfo((book.getChapters().indexOf(chapter) + 1) + "/" +
+            notificationBuilder.setContentInfo((book.getCurrentChapterIndex() + 1) + "/" +
                     book.getChapters().size());
         }
 
@@ -479,7 +514,7 @@ public class AudioService extends Service implements AudioManager.OnAudioFocusCh
                             Drawable replacement = new CoverReplacement(
                                     book.getName(),
                                     AudioService.this);
-                            L.d(TAG, "replacement dimen: " + replacement.getIntrinsicWidth() + ":" + replacement.getIntrinsicHeight());
+                            L.d(TAG, "replacement dimen: {}:{}", replacement.getIntrinsicWidth(), replacement.getIntrinsicHeight());
                             bitmap = ImageHelper.drawableToBitmap(
                                     replacement,
                                     ImageHelper.getSmallerScreenSize(AudioService.this),
@@ -492,7 +527,7 @@ public class AudioService extends Service implements AudioManager.OnAudioFocusCh
                         mediaMetaDataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, bitmap)
                                 .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, bitmap)
                                 .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, c.getDuration())
-                                .putLong(MediaMetadataCompat.METADATA_KEY_TRACK_NUMBER, (book.getChapters().indexOf(book.getCurrentChapter()) + 1))
+                                .putLong(MediaMetadataCompat.METADATA_KEY_TRACK_NUMBER, (book.getCurrentChapterIndex() + 1))
                                 .putLong(MediaMetadataCompat.METADATA_KEY_NUM_TRACKS, book.getChapters().size())
                                 .putString(MediaMetadataCompat.METADATA_KEY_TITLE, chapterName)
                                 .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, bookName)
@@ -513,7 +548,16 @@ public class AudioService extends Service implements AudioManager.OnAudioFocusCh
     @Override
     public void onBookContentChanged(@NonNull Book book) {
         if (book.getId() == prefs.getCurrentBookId()) {
-            controller.updateBook(db.getBook(prefs.getCurrentBookId()));
+            controller.updateBook(book);
+            notifyChange(META_CHANGED);
+        }
+    }
+
+    @Override
+    public void onPositionTick(long bookId, int chapterIndex, int time) {
+        // the controller made the change, so its book is up to date
+        if (bookId == prefs.getCurrentBookId() && chapterIndex != tickChapterIndex) {
+            tickChapterIndex = chapterIndex;
             notifyChange(META_CHANGED);
         }
     }
@@ -521,11 +565,11 @@ public class AudioService extends Service implements AudioManager.OnAudioFocusCh
     @Override
     public void onPlayStateChanged() {
         final MediaPlayerController.PlayState state = MediaPlayerController.getPlayState();
-        L.d(TAG, "onPlayStateChanged:" + state);
+        L.d(TAG, "onPlayStateChanged:{}", state);
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                L.d(TAG, "onPlayStateChanged executed:" + state);
+                L.d(TAG, "onPlayStateChanged executed:{}", state);
                 Book controllerBook = controller.getBook();
                 if (controllerBook != null) {
                     switch (state) {
@@ -24,7 +24,7 @@ import com.squareup.picasso.Picasso;
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import de.ph1b.audiobook.R;
 import de.ph1b.audiobook.activity.BookActivity;
@@ -36,13 +36,25 @@ import de.ph1b.audiobook.receiver.BaseWidgetProvider;
 import de.ph1b.audiobook.uitools.CoverReplacement;
 import de.ph1b.audiobook.uitools.ImageHelper;
 import de.ph1b.audiobook.utils.Communication;
+import de.ph1b.audiobook.utils.ExecutorRegistry;
 import de.ph1b.audiobook.utils.PrefsManager;
 
-public class WidgetUpdateService extends Service implements Communication.OnBookContentChangedListener, Communication.OnPlayStateChangedListener, Communication.OnCurrentBookIdChangedListener {
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+public class WidgetUpdateService extends Service implements Communication.OnBookContentChangedListener, Communication.OnPlayStateChangedListener, Communication.OnCurrentBookIdChangedListener, Communication.OnPositionTickListener {
+    /**
+     * The widget only shows the chapter, so a new one is shown at most this often.
+     */
+    private static final long CHAPTER_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long BOOK_INTERVAL_MS = TimeUnit.SECONDS.toMillis(1);
+    private final ExecutorService executor = ExecutorRegistry.getInstance()
+            .newCached(WidgetUpdateService.class.getSimpleName(), ExecutorRegistry.Priority.BACKGROUND);
     private final Communication communication = Communication.getInstance();
     private DataBaseHelper db;
     private PrefsManager prefs;
+    /**
+     * The chapter of the last position tick. The widget shows the chapter but not the time, so it
+     * is only updated when the chapter changes.
+     */
+    private volatile int tickChapterIndex = -1;
 
     @Override
     public void onCreate() {
@@ -51,9 +63,10 @@ public class WidgetUpdateService extends Service implements Communication.OnBook
         db = DataBaseHelper.getInstance(this);
         prefs = PrefsManager.getInstance(this);
 
-        communication.addOnBookContentChangedListener(this);
+        communication.addOnBookContentChangedListener(this, BOOK_INTERVAL_MS);
         communication.addOnCurrentBookIdChangedListener(this);
         communication.addOnPlayStateChangedListener(this);
+        communication.addOnPositionTickListener(this, CHAPTER_INTERVAL_MS);
     }
 
     @Override
@@ -310,6 +323,7 @@ public class WidgetUpdateService extends Service implements Communication.OnBook
         communication.removeOnBookContentChangedListener(this);
         communication.removeOnCurrentBookIdChangedListener(this);
         communication.removeOnPlayStateChangedListener(this);
+        communication.removeOnPositionTickListener(this);
     }
 
     @Override
@@ -334,6 +348,14 @@ public class WidgetUpdateService extends Service implements Communication.OnBook
         }
     }
 
+    @Override
+    public void onPositionTick(long bookId, int chapterIndex, int time) {
+        if (bookId == prefs.getCurrentBookId() && chapterIndex != tickChapterIndex) {
+            tickChapterIndex = chapterIndex;
+            updateWidget();
+        }
+    }
+
     @Override
     public void onPlayStateChanged() {
         updateWidget();
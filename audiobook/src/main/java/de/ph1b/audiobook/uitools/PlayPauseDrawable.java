@@ -84,7 +84,7 @@ public class PlayPauseDrawable extends Drawable {
 
     @Override
     public void draw(Canvas canvas) {
-        L.v(TAG, "draw called with progress=" + progress);
+        L.v(TAG, "draw called with progress={}", progress);
         leftPauseBar.rewind();
         rightPauseBar.rewind();
 
@@ -202,7 +202,7 @@ public class PlayPauseDrawable extends Drawable {
         this.progress = progress;
         invalidateSelf();
 
-        L.v(TAG, "setProgress(" + progress + ")");
+        L.v(TAG, "setProgress({})", progress);
     }
 
     @Override
@@ -1,31 +1,69 @@
 package de.ph1b.audiobook.utils;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.content.LocalBroadcastManager;
 
 import net.jcip.annotations.ThreadSafe;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import de.ph1b.audiobook.mediaplayer.MediaPlayerController;
 import de.ph1b.audiobook.model.Book;
+import de.ph1b.audiobook.model.BookSetChange;
 
 
 /**
  * Class for communicating on different events through {@link LocalBroadcastManager}.
+ * <p/>
+ * Sending never takes a lock: the listeners are kept in copy-on-write arrays, so an event is
+ * delivered to the listeners registered when it was sent, even if they are changed meanwhile. A
+ * listener registered with an {@link Executor} receives its events there, so a slow listener does
+ * not hold up the sender.
+ * <p/>
+ * Listeners of frequent events can also subscribe with a minimum interval. They receive at most
+ * one event per interval for each book, the latest one, so a burst of events while seeking or
+ * scanning results in a single delivery. Changes of the book set are merged instead. The first
+ * event after a quiet interval is delivered right away.
  */
 @ThreadSafe
 public class Communication {
 
+    private static final String TAG = Communication.class.getSimpleName();
+    /**
+     * A listener called on the sending thread for longer than this is logged.
+     */
+    private static volatile long listenerBudgetNs = TimeUnit.MILLISECONDS.toNanos(16);
     private static final Communication INSTANCE = new Communication();
-    private final List<OnBookSetChangedListener> onBookSetChangedListeners = new ArrayList<>();
-    private final List<OnSleepStateChangedListener> onSleepStateChangedListeners = new ArrayList<>();
-    private final List<OnCoverChangedListener> onCoverChangedListeners = new ArrayList<>();
-    private final List<OnBookContentChangedListener> onBookContentChangedListeners = new ArrayList<>();
-    private final List<OnPlayStateChangedListener> onPlayStateChangedListeners = new ArrayList<>();
-    private final List<OnScannerStateChangedListener> onScannerStateChangedListeners = new ArrayList<>();
-    private final List<OnCurrentBookIdChangedListener> onCurrentBookIdChangedListeners = new ArrayList<>();
+    /**
+     * All kinds of events, for {@link #dump(PrintWriter)}.
+     */
+    private final List<Listeners<?>> topics = new ArrayList<>();
+    /**
+     * Delivers the events of conflating subscriptions.
+     */
+    private final ScheduledExecutorService conflation = ExecutorRegistry.getInstance()
+            .newScheduled(TAG, ExecutorRegistry.Priority.FOREGROUND, 1);
+    private final Listeners<OnBookSetChangedListener> bookSetChanged = topic("bookSetChanged");
+    private final Listeners<OnSleepStateChangedListener> sleepStateChanged = topic("sleepStateChanged");
+    private final Listeners<OnCoverChangedListener> coverChanged = topic("coverChanged");
+    private final Listeners<OnBookContentChangedListener> bookContentChanged = topic("bookContentChanged");
+    private final Listeners<OnBookmarksChangedListener> bookmarksChanged = topic("bookmarksChanged");
+    private final Listeners<OnPositionTickListener> positionTick = topic("positionTick");
+    private final Listeners<OnPlayStateChangedListener> playStateChanged = topic("playStateChanged");
+    private final Listeners<OnScannerStateChangedListener> scannerStateChanged = topic("scannerStateChanged");
+    private final Listeners<OnCurrentBookIdChangedListener> currentBookIdChanged = topic("currentBookIdChanged");
 
     private Communication() {
     }
@@ -34,23 +72,60 @@ public class Communication {
         return INSTANCE;
     }
 
+    @NonNull
+    private <T> Listeners<T> topic(@NonNull String name) {
+        Listeners<T> topic = new Listeners<>(name);
+        topics.add(topic);
+        return topic;
+    }
+
+    /**
+     * @param budgetMs the time a listener may take on the sending thread before it is logged
+     */
+    public static void setListenerBudgetMs(long budgetMs) {
+        listenerBudgetNs = TimeUnit.MILLISECONDS.toNanos(budgetMs);
+    }
+
+    /**
+     * Writes how many events of each kind have been sent and delivered, and how long each listener
+     * took to handle them.
+     */
+    public void dump(@NonNull PrintWriter writer) {
+        writer.println("Communication (budget=" + TimeUnit.NANOSECONDS.toMicros(listenerBudgetNs) + "us)");
+        for (Listeners<?> topic : topics) {
+            topic.dump(writer);
+        }
+        writer.flush();
+    }
+
     /**
      * Sends a broadcast indicating that a cover for a certain Book has changed
      *
      * @param bookId The book ID for which the cover has changed
      */
-    public synchronized void sendCoverChanged(long bookId) {
-        for (OnCoverChangedListener onCoverChangedListener : onCoverChangedListeners) {
-            onCoverChangedListener.onCoverChanged(bookId);
-        }
+    public void sendCoverChanged(final long bookId) {
+        coverChanged.dispatch(new Event<OnCoverChangedListener>(bookId) {
+            @Override
+            void deliverTo(OnCoverChangedListener listener) {
+                listener.onCoverChanged(bookId);
+            }
+        });
     }
 
     public void addOnCoverChangedListener(OnCoverChangedListener onCoverChangedListener) {
-        onCoverChangedListeners.add(onCoverChangedListener);
+        coverChanged.add(onCoverChangedListener, null);
+    }
+
+    public void addOnCoverChangedListener(OnCoverChangedListener onCoverChangedListener, @NonNull Executor executor) {
+        coverChanged.add(onCoverChangedListener, executor);
+    }
+
+    public void addOnCoverChangedListener(OnCoverChangedListener onCoverChangedListener, long minIntervalMs) {
+        coverChanged.add(onCoverChangedListener, minIntervalMs, conflation);
     }
 
     public void removeOnCoverChangedListener(OnCoverChangedListener onCoverChangedListener) {
-        onCoverChangedListeners.remove(onCoverChangedListener);
+        coverChanged.remove(onCoverChangedListener);
     }
 
     /**
@@ -58,18 +133,25 @@ public class Communication {
      *
      * @see MediaPlayerController#sleepSandActive()
      */
-    public synchronized void sleepStateChanged() {
-        for (OnSleepStateChangedListener listener : onSleepStateChangedListeners) {
-            listener.onSleepStateChanged();
-        }
+    public void sleepStateChanged() {
+        sleepStateChanged.dispatch(new Event<OnSleepStateChangedListener>() {
+            @Override
+            void deliverTo(OnSleepStateChangedListener listener) {
+                listener.onSleepStateChanged();
+            }
+        });
     }
 
-    public synchronized void addOnSleepStateChangedListener(OnSleepStateChangedListener onSleepStateChangedListener) {
-        onSleepStateChangedListeners.add(onSleepStateChangedListener);
+    public void addOnSleepStateChangedListener(OnSleepStateChangedListener onSleepStateChangedListener) {
+        sleepStateChanged.add(onSleepStateChangedListener, null);
     }
 
-    public synchronized void removeOnSleepStateChangedListener(OnSleepStateChangedListener onSleepStateChangedListener) {
-        onSleepStateChangedListeners.remove(onSleepStateChangedListener);
+    public void addOnSleepStateChangedListener(OnSleepStateChangedListener onSleepStateChangedListener, @NonNull Executor executor) {
+        sleepStateChanged.add(onSleepStateChangedListener, executor);
+    }
+
+    public void removeOnSleepStateChangedListener(OnSleepStateChangedListener onSleepStateChangedListener) {
+        sleepStateChanged.remove(onSleepStateChangedListener);
     }
 
     /**
@@ -78,18 +160,25 @@ public class Communication {
      *
      * @see de.ph1b.audiobook.model.BookAdder#scannerActive
      */
-    public synchronized void sendScannerStateChanged() {
-        for (OnScannerStateChangedListener onScannerStateChangedListener : onScannerStateChangedListeners) {
-            onScannerStateChangedListener.onScannerStateChanged();
-        }
+    public void sendScannerStateChanged() {
+        scannerStateChanged.dispatch(new Event<OnScannerStateChangedListener>() {
+            @Override
+            void deliverTo(OnScannerStateChangedListener listener) {
+                listener.onScannerStateChanged();
+            }
+        });
+    }
+
+    public void addOnScannerStateChangedListener(OnScannerStateChangedListener onScannerStateChangedListener) {
+        scannerStateChanged.add(onScannerStateChangedListener, null);
     }
 
-    public synchronized void addOnScannerStateChangedListener(OnScannerStateChangedListener onScannerStateChangedListener) {
-        onScannerStateChangedListeners.add(onScannerStateChangedListener);
+    public void addOnScannerStateChangedListener(OnScannerStateChangedListener onScannerStateChangedListener, @NonNull Executor executor) {
+        scannerStateChanged.add(onScannerStateChangedListener, executor);
     }
 
-    public synchronized void removeOnScannerStateChangedListener(OnScannerStateChangedListener onScannerStateChangedListener) {
-        onScannerStateChangedListeners.remove(onScannerStateChangedListener);
+    public void removeOnScannerStateChangedListener(OnScannerStateChangedListener onScannerStateChangedListener) {
+        scannerStateChanged.remove(onScannerStateChangedListener);
     }
 
     /**
@@ -97,67 +186,92 @@ public class Communication {
      *
      * @param oldId The old {@link de.ph1b.audiobook.model.Book#id}
      */
-    public synchronized void sendCurrentBookChanged(long oldId) {
-        for (OnCurrentBookIdChangedListener onCurrentBookIdChangedListener : onCurrentBookIdChangedListeners) {
-            onCurrentBookIdChangedListener.onCurrentBookIdChanged(oldId);
-        }
+    public void sendCurrentBookChanged(final long oldId) {
+        currentBookIdChanged.dispatch(new Event<OnCurrentBookIdChangedListener>() {
+            @Override
+            void deliverTo(OnCurrentBookIdChangedListener listener) {
+                listener.onCurrentBookIdChanged(oldId);
+            }
+        });
+    }
+
+    public void addOnCurrentBookIdChangedListener(OnCurrentBookIdChangedListener onCurrentBookIdChangedListener) {
+        currentBookIdChanged.add(onCurrentBookIdChangedListener, null);
     }
 
-    public synchronized void addOnCurrentBookIdChangedListener(OnCurrentBookIdChangedListener onCurrentBookIdChangedListener) {
-        onCurrentBookIdChangedListeners.add(onCurrentBookIdChangedListener);
+    public void addOnCurrentBookIdChangedListener(OnCurrentBookIdChangedListener onCurrentBookIdChangedListener, @NonNull Executor executor) {
+        currentBookIdChanged.add(onCurrentBookIdChangedListener, executor);
     }
 
-    public synchronized void removeOnCurrentBookIdChangedListener(OnCurrentBookIdChangedListener onCurrentBookIdChangedListener) {
-        onCurrentBookIdChangedListeners.remove(onCurrentBookIdChangedListener);
+    public void removeOnCurrentBookIdChangedListener(OnCurrentBookIdChangedListener onCurrentBookIdChangedListener) {
+        currentBookIdChanged.remove(onCurrentBookIdChangedListener);
     }
 
     /**
      * Sends a broadcast signaling that the
      * {@link de.ph1b.audiobook.mediaplayer.MediaPlayerController.PlayState} has changed.
      */
-    public synchronized void playStateChanged() {
-        for (OnPlayStateChangedListener onPlayStateChangedListener : onPlayStateChangedListeners) {
-            onPlayStateChangedListener.onPlayStateChanged();
-        }
+    public void playStateChanged() {
+        playStateChanged.dispatch(new Event<OnPlayStateChangedListener>() {
+            @Override
+            void deliverTo(OnPlayStateChangedListener listener) {
+                listener.onPlayStateChanged();
+            }
+        });
     }
 
-    public synchronized void addOnPlayStateChangedListener(OnPlayStateChangedListener onPlayStateChangedListener) {
-        onPlayStateChangedListeners.add(onPlayStateChangedListener);
+    public void addOnPlayStateChangedListener(OnPlayStateChangedListener onPlayStateChangedListener) {
+        playStateChanged.add(onPlayStateChangedListener, null);
     }
 
-    public synchronized void removeOnPlayStateChangedListener(OnPlayStateChangedListener onPlayStateChangedListener) {
-        onPlayStateChangedListeners.remove(onPlayStateChangedListener);
+    public void addOnPlayStateChangedListener(OnPlayStateChangedListener onPlayStateChangedListener, @NonNull Executor executor) {
+        playStateChanged.add(onPlayStateChangedListener, executor);
+    }
+
+    public void removeOnPlayStateChangedListener(OnPlayStateChangedListener onPlayStateChangedListener) {
+        playStateChanged.remove(onPlayStateChangedListener);
     }
 
     /**
-     * Notifies listeners, that the whole set of Books has changed.
+     * Notifies listeners that books have been added to or removed from the active books, or have
+     * been replaced. Conflating listeners receive the changes of an interval merged into one.
      *
-     * @param allBooks The whole book set
+     * @param change The change
      */
-    public synchronized void bookSetChanged(List<Book> allBooks) {
-        for (OnBookSetChangedListener onBookSetChangedListener : onBookSetChangedListeners) {
-            List<Book> copyBooks = new ArrayList<>();
-            for (Book b : allBooks) {
-                copyBooks.add(new Book(b));
-            }
-            onBookSetChangedListener.onBookSetChanged(copyBooks);
-        }
+    public void bookSetChanged(@NonNull BookSetChange change) {
+        bookSetChanged.dispatch(new BookSetChangedEvent(change));
+    }
+
+    public void addOnBookSetChangedListener(OnBookSetChangedListener onBookSetChangedListener) {
+        bookSetChanged.add(onBookSetChangedListener, null);
+    }
+
+    public void addOnBookSetChangedListener(OnBookSetChangedListener onBookSetChangedListener, @NonNull Executor executor) {
+        bookSetChanged.add(onBookSetChangedListener, executor);
     }
 
-    public synchronized void addOnBookSetChangedListener(OnBookSetChangedListener onBookSetChangedListener) {
-        onBookSetChangedListeners.add(onBookSetChangedListener);
+    public void addOnBookSetChangedListener(OnBookSetChangedListener onBookSetChangedListener, long minIntervalMs) {
+        bookSetChanged.add(onBookSetChangedListener, minIntervalMs, conflation);
     }
 
-    public synchronized void removeOnBookSetChangedListener(OnBookSetChangedListener onBookSetChangedListener) {
-        onBookSetChangedListeners.remove(onBookSetChangedListener);
+    public void removeOnBookSetChangedListener(OnBookSetChangedListener onBookSetChangedListener) {
+        bookSetChanged.remove(onBookSetChangedListener);
     }
 
-    public synchronized void addOnBookContentChangedListener(OnBookContentChangedListener onBookContentChangedListener) {
-        onBookContentChangedListeners.add(onBookContentChangedListener);
+    public void addOnBookContentChangedListener(OnBookContentChangedListener onBookContentChangedListener) {
+        bookContentChanged.add(onBookContentChangedListener, null);
     }
 
-    public synchronized void removeOnBookContentChangedListener(OnBookContentChangedListener onBookContentChangedListener) {
-        onBookContentChangedListeners.remove(onBookContentChangedListener);
+    public void addOnBookContentChangedListener(OnBookContentChangedListener onBookContentChangedListener, @NonNull Executor executor) {
+        bookContentChanged.add(onBookContentChangedListener, executor);
+    }
+
+    public void addOnBookContentChangedListener(OnBookContentChangedListener onBookContentChangedListener, long minIntervalMs) {
+        bookContentChanged.add(onBookContentChangedListener, minIntervalMs, conflation);
+    }
+
+    public void removeOnBookContentChangedListener(OnBookContentChangedListener onBookContentChangedListener) {
+        bookContentChanged.remove(onBookContentChangedListener);
     }
 
     /**
@@ -165,10 +279,329 @@ public class Communication {
      *
      * @param book The book that has changed
      */
-    public synchronized void sendBookContentChanged(@NonNull Book book) {
-        for (OnBookContentChangedListener onBookContentChangedListener : onBookContentChangedListeners) {
-            // copy constructor for immutabliity
-            onBookContentChangedListener.onBookContentChanged(new Book(book));
+    public void sendBookContentChanged(@NonNull final Book book) {
+        bookContentChanged.dispatch(new Event<OnBookContentChangedListener>(book.getId()) {
+            @Override
+            void deliverTo(OnBookContentChangedListener listener) {
+                listener.onBookContentChanged(book);
+            }
+        });
+    }
+
+    public void addOnBookmarksChangedListener(OnBookmarksChangedListener onBookmarksChangedListener) {
+        bookmarksChanged.add(onBookmarksChangedListener, null);
+    }
+
+    public void addOnBookmarksChangedListener(OnBookmarksChangedListener onBookmarksChangedListener, @NonNull Executor executor) {
+        bookmarksChanged.add(onBookmarksChangedListener, executor);
+    }
+
+    public void addOnBookmarksChangedListener(OnBookmarksChangedListener onBookmarksChangedListener, long minIntervalMs) {
+        bookmarksChanged.add(onBookmarksChangedListener, minIntervalMs, conflation);
+    }
+
+    public void removeOnBookmarksChangedListener(OnBookmarksChangedListener onBookmarksChangedListener) {
+        bookmarksChanged.remove(onBookmarksChangedListener);
+    }
+
+    /**
+     * Notifies listeners that bookmarks of a book have been added, edited or deleted. Nothing else
+     * of the book has changed, so no {@link #sendBookContentChanged(Book)} is sent.
+     *
+     * @param book The book with the changed bookmarks
+     */
+    public void sendBookmarksChanged(@NonNull final Book book) {
+        bookmarksChanged.dispatch(new Event<OnBookmarksChangedListener>(book.getId()) {
+            @Override
+            void deliverTo(OnBookmarksChangedListener listener) {
+                listener.onBookmarksChanged(book);
+            }
+        });
+    }
+
+    public void addOnPositionTickListener(OnPositionTickListener onPositionTickListener) {
+        positionTick.add(onPositionTickListener, null);
+    }
+
+    public void addOnPositionTickListener(OnPositionTickListener onPositionTickListener, @NonNull Executor executor) {
+        positionTick.add(onPositionTickListener, executor);
+    }
+
+    public void addOnPositionTickListener(OnPositionTickListener onPositionTickListener, long minIntervalMs) {
+        positionTick.add(onPositionTickListener, minIntervalMs, conflation);
+    }
+
+    public void removeOnPositionTickListener(OnPositionTickListener onPositionTickListener) {
+        positionTick.remove(onPositionTickListener);
+    }
+
+    /**
+     * Notifies listeners that the position of a book has changed, which happens every second while
+     * playing. Nothing else of the book has changed, so no {@link #sendBookContentChanged(Book)} is
+     * sent.
+     *
+     * @param bookId       The id of the book
+     * @param chapterIndex The index of the current chapter
+     * @param time         The time within the chapter, in ms
+     */
+    public void sendPositionTick(final long bookId, final int chapterIndex, final int time) {
+        positionTick.dispatch(new Event<OnPositionTickListener>(bookId) {
+            @Override
+            void deliverTo(OnPositionTickListener listener) {
+                listener.onPositionTick(bookId, chapterIndex, time);
+            }
+        });
+    }
+
+    /**
+     * Delivers one event to a listener.
+     */
+    private abstract static class Event<T> {
+
+        private static final Object NO_KEY = new Object();
+        /**
+         * Conflating subscriptions keep the latest event per key.
+         */
+        @NonNull
+        final Object key;
+
+        Event() {
+            this(NO_KEY);
+        }
+
+        Event(@NonNull Object key) {
+            this.key = key;
+        }
+
+        abstract void deliverTo(T listener);
+
+        /**
+         * @param newer an event with the same key that has been sent after this one
+         * @return the event a conflating listener receives instead of both
+         */
+        @NonNull
+        Event<T> conflate(@NonNull Event<T> newer) {
+            return newer;
+        }
+    }
+
+    /**
+     * Changes of the book set are merged instead of replaced, as each one only carries a delta.
+     */
+    private static class BookSetChangedEvent extends Event<OnBookSetChangedListener> {
+
+        @NonNull
+        private final BookSetChange change;
+
+        BookSetChangedEvent(@NonNull BookSetChange change) {
+            this.change = change;
+        }
+
+        @Override
+        void deliverTo(OnBookSetChangedListener listener) {
+            listener.onBookSetChanged(change);
+        }
+
+        @NonNull
+        @Override
+        Event<OnBookSetChangedListener> conflate(@NonNull Event<OnBookSetChangedListener> newer) {
+            return new BookSetChangedEvent(change.merge(((BookSetChangedEvent) newer).change));
+        }
+    }
+
+    /**
+     * The listeners of one kind of event.
+     */
+    @ThreadSafe
+    private static class Listeners<T> {
+
+        @NonNull
+        private final String name;
+        private final CopyOnWriteArrayList<Subscription<T>> subscriptions = new CopyOnWriteArrayList<>();
+        private final AtomicLong published = new AtomicLong();
+        private final AtomicLong delivered = new AtomicLong();
+
+        Listeners(@NonNull String name) {
+            this.name = name;
+        }
+
+        void add(@NonNull T listener, @Nullable Executor executor) {
+            subscriptions.add(new Subscription<>(this, listener, executor));
+        }
+
+        void add(@NonNull T listener, long minIntervalMs, @NonNull ScheduledExecutorService scheduler) {
+            subscriptions.add(new ConflatingSubscription<>(this, listener, minIntervalMs, scheduler));
+        }
+
+        void remove(@NonNull T listener) {
+            for (Subscription<T> s : subscriptions) {
+                if (s.listener == listener) {
+                    subscriptions.remove(s);
+                    s.cancel();
+                }
+            }
+        }
+
+        void dispatch(@NonNull Event<T> event) {
+            published.incrementAndGet();
+            for (Subscription<T> s : subscriptions) {
+                s.deliver(event);
+            }
+        }
+
+        void dump(@NonNull PrintWriter writer) {
+            writer.println(name + ": published=" + published.get() + ", delivered=" + delivered.get());
+            for (Subscription<T> s : subscriptions) {
+                writer.println("  " + s.listener.getClass().getName() + ": " + s.timing);
+            }
+        }
+    }
+
+    private static class Subscription<T> {
+
+        @NonNull
+        private final Listeners<T> topic;
+        @NonNull
+        final T listener;
+        @Nullable
+        private final Executor executor;
+        final CallbackTiming timing = new CallbackTiming();
+
+        Subscription(@NonNull Listeners<T> topic, @NonNull T listener, @Nullable Executor executor) {
+            this.topic = topic;
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        void deliver(@NonNull final Event<T> event) {
+            if (executor == null) {
+                long duration = call(event);
+                if (duration > listenerBudgetNs) {
+                    timing.overBudget.incrementAndGet();
+                    L.e(TAG, "{} took {}ms for {}", listener.getClass().getName(),
+                            TimeUnit.NANOSECONDS.toMillis(duration), topic.name);
+                }
+            } else {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        call(event);
+                    }
+                });
+            }
+        }
+
+        /**
+         * @return how long the listener took, in ns
+         */
+        long call(@NonNull Event<T> event) {
+            long start = System.nanoTime();
+            event.deliverTo(listener);
+            long duration = System.nanoTime() - start;
+            timing.record(duration);
+            topic.delivered.incrementAndGet();
+            return duration;
+        }
+
+        /**
+         * Called when the listener has been removed.
+         */
+        void cancel() {
+        }
+    }
+
+    /**
+     * Delivers the latest event per key, at most once per interval.
+     */
+    @ThreadSafe
+    private static class ConflatingSubscription<T> extends Subscription<T> {
+
+        private final long minIntervalNs;
+        private final ScheduledExecutorService scheduler;
+        private final ConcurrentHashMap<Object, Event<T>> latest = new ConcurrentHashMap<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile long lastDeliveryNs;
+        private volatile boolean cancelled = false;
+        private final Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                // events arriving from now on schedule the next flush
+                scheduled.set(false);
+                lastDeliveryNs = System.nanoTime();
+                for (Object key : latest.keySet()) {
+                    Event<T> event = latest.remove(key);
+                    if (event != null && !cancelled) {
+                        call(event);
+                    }
+                }
+            }
+        };
+
+        ConflatingSubscription(@NonNull Listeners<T> topic, @NonNull T listener, long minIntervalMs,
+                               @NonNull ScheduledExecutorService scheduler) {
+            super(topic, listener, null);
+            this.minIntervalNs = TimeUnit.MILLISECONDS.toNanos(minIntervalMs);
+            this.scheduler = scheduler;
+            this.lastDeliveryNs = System.nanoTime() - minIntervalNs;
+        }
+
+        @Override
+        void deliver(@NonNull Event<T> event) {
+            Event<T> previous = latest.putIfAbsent(event.key, event);
+            while (previous != null && !latest.replace(event.key, previous, previous.conflate(event))) {
+                previous = latest.putIfAbsent(event.key, event);
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                long delayNs = lastDeliveryNs + minIntervalNs - System.nanoTime();
+                scheduler.schedule(flush, Math.max(0, delayNs), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * How long a listener takes to handle its events. The percentile is taken from the most recent
+     * calls only.
+     */
+    @ThreadSafe
+    private static class CallbackTiming {
+
+        private static final int SAMPLES = 256;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong maxNs = new AtomicLong();
+        final AtomicLong overBudget = new AtomicLong();
+        private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+
+        void record(long durationNs) {
+            long call = calls.getAndIncrement();
+            samples.set((int) (call % SAMPLES), durationNs);
+            long max = maxNs.get();
+            while (durationNs > max && !maxNs.compareAndSet(max, durationNs)) {
+                max = maxNs.get();
+            }
+        }
+
+        private long p99Ns() {
+            int count = (int) Math.min(calls.get(), SAMPLES);
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = new long[count];
+            for (int i = 0; i < count; i++) {
+                sorted[i] = samples.get(i);
+            }
+            Arrays.sort(sorted);
+            return sorted[(count * 99 - 1) / 100];
+        }
+
+        @Override
+        public String toString() {
+            return "calls=" + calls.get() + ", max=" + TimeUnit.NANOSECONDS.toMicros(maxNs.get()) +
+                    "us, p99=" + TimeUnit.NANOSECONDS.toMicros(p99Ns()) + "us, overBudget=" + overBudget.get();
         }
     }
 
@@ -188,6 +621,14 @@ public class Communication {
         void onBookContentChanged(@NonNull Book book);
     }
 
+    public interface OnBookmarksChangedListener {
+        void onBookmarksChanged(@NonNull Book book);
+    }
+
+    public interface OnPositionTickListener {
+        void onPositionTick(long bookId, int chapterIndex, int time);
+    }
+
 
     public interface OnCoverChangedListener {
         void onCoverChanged(long bookId);
@@ -198,6 +639,6 @@ public class Communication {
     }
 
     public interface OnBookSetChangedListener {
-        void onBookSetChanged(@NonNull List<Book> activeBooks);
+        void onBookSetChanged(@NonNull BookSetChange change);
     }
 }
@@ -8,6 +8,7 @@ import de.ph1b.audiobook.R;
 public class CustomBackupAgent extends BackupAgentHelper {
 
     private static final String BACKUP_KEY = "BACKUP_KEY";
+    private static final String LIBRARY_BACKUP_KEY = "LIBRARY_BACKUP_KEY";
 
     @Override
     public void onCreate() {
@@ -25,5 +26,6 @@ public class CustomBackupAgent extends BackupAgentHelper {
                 resumeOnReplug, seekTime, sleepTime, theme, pauseOnCanDuck, autoBugReportEnable,
                 autoRewind, bookmarkOnSleep);
         addHelper(BACKUP_KEY, helper);
+        addHelper(LIBRARY_BACKUP_KEY, new LibraryBackupHelper(this));
     }
 }
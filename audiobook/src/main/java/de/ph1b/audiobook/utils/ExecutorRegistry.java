@@ -0,0 +1,371 @@
+package de.ph1b.audiobook.utils;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates all thread pools of the app. Each pool has a name, which its threads carry, and a
+ * {@link Priority} its threads run with. The pools count their tasks and how long these waited and
+ * ran, see {@link #dump(PrintWriter)}.
+ * <p/>
+ * The registry only keeps weak references, and idle threads end after a while, so a pool that is
+ * no longer used is collected even if it has not been shut down.
+ */
+@ThreadSafe
+public class ExecutorRegistry {
+
+    private static final ExecutorRegistry INSTANCE = new ExecutorRegistry();
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    @GuardedBy("pools")
+    private final List<WeakReference<InstrumentedPool>> pools = new ArrayList<>();
+
+    private ExecutorRegistry() {
+    }
+
+    public static ExecutorRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return a pool running one task after another, in the order they were submitted.
+     */
+    @NonNull
+    public ExecutorService newSerial(@NonNull String name, @NonNull Priority priority) {
+        return register(new InstrumentedThreadPool(name, priority, 1, new LinkedBlockingQueue<Runnable>(),
+                new ThreadPoolExecutor.AbortPolicy()));
+    }
+
+    /**
+     * @return a pool running one task after another, which keeps at most <code>capacity</code>
+     * waiting tasks. If it is full the task that has waited longest is dropped.
+     */
+    @NonNull
+    public ExecutorService newLatestSerial(@NonNull String name, @NonNull Priority priority, int capacity) {
+        return register(new InstrumentedThreadPool(name, priority, 1, new ArrayBlockingQueue<Runnable>(capacity),
+                new ThreadPoolExecutor.DiscardOldestPolicy()));
+    }
+
+    /**
+     * @return a pool starting a thread for each task if none is idle.
+     */
+    @NonNull
+    public ExecutorService newCached(@NonNull String name, @NonNull Priority priority) {
+        return register(new InstrumentedThreadPool(name, priority, Integer.MAX_VALUE,
+                new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.AbortPolicy()));
+    }
+
+    @NonNull
+    public ScheduledExecutorService newScheduled(@NonNull String name, @NonNull Priority priority, int threads) {
+        return register(new InstrumentedScheduledPool(name, priority, threads));
+    }
+
+    @NonNull
+    private <T extends InstrumentedPool> T register(@NonNull T pool) {
+        synchronized (pools) {
+            pools.add(new WeakReference<InstrumentedPool>(pool));
+        }
+        return pool;
+    }
+
+    /**
+     * Writes the state of each pool that is still in use: its threads, its queue and how long its
+     * tasks waited and ran.
+     */
+    public void dump(@NonNull PrintWriter writer) {
+        List<InstrumentedPool> alive = new ArrayList<>();
+        synchronized (pools) {
+            Iterator<WeakReference<InstrumentedPool>> iterator = pools.iterator();
+            while (iterator.hasNext()) {
+                InstrumentedPool pool = iterator.next().get();
+                if (pool == null || pool.isTerminated()) {
+                    iterator.remove();
+                } else {
+                    alive.add(pool);
+                }
+            }
+        }
+
+        writer.println("Executors");
+        for (InstrumentedPool pool : alive) {
+            ThreadPoolExecutor executor = pool.executor();
+            writer.println(pool.name() + " (" + pool.priority() + "): active=" + executor.getActiveCount() +
+                    ", threads=" + executor.getPoolSize() + ", queued=" + executor.getQueue().size() +
+                    ", " + pool.stats());
+        }
+        writer.flush();
+    }
+
+    /**
+     * The priority the threads of a pool run with, from {@link Process}.
+     */
+    public enum Priority {
+        /**
+         * Decoding and playing audio, which must never fall behind.
+         */
+        AUDIO(Process.THREAD_PRIORITY_AUDIO),
+        /**
+         * Work the user is waiting for.
+         */
+        FOREGROUND(Process.THREAD_PRIORITY_FOREGROUND),
+        /**
+         * Disk and network access that may take a while.
+         */
+        BACKGROUND(Process.THREAD_PRIORITY_BACKGROUND);
+
+        private final int threadPriority;
+
+        Priority(int threadPriority) {
+            this.threadPriority = threadPriority;
+        }
+    }
+
+    private interface InstrumentedPool {
+
+        @NonNull
+        String name();
+
+        @NonNull
+        Priority priority();
+
+        @NonNull
+        TaskStats stats();
+
+        @NonNull
+        ThreadPoolExecutor executor();
+
+        boolean isTerminated();
+    }
+
+    /**
+     * Names the threads of a pool and sets their priority.
+     */
+    private static class PriorityThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final Priority priority;
+        private final AtomicInteger count = new AtomicInteger();
+
+        PriorityThreadFactory(@NonNull String name, @NonNull Priority priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public Thread newThread(@NonNull final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(priority.threadPriority);
+                    r.run();
+                }
+            }, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * How many tasks a pool ran, how long they waited in the queue and how long they ran.
+     */
+    @ThreadSafe
+    private static class TaskStats {
+
+        private final AtomicLong tasks = new AtomicLong();
+        private final AtomicLong totalWaitNs = new AtomicLong();
+        private final AtomicLong maxWaitNs = new AtomicLong();
+        private final AtomicLong totalRunNs = new AtomicLong();
+        private final AtomicLong maxRunNs = new AtomicLong();
+        private final ThreadLocal<Long> started = new ThreadLocal<>();
+
+        private static void updateMax(@NonNull AtomicLong max, long value) {
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        void beforeRun(long waitNs) {
+            totalWaitNs.addAndGet(waitNs);
+            updateMax(maxWaitNs, waitNs);
+            started.set(System.nanoTime());
+        }
+
+        void afterRun() {
+            Long start = started.get();
+            if (start != null) {
+                long runNs = System.nanoTime() - start;
+                tasks.incrementAndGet();
+                totalRunNs.addAndGet(runNs);
+                updateMax(maxRunNs, runNs);
+                started.remove();
+            }
+        }
+
+        @Override
+        public String toString() {
+            long count = tasks.get();
+            long avgWait = count == 0 ? 0 : totalWaitNs.get() / count;
+            long avgRun = count == 0 ? 0 : totalRunNs.get() / count;
+            return "tasks=" + count + ", wait avg=" + TimeUnit.NANOSECONDS.toMicros(avgWait) + "us max=" +
+                    TimeUnit.NANOSECONDS.toMicros(maxWaitNs.get()) + "us, run avg=" +
+                    TimeUnit.NANOSECONDS.toMicros(avgRun) + "us max=" +
+                    TimeUnit.NANOSECONDS.toMicros(maxRunNs.get()) + "us";
+        }
+    }
+
+    /**
+     * A task remembering when it was submitted.
+     */
+    private static class TimedRunnable implements Runnable {
+
+        private final Runnable task;
+        private final long submittedNs = System.nanoTime();
+
+        TimedRunnable(@NonNull Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private static class InstrumentedThreadPool extends ThreadPoolExecutor implements InstrumentedPool {
+
+        private final String name;
+        private final Priority priority;
+        private final TaskStats stats = new TaskStats();
+
+        InstrumentedThreadPool(@NonNull String name, @NonNull Priority priority, int maxThreads,
+                               @NonNull BlockingQueue<Runnable> queue, @NonNull RejectedExecutionHandler handler) {
+            super(maxThreads == Integer.MAX_VALUE ? 0 : maxThreads, maxThreads, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, queue, new PriorityThreadFactory(name, priority), handler);
+            if (getCorePoolSize() > 0) {
+                allowCoreThreadTimeOut(true);
+            }
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            super.execute(new TimedRunnable(command));
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            super.beforeExecute(t, r);
+            stats.beforeRun(System.nanoTime() - ((TimedRunnable) r).submittedNs);
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            stats.afterRun();
+            super.afterExecute(r, t);
+        }
+
+        @NonNull
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @NonNull
+        @Override
+        public Priority priority() {
+            return priority;
+        }
+
+        @NonNull
+        @Override
+        public TaskStats stats() {
+            return stats;
+        }
+
+        @NonNull
+        @Override
+        public ThreadPoolExecutor executor() {
+            return this;
+        }
+    }
+
+    private static class InstrumentedScheduledPool extends ScheduledThreadPoolExecutor implements InstrumentedPool {
+
+        private final String name;
+        private final Priority priority;
+        private final TaskStats stats = new TaskStats();
+
+        InstrumentedScheduledPool(@NonNull String name, @NonNull Priority priority, int threads) {
+            super(threads, new PriorityThreadFactory(name, priority));
+            setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            allowCoreThreadTimeOut(true);
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            super.beforeExecute(t, r);
+            // a task that is due has a delay of 0 or less; the difference is how late it is
+            long waitNs = 0;
+            if (r instanceof RunnableScheduledFuture) {
+                waitNs = Math.max(0, -((RunnableScheduledFuture<?>) r).getDelay(TimeUnit.NANOSECONDS));
+            }
+            stats.beforeRun(waitNs);
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            stats.afterRun();
+            super.afterExecute(r, t);
+        }
+
+        @NonNull
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @NonNull
+        @Override
+        public Priority priority() {
+            return priority;
+        }
+
+        @NonNull
+        @Override
+        public TaskStats stats() {
+            return stats;
+        }
+
+        @NonNull
+        @Override
+        public ThreadPoolExecutor executor() {
+            return this;
+        }
+    }
+}
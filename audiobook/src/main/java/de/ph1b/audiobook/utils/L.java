@@ -1,77 +1,256 @@
 package de.ph1b.audiobook.utils;
 
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.List;
+import net.jcip.annotations.Immutable;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import de.ph1b.audiobook.BuildConfig;
 
+/**
+ * Logs to logcat in debug builds. The recent messages are also kept in memory, see
+ * {@link #dump(PrintWriter)}. Release builds only keep them if {@link #setKeepRecent(boolean)} is
+ * set, as they contain paths and titles, and else log nothing and allocate nothing.
+ * <p/>
+ * Messages given as a format with arguments, like <code>L.d(TAG, "book={}", book)</code>, are only
+ * put together when they are written to logcat or read from memory. The arguments are kept until
+ * then, so they should not change afterwards. As in slf4j, a {@link Throwable} as the last argument
+ * without a <code>{}</code> is logged as the cause.
+ */
 @SuppressWarnings("SameParameterValue")
 public class L {
 
+    private static final int MAX_CHUNK_LENGTH = 4000;
+    private static final int RECENT_SIZE = 256;
+    private static final AtomicReferenceArray<Entry> recent = new AtomicReferenceArray<>(RECENT_SIZE);
+    private static final AtomicLong recentCount = new AtomicLong();
+    private static volatile boolean keepRecent = BuildConfig.DEBUG;
+
+    /**
+     * @param keep true if the recent messages should be kept in memory. Verbose messages are
+     *             only kept in debug builds.
+     */
+    public static void setKeepRecent(boolean keep) {
+        keepRecent = keep;
+    }
+
+    private static boolean isEnabled(int priority) {
+        //noinspection PointlessBooleanExpression
+        return BuildConfig.DEBUG || (keepRecent && priority != Log.VERBOSE);
+    }
+
     public static void d(String tag, Object msg) {
-        if (BuildConfig.DEBUG) {
-            for (String s : getMessage(msg)) {
-                Log.d(tag, s);
-            }
+        if (isEnabled(Log.DEBUG)) {
+            log(Log.DEBUG, tag, msg, null);
         }
     }
 
-    public static void d(String tag, Object msg, Throwable t) {
-        if (BuildConfig.DEBUG) {
-            for (String s : getMessage(msg)) {
-                Log.d(tag, s, t);
-            }
+    public static void d(String tag, String format, Object arg) {
+        if (isEnabled(Log.DEBUG)) {
+            log(Log.DEBUG, tag, new Message(format, arg), null);
         }
     }
 
-    private static List<String> getMessage(Object msg) {
-        List<String> split = new ArrayList<>();
-        if (msg == null) {
-            split.add("null");
-        } else if (msg.equals("")) {
-            split.add("empty");
-            return split;
-        } else {
-            String fullMsg = String.valueOf(msg);
-            for (int i = 0; i < fullMsg.length(); i += 4000) {
-                split.add(fullMsg.substring(i, Math.min(fullMsg.length(), i + 4000)));
-            }
-            return split;
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (isEnabled(Log.DEBUG)) {
+            log(Log.DEBUG, tag, new Message(format, arg1, arg2), null);
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Log.DEBUG)) {
+            log(Log.DEBUG, tag, new Message(format, arg1, arg2, arg3), null);
         }
-        return split;
     }
 
     public static void e(String tag, Object msg) {
-        if (BuildConfig.DEBUG) {
-            for (String s : getMessage(msg)) {
-                Log.e(tag, s);
-            }
+        if (isEnabled(Log.ERROR)) {
+            log(Log.ERROR, tag, msg, null);
         }
     }
 
-    public static void e(String tag, Object msg, Throwable tr) {
-        if (BuildConfig.DEBUG) {
-            for (String s : getMessage(msg)) {
-                Log.e(tag, s, tr);
-            }
+    /**
+     * Also takes a {@link Throwable} as <code>arg</code>, which is logged as the cause if the format
+     * has no <code>{}</code>.
+     */
+    public static void e(String tag, String format, Object arg) {
+        if (isEnabled(Log.ERROR)) {
+            log(Log.ERROR, tag, new Message(format, arg), null);
+        }
+    }
+
+    public static void e(String tag, String format, Object arg1, Object arg2) {
+        if (isEnabled(Log.ERROR)) {
+            log(Log.ERROR, tag, new Message(format, arg1, arg2), null);
+        }
+    }
+
+    public static void e(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Log.ERROR)) {
+            log(Log.ERROR, tag, new Message(format, arg1, arg2, arg3), null);
         }
     }
 
     public static void i(String tag, Object msg) {
-        if (BuildConfig.DEBUG) {
-            for (String s : getMessage(msg)) {
-                Log.i(tag, s);
-            }
+        if (isEnabled(Log.INFO)) {
+            log(Log.INFO, tag, msg, null);
+        }
+    }
+
+    public static void i(String tag, String format, Object arg) {
+        if (isEnabled(Log.INFO)) {
+            log(Log.INFO, tag, new Message(format, arg), null);
+        }
+    }
+
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        if (isEnabled(Log.INFO)) {
+            log(Log.INFO, tag, new Message(format, arg1, arg2), null);
         }
     }
 
     public static void v(String tag, Object msg) {
+        if (isEnabled(Log.VERBOSE)) {
+            log(Log.VERBOSE, tag, msg, null);
+        }
+    }
+
+    public static void v(String tag, String format, Object arg) {
+        if (isEnabled(Log.VERBOSE)) {
+            log(Log.VERBOSE, tag, new Message(format, arg), null);
+        }
+    }
+
+    public static void v(String tag, String format, Object arg1, Object arg2) {
+        if (isEnabled(Log.VERBOSE)) {
+            log(Log.VERBOSE, tag, new Message(format, arg1, arg2), null);
+        }
+    }
+
+    public static void v(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Log.VERBOSE)) {
+            log(Log.VERBOSE, tag, new Message(format, arg1, arg2, arg3), null);
+        }
+    }
+
+    private static void log(int priority, String tag, @Nullable Object msg, @Nullable Throwable tr) {
+        if (tr == null && msg instanceof Message) {
+            tr = ((Message) msg).getThrowable();
+        }
+
+        if (keepRecent) {
+            long index = recentCount.getAndIncrement();
+            recent.set((int) (index % RECENT_SIZE), new Entry(System.currentTimeMillis(), priority, tag, msg, tr));
+        }
+
         if (BuildConfig.DEBUG) {
-            for (String s : getMessage(msg)) {
-                Log.v(tag, s);
+            String fullMsg = msg == null ? "null" : msg.toString();
+            if (fullMsg.isEmpty()) {
+                fullMsg = "empty";
+            }
+            for (int i = 0; i < fullMsg.length(); i += MAX_CHUNK_LENGTH) {
+                Log.println(priority, tag, fullMsg.substring(i, Math.min(fullMsg.length(), i + MAX_CHUNK_LENGTH)));
+            }
+            if (tr != null) {
+                Log.println(priority, tag, Log.getStackTraceString(tr));
+            }
+        }
+    }
+
+    /**
+     * Writes the recent messages, oldest first. Messages logged while dumping may be skipped.
+     */
+    public static void dump(@NonNull PrintWriter writer) {
+        long end = recentCount.get();
+        long start = Math.max(0, end - RECENT_SIZE);
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        for (long i = start; i < end; i++) {
+            Entry entry = recent.get((int) (i % RECENT_SIZE));
+            if (entry != null) {
+                writer.println(format.format(new Date(entry.time)) + " " + "??VDIWEA".charAt(entry.priority) +
+                        "/" + entry.tag + ": " + entry.msg);
+                if (entry.tr != null) {
+                    entry.tr.printStackTrace(writer);
+                }
+            }
+        }
+        writer.flush();
+    }
+
+    @Immutable
+    private static class Entry {
+
+        private final long time;
+        private final int priority;
+        private final String tag;
+        @Nullable
+        private final Object msg;
+        @Nullable
+        private final Throwable tr;
+
+        Entry(long time, int priority, String tag, @Nullable Object msg, @Nullable Throwable tr) {
+            this.time = time;
+            this.priority = priority;
+            this.tag = tag;
+            this.msg = msg;
+            this.tr = tr;
+        }
+    }
+
+    /**
+     * A message that is put together each time it is read.
+     */
+    @Immutable
+    private static class Message {
+
+        private static final String PLACEHOLDER = "{}";
+        private final String format;
+        private final Object[] args;
+
+        Message(String format, Object... args) {
+            this.format = format;
+            this.args = args;
+        }
+
+        @Nullable
+        Throwable getThrowable() {
+            Object last = args[args.length - 1];
+            if (last instanceof Throwable && placeholderCount() < args.length) {
+                return (Throwable) last;
+            }
+            return null;
+        }
+
+        private int placeholderCount() {
+            int count = 0;
+            for (int i = format.indexOf(PLACEHOLDER); i != -1; i = format.indexOf(PLACEHOLDER, i + PLACEHOLDER.length())) {
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(format.length() + 16 * args.length);
+            int start = 0;
+            for (Object arg : args) {
+                int placeholder = format.indexOf(PLACEHOLDER, start);
+                if (placeholder == -1) {
+                    break;
+                }
+                builder.append(format, start, placeholder).append(arg);
+                start = placeholder + PLACEHOLDER.length();
             }
+            builder.append(format, start, format.length());
+            return builder.toString();
         }
     }
 }
@@ -0,0 +1,144 @@
+package de.ph1b.audiobook.utils;
+
+import android.app.backup.BackupDataInputStream;
+import android.app.backup.BackupDataOutput;
+import android.app.backup.BackupHelper;
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.ph1b.audiobook.model.Book;
+import de.ph1b.audiobook.model.DataBaseHelper;
+import de.ph1b.audiobook.model.LibraryExport;
+
+/**
+ * Backs up the positions, speeds and bookmarks of the books. Every book is an entity of its own,
+ * so a backup only contains the books that have changed since the last one. The state remembers
+ * the generation of the database the last backup was current to.
+ * <p/>
+ * Restored books are kept until the scanner finds them.
+ */
+@SuppressWarnings("TryFinallyCanBeTryWithResources")
+public class LibraryBackupHelper implements BackupHelper {
+
+    private static final String TAG = LibraryBackupHelper.class.getSimpleName();
+    private static final String KEY_PREFIX = "book:";
+    private static final int STATE_VERSION = 1;
+    private final DataBaseHelper db;
+    private final List<InputStream> restored = new ArrayList<>();
+
+    public LibraryBackupHelper(@NonNull Context c) {
+        db = DataBaseHelper.getInstance(c);
+    }
+
+    /**
+     * @return the key of the entity of a book. The scanner identifies a book by its root and type,
+     * so the entity does too.
+     */
+    @NonNull
+    private static String keyOf(@NonNull Book book) {
+        return KEY_PREFIX + book.getType().name() + ":" + book.getRoot();
+    }
+
+    /**
+     * @return the generation of the last backup, or 0 if there is none or it is unknown.
+     */
+    private static long readState(@Nullable ParcelFileDescriptor state) {
+        if (state == null) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(state.getFileDescriptor()));
+        try {
+            if (in.readInt() != STATE_VERSION) {
+                return 0;
+            }
+            return in.readLong();
+        } catch (IOException e) {
+            // the first backup has an empty state
+            return 0;
+        }
+    }
+
+    private static void writeState(@NonNull ParcelFileDescriptor state, long generation) {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(state.getFileDescriptor()));
+        try {
+            out.writeInt(STATE_VERSION);
+            out.writeLong(generation);
+            out.flush();
+        } catch (IOException e) {
+            L.e(TAG, "Could not write state", e);
+        }
+    }
+
+    @Override
+    public void performBackup(ParcelFileDescriptor oldState, BackupDataOutput data, ParcelFileDescriptor newState) {
+        long since = readState(oldState);
+        List<Book> changed = new ArrayList<>();
+        long generation = db.getBooksChangedSince(since, changed);
+        L.v(TAG, "backing up {} books changed since generation={}", changed.size(), since);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (Book b : changed) {
+                bytes.reset();
+                LibraryExport.write(bytes, Collections.singletonList(b));
+                data.writeEntityHeader(keyOf(b), bytes.size());
+                data.writeEntityData(bytes.toByteArray(), bytes.size());
+            }
+            writeState(newState, generation);
+        } catch (IOException e) {
+            L.e(TAG, "Could not back up books", e);
+            // the next backup starts over
+            writeState(newState, 0);
+        }
+    }
+
+    @Override
+    public void restoreEntity(BackupDataInputStream data) {
+        if (!data.getKey().startsWith(KEY_PREFIX)) {
+            return;
+        }
+        try {
+            byte[] bytes = new byte[data.size()];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = data.read(bytes, read, bytes.length - read);
+                if (count == -1) {
+                    throw new IOException("Entity ended after " + read + " bytes");
+                }
+                read += count;
+            }
+            restored.add(new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            L.e(TAG, "Could not restore {}", data.getKey(), e);
+        }
+    }
+
+    @Override
+    public void writeNewStateDescription(ParcelFileDescriptor newState) {
+        // called after the last entity has been restored
+        if (!restored.isEmpty()) {
+            try {
+                db.importLater(restored);
+            } catch (IOException e) {
+                L.e(TAG, "Could not keep restored books", e);
+            }
+            restored.clear();
+        }
+        // the books of this device have not been backed up yet
+        writeState(newState, 0);
+    }
+}
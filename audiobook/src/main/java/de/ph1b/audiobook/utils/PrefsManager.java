@@ -5,9 +5,12 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 
+import com.google.common.collect.ImmutableList;
+
+import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -16,7 +19,8 @@ import de.ph1b.audiobook.R;
 import de.ph1b.audiobook.model.Book;
 
 /**
- * Preference manager, managing the setting and getting of {@link SharedPreferences}
+ * Preference manager, managing the setting and getting of {@link SharedPreferences}. The getters
+ * read from an immutable {@link Settings} snapshot, so they can be called while holding a lock.
  */
 @ThreadSafe
 public class PrefsManager {
@@ -25,15 +29,38 @@ public class PrefsManager {
     private static final String PREF_KEY_COLLECTION_FOLDERS = "folders";
     private static final String PREF_KEY_SINGLE_BOOK_FOLDERS = "singleBookFolders";
     private static PrefsManager instance;
-    @NonNull
-    private final Context c;
     private final SharedPreferences sp;
     private final Communication communication = Communication.getInstance();
+    private final String keySleepTime;
+    private final String keySeekTime;
+    private final String keyResumeOnReplug;
+    private final String keyPauseOnCanDuck;
+    private final String keyAutoRewind;
+    private final String keyBookmarkOnSleep;
+    @NonNull
+    private volatile Settings settings;
+    /**
+     * Kept as a field, as {@link SharedPreferences} only holds a weak reference to it.
+     */
+    private final SharedPreferences.OnSharedPreferenceChangeListener changeListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    refresh();
+                }
+            };
 
     private PrefsManager(@NonNull Context c) {
         PreferenceManager.setDefaultValues(c, R.xml.preferences, false);
-        this.c = c;
         sp = PreferenceManager.getDefaultSharedPreferences(c);
+        keySleepTime = c.getString(R.string.pref_key_sleep_time);
+        keySeekTime = c.getString(R.string.pref_key_seek_time);
+        keyResumeOnReplug = c.getString(R.string.pref_key_resume_on_replug);
+        keyPauseOnCanDuck = c.getString(R.string.pref_key_pause_on_can_duck);
+        keyAutoRewind = c.getString(R.string.pref_key_auto_rewind);
+        keyBookmarkOnSleep = c.getString(R.string.pref_key_bookmark_on_sleep);
+        settings = read();
+        sp.registerOnSharedPreferenceChangeListener(changeListener);
     }
 
     public static synchronized PrefsManager getInstance(@NonNull Context c) {
@@ -43,12 +70,42 @@ public class PrefsManager {
         return instance;
     }
 
+    @NonNull
+    private Settings read() {
+        return new Settings(
+                sp.getLong(PREF_KEY_CURRENT_BOOK, Book.ID_UNKNOWN),
+                ImmutableList.copyOf(sp.getStringSet(PREF_KEY_COLLECTION_FOLDERS, Collections.<String>emptySet())),
+                ImmutableList.copyOf(sp.getStringSet(PREF_KEY_SINGLE_BOOK_FOLDERS, Collections.<String>emptySet())),
+                sp.getInt(keySleepTime, 20),
+                sp.getInt(keySeekTime, 20),
+                sp.getBoolean(keyResumeOnReplug, true),
+                sp.getBoolean(keyPauseOnCanDuck, false),
+                sp.getInt(keyAutoRewind, 2),
+                sp.getBoolean(keyBookmarkOnSleep, false));
+    }
+
+    /**
+     * Replaces the snapshot. The setters call this themselves, as the listener is only called
+     * later on the main thread.
+     */
+    private synchronized void refresh() {
+        settings = read();
+    }
+
+    /**
+     * @return the current settings, which do not change.
+     */
+    @NonNull
+    public Settings getSettings() {
+        return settings;
+    }
+
     /**
      * @return the id of the current book, or {@link de.ph1b.audiobook.model.Book#ID_UNKNOWN} if
      * there is none.
      */
-    public synchronized long getCurrentBookId() {
-        return sp.getLong(PREF_KEY_CURRENT_BOOK, Book.ID_UNKNOWN);
+    public long getCurrentBookId() {
+        return settings.getCurrentBookId();
     }
 
     /**
@@ -60,17 +117,17 @@ public class PrefsManager {
         long oldId = getCurrentBookId();
         sp.edit().putLong(PREF_KEY_CURRENT_BOOK, bookId)
                 .apply();
+        refresh();
         communication.sendCurrentBookChanged(oldId);
     }
 
     /**
      * @return All book paths that are set as {@link de.ph1b.audiobook.model.Book.Type#COLLECTION_FOLDER}
-     * or {@link de.ph1b.audiobook.model.Book.Type#COLLECTION_FILE}
+     * or {@link de.ph1b.audiobook.model.Book.Type#COLLECTION_FILE}. The list can not be modified.
      */
     @NonNull
-    public synchronized List<String> getCollectionFolders() {
-        Set<String> set = sp.getStringSet(PREF_KEY_COLLECTION_FOLDERS, new HashSet<String>());
-        return new ArrayList<>(set);
+    public List<String> getCollectionFolders() {
+        return settings.getCollectionFolders();
     }
 
     /**
@@ -86,6 +143,7 @@ public class PrefsManager {
         SharedPreferences.Editor editor = sp.edit();
         editor.putStringSet(PREF_KEY_COLLECTION_FOLDERS, set);
         editor.apply();
+        refresh();
     }
 
     /**
@@ -96,9 +154,8 @@ public class PrefsManager {
      * @return the single book folders
      */
     @NonNull
-    public synchronized List<String> getSingleBookFolders() {
-        Set<String> set = sp.getStringSet(PREF_KEY_SINGLE_BOOK_FOLDERS, new HashSet<String>());
-        return new ArrayList<>(set);
+    public List<String> getSingleBookFolders() {
+        return settings.getSingleBookFolders();
     }
 
 
@@ -115,6 +172,7 @@ public class PrefsManager {
         SharedPreferences.Editor editor = sp.edit();
         editor.putStringSet(PREF_KEY_SINGLE_BOOK_FOLDERS, set);
         editor.apply();
+        refresh();
     }
 
 
@@ -124,8 +182,8 @@ public class PrefsManager {
      *
      * @return the time to sleep
      */
-    public synchronized int getSleepTime() {
-        return sp.getInt(c.getString(R.string.pref_key_sleep_time), 20);
+    public int getSleepTime() {
+        return settings.getSleepTime();
     }
 
     /**
@@ -134,8 +192,9 @@ public class PrefsManager {
      * @param time sleep time in Minutes
      */
     public synchronized void setSleepTime(int time) {
-        sp.edit().putInt(c.getString(R.string.pref_key_sleep_time), time)
+        sp.edit().putInt(keySleepTime, time)
                 .apply();
+        refresh();
     }
 
     /**
@@ -143,8 +202,8 @@ public class PrefsManager {
      *
      * @return the time to seek
      */
-    public synchronized int getSeekTime() {
-        return sp.getInt(c.getString(R.string.pref_key_seek_time), 20);
+    public int getSeekTime() {
+        return settings.getSeekTime();
     }
 
     /**
@@ -153,23 +212,24 @@ public class PrefsManager {
      * @param time the time to seek
      */
     public synchronized void setSeekTime(int time) {
-        sp.edit().putInt(c.getString(R.string.pref_key_seek_time), time)
+        sp.edit().putInt(keySeekTime, time)
                 .apply();
+        refresh();
     }
 
     /**
      * @return true if the player should resume after the headset has been replugged. (If previously
      * paused by unplugging).
      */
-    public synchronized boolean resumeOnReplug() {
-        return sp.getBoolean(c.getString(R.string.pref_key_resume_on_replug), true);
+    public boolean resumeOnReplug() {
+        return settings.resumeOnReplug();
     }
 
     /**
      * @return true if should pause the player on a temporary interruption.
      */
-    public synchronized boolean pauseOnTempFocusLoss() {
-        return sp.getBoolean(c.getString(R.string.pref_key_pause_on_can_duck), false);
+    public boolean pauseOnTempFocusLoss() {
+        return settings.pauseOnTempFocusLoss();
     }
 
     /**
@@ -177,8 +237,8 @@ public class PrefsManager {
      *
      * @return the rewind amount
      */
-    public synchronized int getAutoRewindAmount() {
-        return sp.getInt(c.getString(R.string.pref_key_auto_rewind), 2);
+    public int getAutoRewindAmount() {
+        return settings.getAutoRewindAmount();
     }
 
     /**
@@ -187,15 +247,88 @@ public class PrefsManager {
      * @param autoRewindAmount the amount to auto rewind
      */
     public synchronized void setAutoRewindAmount(int autoRewindAmount) {
-        sp.edit().putInt(c.getString(R.string.pref_key_auto_rewind), autoRewindAmount)
+        sp.edit().putInt(keyAutoRewind, autoRewindAmount)
                 .apply();
+        refresh();
     }
 
     /**
      * @return true if a {@link de.ph1b.audiobook.model.Bookmark} should be set each time the sleep
      * timer is called
      */
-    public synchronized boolean setBookmarkOnSleepTimer() {
-        return sp.getBoolean(c.getString(R.string.pref_key_bookmark_on_sleep), false);
+    public boolean setBookmarkOnSleepTimer() {
+        return settings.setBookmarkOnSleepTimer();
+    }
+
+    /**
+     * The values of all settings at one point in time.
+     */
+    @Immutable
+    public static final class Settings {
+
+        private final long currentBookId;
+        @NonNull
+        private final ImmutableList<String> collectionFolders;
+        @NonNull
+        private final ImmutableList<String> singleBookFolders;
+        private final int sleepTime;
+        private final int seekTime;
+        private final boolean resumeOnReplug;
+        private final boolean pauseOnTempFocusLoss;
+        private final int autoRewindAmount;
+        private final boolean bookmarkOnSleepTimer;
+
+        private Settings(long currentBookId, @NonNull ImmutableList<String> collectionFolders,
+                         @NonNull ImmutableList<String> singleBookFolders, int sleepTime, int seekTime,
+                         boolean resumeOnReplug, boolean pauseOnTempFocusLoss, int autoRewindAmount,
+                         boolean bookmarkOnSleepTimer) {
+            this.currentBookId = currentBookId;
+            this.collectionFolders = collectionFolders;
+            this.singleBookFolders = singleBookFolders;
+            this.sleepTime = sleepTime;
+            this.seekTime = seekTime;
+            this.resumeOnReplug = resumeOnReplug;
+            this.pauseOnTempFocusLoss = pauseOnTempFocusLoss;
+            this.autoRewindAmount = autoRewindAmount;
+            this.bookmarkOnSleepTimer = bookmarkOnSleepTimer;
+        }
+
+        public long getCurrentBookId() {
+            return currentBookId;
+        }
+
+        @NonNull
+        public List<String> getCollectionFolders() {
+            return collectionFolders;
+        }
+
+        @NonNull
+        public List<String> getSingleBookFolders() {
+            return singleBookFolders;
+        }
+
+        public int getSleepTime() {
+            return sleepTime;
+        }
+
+        public int getSeekTime() {
+            return seekTime;
+        }
+
+        public boolean resumeOnReplug() {
+            return resumeOnReplug;
+        }
+
+        public boolean pauseOnTempFocusLoss() {
+            return pauseOnTempFocusLoss;
+        }
+
+        public int getAutoRewindAmount() {
+            return autoRewindAmount;
+        }
+
+        public boolean setBookmarkOnSleepTimer() {
+            return bookmarkOnSleepTimer;
+        }
     }
 }
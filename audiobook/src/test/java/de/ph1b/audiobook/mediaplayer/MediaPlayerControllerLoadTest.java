@@ -0,0 +1,186 @@
+package de.ph1b.audiobook.mediaplayer;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.media.MediaPlayer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.ph1b.audiobook.model.Book;
+import de.ph1b.audiobook.model.Bookmark;
+import de.ph1b.audiobook.model.Chapter;
+import de.ph1b.audiobook.model.InMemoryBookRepository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Runs the position updates of {@link MediaPlayerController} against an
+ * {@link InMemoryBookRepository} holding 10,000 books, while other threads keep reading the library
+ * like the shelf and the widget do. There is no media player off the device, so a
+ * {@link FakePlayer} reports the positions.
+ */
+public class MediaPlayerControllerLoadTest {
+
+    private static final int BOOKS = 10000;
+    private static final int CHAPTERS_PER_BOOK = 20;
+    private static final int POSITION_UPDATES = 100000;
+    private static final int READERS = 4;
+
+    private final Context context = new PackageContext();
+    private InMemoryBookRepository repository;
+    private FakePlayer player;
+    private MediaPlayerController controller;
+
+    private Book syntheticBook(int index) {
+        String root = File.separator + "storage" + File.separator + "book" + index;
+        List<Chapter> chapters = new ArrayList<>(CHAPTERS_PER_BOOK);
+        for (int c = 0; c < CHAPTERS_PER_BOOK; c++) {
+            chapters.add(new Chapter(root + File.separator + c + ".mp3", "Chapter " + c, 3600000));
+        }
+        return new Book(root, "Book " + index, null, chapters, chapters.get(0).getPath(),
+                Book.Type.COLLECTION_FOLDER, new ArrayList<Bookmark>(), context);
+    }
+
+    @Before
+    public void setUp() {
+        repository = new InMemoryBookRepository();
+        for (int i = 0; i < BOOKS; i++) {
+            repository.addBook(syntheticBook(i));
+        }
+        player = new FakePlayer();
+        controller = new MediaPlayerController(context, repository, player);
+    }
+
+    @Test
+    public void playbackWithConcurrentReaders() throws InterruptedException {
+        final Book playing = repository.getActiveBooks().get(BOOKS / 2);
+        controller.init(playing);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        final CountDownLatch readersStarted = new CountDownLatch(READERS);
+        final CountDownLatch readersDone = new CountDownLatch(READERS);
+        for (int r = 0; r < READERS; r++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readersStarted.countDown();
+                    while (running.get()) {
+                        repository.getBook(playing.getId());
+                        repository.getActiveBooks();
+                        reads.incrementAndGet();
+                    }
+                    readersDone.countDown();
+                }
+            }).start();
+        }
+
+        readersStarted.await();
+        for (int i = 0; i < POSITION_UPDATES; i++) {
+            player.seekTo(i);
+            controller.savePosition();
+        }
+        running.set(false);
+        readersDone.await();
+
+        assertTrue(reads.get() > 0);
+        Book book = repository.getBook(playing.getId());
+        assertNotNull(book);
+        assertEquals(POSITION_UPDATES - 1, book.getTime());
+        assertEquals(playing.getCurrentMediaPath(), book.getCurrentMediaPath());
+    }
+
+    private static class PackageContext extends ContextWrapper {
+
+        PackageContext() {
+            super(null);
+        }
+
+        @Override
+        public String getPackageName() {
+            return "de.ph1b.audiobook";
+        }
+    }
+
+    /**
+     * Plays nothing and only keeps the position it was sent to.
+     */
+    private static class FakePlayer implements MediaPlayerInterface {
+
+        private volatile int position;
+        private volatile float speed = 1.0f;
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void reset() {
+            position = 0;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void seekTo(int ms) {
+            position = ms;
+        }
+
+        @Override
+        public int getCurrentPosition() {
+            return position;
+        }
+
+        @Override
+        public void pause() {
+        }
+
+        @Override
+        public float getPlaybackSpeed() {
+            return speed;
+        }
+
+        @Override
+        public void setPlaybackSpeed(float speed) {
+            this.speed = speed;
+        }
+
+        @Override
+        public void setDataSource(String source) {
+        }
+
+        @Override
+        public void setOnErrorListener(MediaPlayer.OnErrorListener onErrorListener) {
+        }
+
+        @Override
+        public void setOnCompletionListener(OnCompletionListener onCompletionListener) {
+        }
+
+        @Override
+        public void setWakeMode(Context context, int mode) {
+        }
+
+        @Override
+        public int getDuration() {
+            return 0;
+        }
+    }
+}
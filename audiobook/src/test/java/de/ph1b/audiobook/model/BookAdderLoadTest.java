@@ -0,0 +1,154 @@
+package de.ph1b.audiobook.model;
+
+import android.content.ContextWrapper;
+import android.media.MediaMetadataRetriever;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Runs the scanner of {@link BookAdder} against an {@link InMemoryBookRepository}, on a collection
+ * folder of 10,000 books made of empty files. There is no {@link MediaMetadataRetriever} off the
+ * device, so the {@link ScanSource} gives every file the same duration and no other tags.
+ */
+public class BookAdderLoadTest {
+
+    private static final int BOOKS = 10000;
+    private static final int CHAPTERS_PER_BOOK = 2;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private File collection;
+    private InMemoryBookRepository repository;
+    private BookAdder adder;
+
+    @Before
+    public void setUp() throws IOException {
+        collection = temporaryFolder.newFolder("collection");
+        for (int i = 0; i < BOOKS; i++) {
+            File book = new File(collection, "book" + i);
+            assertTrue(book.mkdir());
+            for (int c = 0; c < CHAPTERS_PER_BOOK; c++) {
+                assertTrue(new File(book, c + ".mp3").createNewFile());
+            }
+        }
+        repository = new InMemoryBookRepository();
+        adder = new BookAdder(new PackageContext(), new FakeScanSource(collection), repository);
+    }
+
+    @Test
+    public void firstScan() throws InterruptedException {
+        adder.scanBooks();
+
+        List<Book> books = repository.getActiveBooks();
+        assertEquals(BOOKS, books.size());
+        for (Book b : books) {
+            assertEquals(CHAPTERS_PER_BOOK, b.getChapters().size());
+        }
+    }
+
+    /**
+     * Before scanning again, one book in ten gets another chapter and one in a hundred is deleted.
+     */
+    @Test
+    public void rescanWithChanges() throws InterruptedException, IOException {
+        adder.scanBooks();
+        for (int i = 0; i < BOOKS; i++) {
+            File book = new File(collection, "book" + i);
+            if (i % 10 == 0) {
+                assertTrue(new File(book, CHAPTERS_PER_BOOK + ".mp3").createNewFile());
+            } else if (i % 100 == 1) {
+                File[] chapters = book.listFiles();
+                assertNotNull(chapters);
+                for (File f : chapters) {
+                    assertTrue(f.delete());
+                }
+                assertTrue(book.delete());
+            }
+        }
+        adder.scanBooks();
+
+        List<Book> books = repository.getActiveBooks();
+        assertEquals(BOOKS - BOOKS / 100, books.size());
+        assertEquals(BOOKS / 100, repository.getOrphanedBooks().size());
+        int changed = 0;
+        for (Book b : books) {
+            if (b.getChapters().size() == CHAPTERS_PER_BOOK + 1) {
+                changed++;
+            }
+        }
+        assertEquals(BOOKS / 10, changed);
+    }
+
+    private static class PackageContext extends ContextWrapper {
+
+        PackageContext() {
+            super(null);
+        }
+
+        @Override
+        public String getPackageName() {
+            return "de.ph1b.audiobook";
+        }
+    }
+
+    private static class FakeScanSource implements ScanSource {
+
+        private final List<String> collectionFolders;
+
+        FakeScanSource(@NonNull File collection) {
+            collectionFolders = Collections.singletonList(collection.getAbsolutePath());
+        }
+
+        @NonNull
+        @Override
+        public List<String> getSingleBookFolders() {
+            return Collections.emptyList();
+        }
+
+        @NonNull
+        @Override
+        public List<String> getCollectionFolders() {
+            return collectionFolders;
+        }
+
+        @Override
+        public boolean storageMounted() {
+            return true;
+        }
+
+        @NonNull
+        @Override
+        public TagReader newTagReader() {
+            return new TagReader() {
+                @Override
+                public void setDataSource(@NonNull String path) {
+                }
+
+                @Nullable
+                @Override
+                public String extractMetadata(int key) {
+                    return key == MediaMetadataRetriever.METADATA_KEY_DURATION ? "60000" : null;
+                }
+
+                @Override
+                public void release() {
+                }
+            };
+        }
+    }
+}